@@ -0,0 +1,28 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the JMH benchmarks, writing the results to jmh-result.json unless told otherwise with -rf and -rff, so
+ * runs can be kept and compared
+ * Author: Nick Vaccarello
+ * email: nwv4110@rit.edu
+ */
+public class Benchmarks {
+    /**
+     * Main method for running the benchmarks
+     * @param args-JMH options, such as a benchmark name pattern or -p users=10
+     */
+    public static void main(String[] args) throws Exception {
+        List<String> options = new ArrayList<String>(Arrays.asList(args));
+        if (!options.contains("-rf")) {
+            options.addAll(Arrays.asList("-rf", "json"));
+        }
+        if (!options.contains("-rff")) {
+            options.addAll(Arrays.asList("-rff", "jmh-result.json"));
+        }
+        org.openjdk.jmh.Main.main(options.toArray(new String[0]));
+    }
+}
@@ -0,0 +1,42 @@
+package server;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * A server with a lobby full of in-memory clients, half of them on each wire format
+ * Author: Nick Vaccarello
+ * email: nwv4110@rit.edu
+ */
+@State(Scope.Benchmark)
+public class ChatRoom {
+    // number of clients in the lobby
+    @Param({"10", "1000", "10000"})
+    public int users;
+
+    ServerSide server;
+    MemoryConnection[] clients;
+
+    /**
+     * Starts a quiet server and logs every client in
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        server = new ServerSide(new ServerConfig()
+                .set("log-level", "error")
+                .set("history-dir", "")
+                .set("mailbox-dir", "")
+                .set("queue-messages", "16")
+                //High enough that the rate limits are charged but never refuse anything
+                .set("rate-messages", "1000000000")
+                .set("rate-bytes", "1000000000"));
+        clients = new MemoryConnection[users];
+        for (int i = 0; i < users; i++) {
+            clients[i] = new MemoryConnection(server, i % 2 == 0);
+            server.join(clients[i], "user" + i);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A client that lives in memory, so benchmarks measure the server rather than the network. Queued frames are
+ * drained as soon as they are scheduled, the way a writer keeping up would, and only their bytes are counted.
+ * Author: Nick Vaccarello
+ * email: nwv4110@rit.edu
+ */
+class MemoryConnection extends Connection {
+    // bytes the client has been sent
+    long received;
+
+    /**
+     * Constructs a client
+     * @param server-the server whose queue limits it gets
+     * @param binaryWire-whether it negotiated the binary framing
+     */
+    MemoryConnection(ServerSide server, boolean binaryWire) {
+        super(ServerSide.nextId(), server.newQueue());
+        binary = binaryWire;
+    }
+
+    /**
+     * Drains the queue straight away, reading each frame's shared bytes as a socket write would
+     */
+    void schedule() {
+        Frame frame;
+        while ((frame = queue.poll()) != null) {
+            ByteBuffer buffer = frame.buffer(wire());
+            received += buffer.remaining();
+        }
+    }
+
+    void close() {
+        queue.close();
+    }
+}
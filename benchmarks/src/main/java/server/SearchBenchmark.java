@@ -0,0 +1,94 @@
+package server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * /search against an index whose whole window is full of chats spread over ten rooms, each chat eight words drawn
+ * so a few words are in most chats and most words are rare: a word said once, the commonest word, and two and four
+ * common words together, which have to be looked up in each other's lists. The chats are handed to the indexer at
+ * the pace it keeps up with, so none are dropped.
+ * Author: Nick Vaccarello
+ * email: nwv4110@rit.edu
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+public class SearchBenchmark {
+    private static final int ROOMS = 10;
+    private static final int WORDS = 50000;
+
+    @Param({"100000", "1000000"})
+    int messages;
+
+    private SearchIndex index;
+    private String rare;
+
+    /**
+     * Fills the index and waits for the indexer to finish
+     */
+    @Setup
+    public void setUp() throws InterruptedException {
+        index = new SearchIndex(messages);
+        Random random = new Random(1);
+        for (int n = 0; n < messages; n++) {
+            String room = "room" + (n % ROOMS);
+            String from = "user" + (n % 100);
+            StringBuilder message = new StringBuilder("8:31 PM [").append(room).append("] ").append(from)
+                    .append(": ");
+            for (int w = 0; w < 8; w++) {
+                message.append(word((int) Math.min(WORDS - 1, Math.abs(random.nextGaussian()) * 2000))).append(' ');
+            }
+            message.append("msg").append(n).append('\n');
+            index.add(room, from, message.toString());
+            //Hold back so the queue never fills
+            while (n % 10000 == 0 && index.size() < n - 10000) {
+                Thread.sleep(1);
+            }
+        }
+        while (index.size() < messages) {
+            Thread.sleep(10);
+        }
+        rare = "msg" + (messages - ROOMS * 10);
+    }
+
+    private static String word(int i) {
+        return "w" + Integer.toString(i, 36);
+    }
+
+    @Benchmark
+    public List<String> rareWord() {
+        return index.search("room0", rare, 50);
+    }
+
+    @Benchmark
+    public List<String> commonWord() {
+        return index.search("room0", word(0), 50);
+    }
+
+    @Benchmark
+    public List<String> twoWords() {
+        return index.search("room0", word(0) + " " + word(1), 50);
+    }
+
+    @Benchmark
+    public List<String> fourWords() {
+        return index.search("room0", word(0) + " " + word(1) + " " + word(2) + " " + word(3), 50);
+    }
+}
@@ -0,0 +1,72 @@
+package server;
+
+import common.ChatMessage;
+import common.ChatterboxProtocol;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The commands a client sends, handled exactly as an engine would hand them over, against rooms of in-memory
+ * clients: a chat fanned out to the whole lobby, a whisper routed to one user, and a LIST_USERS page sent to the
+ * sender, for everyone and for the userNames starting with a prefix. admit charges a chat to the sender's rate
+ * limits, which every command goes through before it is handled. reconnect takes a user out of the lobby and
+ * logs it straight back in, the way a network blip makes every user do at once.
+ * Author: Nick Vaccarello
+ * email: nwv4110@rit.edu
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServerBenchmark implements ChatterboxProtocol {
+    private static final ChatMessage CHAT = new ChatMessage(SEND_CHAT, " hello everyone in the lobby");
+    private static final ChatMessage LIST = new ChatMessage(LIST_USERS, "");
+    private static final ChatMessage LIST_PREFIX = new ChatMessage(LIST_USERS, "user9");
+
+    @Benchmark
+    public long broadcast(ChatRoom room) {
+        room.server.handle(room.clients[0], CHAT, System.nanoTime());
+        return room.clients[room.users - 1].received;
+    }
+
+    @Benchmark
+    public long whisper(ChatRoom room) {
+        //The last user to join, so a scan of the clients would have to walk all of them
+        room.server.handle(room.clients[0], new ChatMessage(SEND_WHISPER, "user" + (room.users - 1) + " psst"),
+                System.nanoTime());
+        return room.clients[room.users - 1].received;
+    }
+
+    @Benchmark
+    public long listUsers(ChatRoom room) {
+        room.server.handle(room.clients[0], LIST, System.nanoTime());
+        return room.clients[0].received;
+    }
+
+    @Benchmark
+    public long listUsersPrefix(ChatRoom room) {
+        room.server.handle(room.clients[0], LIST_PREFIX, System.nanoTime());
+        return room.clients[0].received;
+    }
+
+    @Benchmark
+    public long admit(ChatRoom room) {
+        return room.server.admit(room.clients[0], CHAT, System.nanoTime());
+    }
+
+    @Benchmark
+    public long reconnect(ChatRoom room) {
+        MemoryConnection client = room.clients[room.users - 1];
+        room.server.remove(client.id);
+        room.server.join(client, "user" + (room.users - 1));
+        return room.clients[0].received;
+    }
+}
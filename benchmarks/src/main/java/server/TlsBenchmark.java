@@ -0,0 +1,210 @@
+package server;
+
+import common.Tls;
+import common.TlsChannel;
+import common.WireCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSocket;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connecting to a TLS server over loopback with the full handshake against resuming a session the client already
+ * has. The server end is a TlsChannel, as the server uses, serving a test certificate made with keytool in a
+ * temporary directory; each connection reads the stream header the server sends, so the session tickets sent
+ * after a TLS 1.3 handshake are taken in before the connection is closed.
+ * Author: Nick Vaccarello
+ * email: nwv4110@rit.edu
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TlsBenchmark {
+    private static final String PASSWORD = "changeit";
+
+    private File directory;
+    private SSLContext serverContext;
+    private SSLContext clientContext;
+    private ServerSocketChannel listener;
+    private InetSocketAddress address;
+
+    /**
+     * Makes the test certificate and starts the server thread
+     */
+    @Setup
+    public void setUp() throws Exception {
+        directory = File.createTempFile("chatterbox-tls", "");
+        directory.delete();
+        directory.mkdir();
+        File keyStore = new File(directory, "server.p12");
+        File certificate = new File(directory, "server.cer");
+        File trustStore = new File(directory, "trust.p12");
+        keytool("-genkeypair", "-alias", "server", "-keyalg", "RSA", "-keysize", "2048", "-validity", "2",
+                "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-storetype", "PKCS12",
+                "-keystore", keyStore.getPath(), "-storepass", PASSWORD, "-keypass", PASSWORD);
+        keytool("-exportcert", "-alias", "server", "-keystore", keyStore.getPath(), "-storepass", PASSWORD,
+                "-file", certificate.getPath());
+        keytool("-importcert", "-noprompt", "-alias", "server", "-file", certificate.getPath(), "-storetype",
+                "PKCS12", "-keystore", trustStore.getPath(), "-storepass", PASSWORD);
+        serverContext = Tls.server(keyStore.getPath(), PASSWORD, 20480, 86400);
+        clientContext = Tls.client(trustStore.getPath(), PASSWORD);
+
+        listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 128);
+        address = (InetSocketAddress) listener.getLocalAddress();
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                serve();
+            }
+        }, "chatterbox-tls-benchmark");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the server thread and throws the certificates away
+     */
+    @TearDown
+    public void tearDown() throws IOException {
+        listener.close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    /**
+     * Every connection does the full handshake, the client forgets the session as soon as it is done
+     */
+    @Benchmark
+    public int fullHandshake() throws IOException {
+        SSLSocket socket = connect();
+        try {
+            int read = readHeader(socket);
+            socket.getSession().invalidate();
+            return read;
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Every connection after the first resumes the session the client keeps
+     */
+    @Benchmark
+    public int resumedHandshake() throws IOException {
+        SSLSocket socket = connect();
+        try {
+            return readHeader(socket);
+        } finally {
+            socket.close();
+        }
+    }
+
+    private SSLSocket connect() throws IOException {
+        SSLSocket socket = (SSLSocket) clientContext.getSocketFactory().createSocket("localhost", address.getPort());
+        socket.setTcpNoDelay(true);
+        socket.startHandshake();
+        return socket;
+    }
+
+    /**
+     * Reads the stream header, which arrives after the session tickets
+     */
+    private static int readHeader(SSLSocket socket) throws IOException {
+        InputStream in = socket.getInputStream();
+        int read = 0;
+        while (read < WireCodec.STREAM_HEADER.length) {
+            if (in.read() < 0) {
+                throw new IOException("Server closed before the stream header");
+            }
+            read++;
+        }
+        return read;
+    }
+
+    /**
+     * Accepts connections one at a time, does the handshake on a blocking TlsChannel and sends the stream header
+     */
+    private void serve() {
+        while (listener.isOpen()) {
+            SocketChannel channel;
+            try {
+                channel = listener.accept();
+            } catch (IOException e) {
+                return;
+            }
+            TlsChannel tls = null;
+            try {
+                channel.socket().setTcpNoDelay(true);
+                SSLEngine engine = serverContext.createSSLEngine();
+                engine.setUseClientMode(false);
+                tls = new TlsChannel(channel, engine);
+                tls.handshake();
+                ByteBuffer header = ByteBuffer.wrap(WireCodec.STREAM_HEADER);
+                while (header.hasRemaining()) {
+                    tls.write(header);
+                }
+                //Wait for the client to close, so closing never races the client reading the header
+                tls.read(ByteBuffer.allocate(64));
+            } catch (IOException e) {
+                //The client went away, the next one is served anyway
+            } finally {
+                try {
+                    if (tls != null) {
+                        tls.close();
+                    }
+                    else {
+                        channel.close();
+                    }
+                } catch (IOException e) {
+                    //Already closed
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the keytool of the JVM running the benchmark
+     */
+    private static void keytool(String... args) throws IOException, InterruptedException {
+        String[] command = new String[args.length + 1];
+        command[0] = new File(new File(System.getProperty("java.home"), "bin"), "keytool").getPath();
+        System.arraycopy(args, 0, command, 1, args.length);
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        InputStream out = process.getInputStream();
+        byte[] skip = new byte[4096];
+        while (out.read(skip) >= 0) {
+            //Drained so keytool never blocks on a full pipe
+        }
+        if (process.waitFor() != 0) {
+            throw new IOException("keytool " + args[0] + " failed");
+        }
+    }
+}
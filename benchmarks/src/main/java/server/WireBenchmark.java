@@ -0,0 +1,154 @@
+package server;
+
+import common.ChatMessage;
+import common.ChatterboxProtocol;
+import common.WireCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encoding and decoding a ChatMessage in both wire formats, in memory, what sharing one encoded Frame saves over
+ * encoding a broadcast again for every recipient, and what deflating a pasted log costs and saves.
+ * Author: Nick Vaccarello
+ * email: nwv4110@rit.edu
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WireBenchmark implements ChatterboxProtocol {
+    // recipients of the broadcast in the fan-out comparison
+    private static final int RECIPIENTS = 100;
+    private static final String TEXT = "7:00 PM alice:  hello everyone, this is a typical chat line\n";
+    // a block of log lines pasted into the chat, the kind of message deflate is for
+    private static final String PASTE;
+    static {
+        StringBuilder paste = new StringBuilder("7:00 PM alice:  ");
+        for (int i = 0; i < 64; i++) {
+            paste.append("2026-10-17 19:00:").append(10 + i % 50).append(" INFO  [worker-").append(i % 8)
+                    .append("] request ").append(1000 + i * 7).append(" served in ").append(i % 13).append(" ms\n");
+        }
+        PASTE = paste.toString();
+    }
+
+    private ChatMessage message = new ChatMessage(SEND_CHAT, TEXT);
+    private ByteBuffer binaryFrame;
+    private ByteBuffer objectStream;
+    private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private ObjectOutputStream objects;
+    private Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private Inflater inflater = new Inflater();
+    private ByteBuffer deflatedFrame;
+
+    /**
+     * Encodes the messages the decoders read
+     */
+    @Setup
+    public void setUp() throws IOException {
+        binaryFrame = ByteBuffer.wrap(WireCodec.encode(SEND_CHAT, TEXT));
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(stream);
+        out.writeObject(message);
+        out.flush();
+        objectStream = ByteBuffer.wrap(stream.toByteArray());
+        objects = new ObjectOutputStream(bytes);
+        deflatedFrame = ByteBuffer.wrap(WireCodec.encode(CHAT_RECEIVED, PASTE, deflater));
+    }
+
+    @Benchmark
+    public byte[] encodeBinary() {
+        return WireCodec.encode(message.getType(), message.getMessage());
+    }
+
+    @Benchmark
+    public ChatMessage decodeBinary() throws IOException {
+        binaryFrame.rewind();
+        return WireCodec.decode(binaryFrame);
+    }
+
+    @Benchmark
+    public int encodeObjectStream() throws IOException {
+        //reset() so every message is written in full, as a fresh client's stream would
+        bytes.reset();
+        objects.reset();
+        objects.writeObject(message);
+        objects.flush();
+        return bytes.size();
+    }
+
+    @Benchmark
+    public Object decodeObjectStream() throws IOException {
+        objectStream.rewind();
+        return new LegacyDecoder().decode(objectStream);
+    }
+
+    @Benchmark
+    public void fanOutEncodedPerRecipient(Blackhole sink) {
+        for (int i = 0; i < RECIPIENTS; i++) {
+            sink.consume(i % 2 == 0 ? WireCodec.encode(CHAT_RECEIVED, TEXT) : Frame.legacyString(TEXT));
+        }
+    }
+
+    @Benchmark
+    public void fanOutSharedFrame(Blackhole sink) {
+        Frame frame = new Frame(CHAT_RECEIVED, TEXT, true);
+        for (int i = 0; i < RECIPIENTS; i++) {
+            sink.consume(frame.buffer(i % 2 == 0 ? Frame.BINARY : Frame.LEGACY));
+        }
+    }
+
+    @Benchmark
+    public byte[] encodePaste() {
+        return WireCodec.encode(CHAT_RECEIVED, PASTE);
+    }
+
+    @Benchmark
+    public byte[] encodePasteDeflated() {
+        return WireCodec.encode(CHAT_RECEIVED, PASTE, deflater);
+    }
+
+    @Benchmark
+    public ChatMessage decodePasteDeflated() throws IOException {
+        deflatedFrame.rewind();
+        return WireCodec.decode(deflatedFrame, inflater);
+    }
+
+    @Benchmark
+    public long fanOutPasteShared() {
+        Frame frame = new Frame(CHAT_RECEIVED, PASTE, true);
+        long bytes = 0;
+        for (int i = 0; i < RECIPIENTS; i++) {
+            bytes += frame.buffer(Frame.BINARY).remaining();
+        }
+        return bytes;
+    }
+
+    @Benchmark
+    public long fanOutPasteDeflatedShared() {
+        Frame frame = new Frame(CHAT_RECEIVED, PASTE, true);
+        long bytes = 0;
+        for (int i = 0; i < RECIPIENTS; i++) {
+            bytes += frame.buffer(Frame.DEFLATE).remaining();
+        }
+        return bytes;
+    }
+}
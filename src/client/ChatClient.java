@@ -0,0 +1,876 @@
+package client;
+
+import common.ChatMessage;
+import common.TlsChannel;
+import common.WireCodec;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * An asynchronous client for programs such as bots and integrations. Requests return at once with a future that
+ * completes when the server has handled them, with the server's answer for those it answers, and everything the
+ * server sends is passed to ChatListeners as it arrives. All the connecting, reading and writing is done by a
+ * ClientLoops thread that many clients share, so no call ever waits on the network.
+ * <p>
+ * The client speaks the binary framing at WireCodec.REPLY_VERSION or newer, where the server acknowledges the
+ * commands before each one it answers, so the answers that arrive after an acknowledgement belong to the oldest
+ * request it did not cover. A dropped connection is resumed like the console client's; requests that were in
+ * flight when it dropped fail, since whether the server handled them can not be known.
+ * <p>
+ * Futures and listeners are completed and called on the loop thread. Work that may block belongs on another
+ * thread, such as with the future's async methods.
+ * Author: Nick Vaccarello
+ * email: nwv4110@rit.edu
+ */
+public class ChatClient implements common.ChatterboxProtocol {
+    // where failures of the application's own listeners are reported, the library has no console of its own
+    private static final Logger LOG = Logger.getLogger(ChatClient.class.getName());
+    // initial size of the buffer holding bytes received from the server
+    private static final int READ_BUFFER_SIZE = 4096;
+    // largest amount of unread bytes the server may leave buffered, a whole frame of the longest payload
+    private static final int MAX_READ_BUFFER = WireCodec.MAX_PAYLOAD + READ_BUFFER_SIZE;
+    // how long connecting and logging in may take, the server's default for logging in
+    private static final long LOGIN_MILLIS = 10000;
+    // how long to wait for the server to close the connection after saying goodbye
+    private static final long GOODBYE_MILLIS = 3000;
+    // messages received before one is acknowledged straight away
+    private static final int ACK_EVERY = 64;
+    // otherwise the acknowledgement waits this long for more to cover, or for a request to ride along with
+    private static final long ACK_DELAY_MILLIS = 50;
+    // how long to keep trying to resume a session after the connection drops, the server's default hold
+    private static final long RESUME_MILLIS = 30000;
+    // wait between attempts to reconnect
+    private static final long RETRY_MILLIS = 1000;
+
+    // what the request's future gives once it is done
+    private static final Function<List<ChatMessage>, Void> NOTHING = new Function<List<ChatMessage>, Void>() {
+        public Void apply(List<ChatMessage> answers) {
+            return null;
+        }
+    };
+    private static final Function<List<ChatMessage>, String> FIRST = new Function<List<ChatMessage>, String>() {
+        public String apply(List<ChatMessage> answers) {
+            return answers.get(0).getMessage();
+        }
+    };
+
+    /**
+     * Where the connection is, only changed on the loop thread
+     */
+    private enum State {
+        // not connected yet, or waiting to try again
+        IDLE,
+        // waiting for the socket to connect
+        CONNECTING,
+        // waiting for the stream header and the answer to the hello
+        HELLO,
+        // waiting for the server to say the login or resume is done
+        LOGIN,
+        OPEN,
+        CLOSED
+    }
+
+    /**
+     * A change in the connection that listeners are told of
+     */
+    private enum Change {
+        RECONNECTING,
+        RECONNECTED,
+        CLOSED
+    }
+
+    /**
+     * A command sent to the server and its future
+     */
+    private static class Request {
+        final String type;
+        final String message;
+        // whether the server always answers it, a request left unanswered was dropped
+        final boolean answered;
+        final CompletableFuture<List<ChatMessage>> future = new CompletableFuture<List<ChatMessage>>();
+        // what the server answered so far
+        final List<ChatMessage> answers = new ArrayList<ChatMessage>(1);
+        // number of the command since login, the acknowledgement covering it completes it
+        long number;
+
+        Request(String type, String message) {
+            this.type = type;
+            this.message = message;
+            answered = type.equals(SEND_WHISPER) || type.equals(LIST_USERS) || type.equals(LIST_ROOMS)
+                    || type.equals(GET_HISTORY) || type.equals(GET_STATS) || type.equals(SEARCH);
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final String userName;
+    private final ClientLoops.Loop loop;
+    private final CopyOnWriteArrayList<ChatListener> listeners = new CopyOnWriteArrayList<ChatListener>();
+    // makes the TLS engines and keeps their sessions for reconnecting, null for plain connections
+    private volatile SSLContext tls;
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final CompletableFuture<ChatClient> connected = new CompletableFuture<ChatClient>();
+    private final CompletableFuture<Void> closed = new CompletableFuture<Void>();
+    // requests made on other threads, waiting for the loop to write them
+    private final ConcurrentLinkedQueue<Request> outbox = new ConcurrentLinkedQueue<Request>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    // set while requests can be sent
+    private volatile boolean online;
+    // set once close is called, a connection closing after that is not resumed
+    private volatile boolean leaving;
+
+    //Everything below is only touched on the loop thread
+    private State state = State.IDLE;
+    private InetSocketAddress address;
+    private SocketChannel channel;
+    // what is read and written goes through TLS, null for a plain connection
+    private TlsChannel secure;
+    private SelectionKey key;
+    // counts connections made, so a timer set for an earlier one does nothing
+    private int attempt;
+    // bytes received that are not yet a whole frame
+    private ByteBuffer inbound = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    // bytes waiting for the channel to take them
+    private final ArrayDeque<ByteBuffer> ready = new ArrayDeque<ByteBuffer>();
+    // requests written and not yet acknowledged, oldest first
+    private final ArrayDeque<Request> pending = new ArrayDeque<Request>();
+    private Deflater deflater;
+    private Inflater inflater;
+    // token to resume the session with, null until the server gives one
+    private String session;
+    // when to stop trying to resume in System.nanoTime(), 0 unless resuming
+    private long resumeDeadline;
+    // set once closing, and once goodbye is written; the server closing the connection is then expected
+    private boolean closing;
+    private boolean goodbyeSent;
+    // messages received since login, and how many of them the server was last told about
+    private long received;
+    private long ackSent;
+    private boolean ackScheduled;
+    // commands written since login, and how many of them the server has said it handled
+    private long sent;
+    private long acknowledged;
+
+    /**
+     * Constructs a client that has not connected yet
+     * @param host-the server's host
+     * @param port-the server's port
+     * @param userName-the userName to log in with
+     * @param loops-the loops that do the client's networking, shared with other clients
+     */
+    public ChatClient(String host, int port, String userName, ClientLoops loops) {
+        this.host = host;
+        this.port = port;
+        this.userName = userName;
+        this.loop = loops.next();
+        loop.clients.add(this);
+    }
+
+    /**
+     * Connects over TLS. Clients sharing a context resume the sessions it keeps instead of doing the full
+     * handshake again. Call before connect.
+     * @param context-the context, such as one from common.Tls.client
+     */
+    public void useTls(SSLContext context) {
+        tls = context;
+    }
+
+    /**
+     * Adds a listener for what the server sends
+     * @param listener-the listener
+     */
+    public void addListener(ChatListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Removes a listener
+     * @param listener-the listener
+     */
+    public void removeListener(ChatListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Gets the userName the client logs in with
+     */
+    public String getUserName() {
+        return userName;
+    }
+
+    /**
+     * Whether requests can be sent, false before login, while reconnecting and once closed
+     */
+    public boolean isOnline() {
+        return online;
+    }
+
+    /**
+     * Connects and logs in. Calling it again gives the same future.
+     * @return completes with this client once logged in, fails if the server can not be reached, is too old or
+     *         refuses the userName
+     */
+    public CompletableFuture<ChatClient> connect() {
+        if (started.compareAndSet(false, true)) {
+            loop.execute(new Runnable() {
+                public void run() {
+                    address = new InetSocketAddress(host, port);
+                    open();
+                }
+            });
+        }
+        return connected;
+    }
+
+    /**
+     * Sends a chat to the client's room
+     * @param text-the chat
+     * @return completes once the server has handled it
+     */
+    public CompletableFuture<Void> send(String text) {
+        return request(SEND_CHAT, text).thenApply(NOTHING);
+    }
+
+    /**
+     * Whispers to another user
+     * @param user-userName of the recipient
+     * @param text-the whisper
+     * @return completes with the server's confirmation, fails if there is no such user
+     */
+    public CompletableFuture<String> whisper(String user, String text) {
+        return request(SEND_WHISPER, user + " " + text).thenApply(FIRST);
+    }
+
+    /**
+     * Lists the users connected, a page of 100 at a time
+     * @param prefix-only userNames starting with it, empty for all of them
+     * @param page-the page, from 1
+     * @return completes with the page
+     */
+    public CompletableFuture<String> list(String prefix, int page) {
+        return request(LIST_USERS, (prefix + " " + page).trim()).thenApply(FIRST);
+    }
+
+    /**
+     * Finds the recent messages of the client's room that have every word given
+     * @param terms-the words, in any order and any case
+     * @return completes with the messages found, oldest first
+     */
+    public CompletableFuture<List<String>> search(String terms) {
+        return request(SEARCH, terms).thenApply(new Function<List<ChatMessage>, List<String>>() {
+            public List<String> apply(List<ChatMessage> answers) {
+                //The first line says how many were found
+                List<String> found = new ArrayList<String>(answers.size());
+                for (int i = 1; i < answers.size(); i++) {
+                    found.add(answers.get(i).getMessage());
+                }
+                return found;
+            }
+        });
+    }
+
+    /**
+     * Sends any command of the protocol, such as JOIN_ROOM or GET_HISTORY
+     * @param type-the command
+     * @param message-its message
+     * @return completes once the server has handled it with what it answered, possibly nothing; fails with the
+     *         server's error if it answered with one, or if the client is not online
+     */
+    public CompletableFuture<List<ChatMessage>> request(String type, String message) {
+        Request request = new Request(type, message);
+        if (!online) {
+            request.future.completeExceptionally(new IOException(leaving ? "The client is closed"
+                    : "The client is not connected"));
+            return request.future;
+        }
+        outbox.add(request);
+        schedule();
+        return request.future;
+    }
+
+    /**
+     * Says goodbye and closes the connection once the server has handled what was sent before
+     * @return completes once the connection is closed
+     */
+    public CompletableFuture<Void> close() {
+        leaving = true;
+        loop.execute(new Runnable() {
+            public void run() {
+                if (state != State.OPEN) {
+                    closed(null);
+                    return;
+                }
+                //What was asked for before goes out first
+                online = false;
+                flush();
+                if (state != State.OPEN) {
+                    return;
+                }
+                closing = true;
+                final int current = attempt;
+                loop.schedule(new Runnable() {
+                    public void run() {
+                        if (attempt == current) {
+                            closed(null);
+                        }
+                    }
+                }, GOODBYE_MILLIS);
+                goodbye();
+            }
+        });
+        return closed;
+    }
+
+    /**
+     * Says goodbye once closing and every request has been handled, the server closes the connection at once
+     * without acknowledging what came before
+     */
+    private void goodbye() {
+        if (closing && !goodbyeSent && pending.isEmpty()) {
+            goodbyeSent = true;
+            ready.add(ByteBuffer.wrap(WireCodec.encode(DISCONNECT, "")));
+            flush();
+        }
+    }
+
+    /**
+     * Makes sure the loop will write what is queued, at most one flush is waiting at a time
+     */
+    private void schedule() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(new Runnable() {
+                public void run() {
+                    flush();
+                }
+            });
+        }
+    }
+
+    /**
+     * Opens a connection to the server and sends the hello once it is connected
+     */
+    private void open() {
+        attempt++;
+        final int current = attempt;
+        inbound.clear();
+        ready.clear();
+        secure = null;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            state = State.CONNECTING;
+            boolean done = channel.connect(address);
+            key = channel.register(loop.selector, done ? 0 : SelectionKey.OP_CONNECT, this);
+            if (done) {
+                established();
+            }
+        } catch (IOException e) {
+            failed(e);
+            return;
+        } catch (UnresolvedAddressException e) {
+            failed(new IOException("Unknown host " + host));
+            return;
+        }
+        //A server that never answers is given up on like one that refused
+        loop.schedule(new Runnable() {
+            public void run() {
+                if (attempt == current && state != State.OPEN && state != State.CLOSED && state != State.IDLE) {
+                    failed(new IOException("Timed out logging in to " + host + ":" + port));
+                }
+            }
+        }, LOGIN_MILLIS);
+    }
+
+    /**
+     * Starts TLS if asked for and sends the hello, the server's stream header and answer come back together
+     */
+    private void established() throws IOException {
+        SSLContext context = tls;
+        if (context != null) {
+            SSLEngine engine = context.createSSLEngine(host, port);
+            engine.setUseClientMode(true);
+            //The server's certificate has to name the host connected to
+            SSLParameters parameters = engine.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            engine.setSSLParameters(parameters);
+            secure = new TlsChannel(channel, engine);
+        }
+        state = State.HELLO;
+        ready.add(ByteBuffer.wrap(WireCodec.hello(WireCodec.VERSION)));
+        flush();
+    }
+
+    /**
+     * Handles a selected key, called on the loop thread
+     * @param key-the key, ignored if it belongs to a connection that has since been closed
+     */
+    void select(SelectionKey key) {
+        if (key != this.key || !key.isValid()) {
+            return;
+        }
+        if (key.isConnectable()) {
+            try {
+                channel.finishConnect();
+                established();
+            } catch (IOException e) {
+                failed(e);
+            }
+            return;
+        }
+        if (key.isReadable()) {
+            read();
+        }
+        if (key == this.key && key.isValid() && key.isWritable()) {
+            flush();
+        }
+    }
+
+    /**
+     * Reads what the server sent and handles every whole frame that has arrived
+     */
+    private void read() {
+        int current = attempt;
+        int count;
+        try {
+            do {
+                count = secure != null ? secure.read(inbound) : channel.read(inbound);
+                if (count < 0) {
+                    throw new EOFException("The server closed the connection");
+                }
+                inbound.flip();
+                process();
+                if (attempt != current || state == State.CLOSED) {
+                    return;
+                }
+                inbound.compact();
+                if (!inbound.hasRemaining()) {
+                    //A single frame is bigger than the buffer, grow it
+                    if (inbound.capacity() >= MAX_READ_BUFFER) {
+                        throw new StreamCorruptedException("Frame too long");
+                    }
+                    ByteBuffer bigger = ByteBuffer.allocate(Math.min(inbound.capacity() * 2, MAX_READ_BUFFER));
+                    inbound.flip();
+                    bigger.put(inbound);
+                    inbound = bigger;
+                }
+                //What TLS has already taken off the socket will not be selected again, so read on while there is
+                //some
+            } while (secure != null && count > 0 && secure.buffered());
+        } catch (IOException e) {
+            failed(e);
+            return;
+        }
+        //The handshake may have finished, or it may have an answer to send
+        if (secure != null && (!ready.isEmpty() || secure.flushing())) {
+            flush();
+        }
+    }
+
+    /**
+     * Checks the server's answer to the hello and logs in, then handles the frames in the inbound buffer
+     */
+    private void process() throws IOException {
+        if (state == State.HELLO) {
+            if (inbound.remaining() < WireCodec.STREAM_HEADER.length + WireCodec.HELLO_LENGTH) {
+                return;
+            }
+            byte[] header = new byte[WireCodec.STREAM_HEADER.length];
+            inbound.get(header);
+            if (!Arrays.equals(header, WireCodec.STREAM_HEADER)) {
+                throw new StreamCorruptedException("Not a Chatterbox server");
+            }
+            byte[] answer = new byte[WireCodec.HELLO_LENGTH];
+            inbound.get(answer);
+            int version = WireCodec.helloVersion(answer);
+            if (version < WireCodec.REPLY_VERSION) {
+                //Trying again will not make it any newer
+                closed(new IOException("The server speaks framing version " + version + ", ChatClient needs "
+                        + WireCodec.REPLY_VERSION));
+                return;
+            }
+            if (deflater == null) {
+                deflater = new Deflater(Deflater.BEST_SPEED);
+                inflater = new Inflater();
+            }
+            state = State.LOGIN;
+            //The token and how many messages arrived, the server sends again whatever came after them
+            ready.add(ByteBuffer.wrap(resumeDeadline != 0 ? WireCodec.encode(RESUME, session + " " + received)
+                    : WireCodec.encode(CONNECT, userName)));
+            flush();
+        }
+        ChatMessage cm;
+        int current = attempt;
+        while (attempt == current && (state == State.LOGIN || state == State.OPEN)
+                && (cm = WireCodec.decode(inbound, inflater)) != null) {
+            received(cm);
+        }
+    }
+
+    /**
+     * Handles one frame from the server
+     * @param cm-the frame
+     */
+    private void received(ChatMessage cm) {
+        String type = cm.getType();
+        String message = cm.getMessage();
+        //The server's acknowledgements are counted, never passed on and never acknowledged themselves
+        if (type.equals(ACK)) {
+            try {
+                acknowledged(Long.parseLong(message.trim()));
+            } catch (NumberFormatException e) {
+                //Ignored, the next one covers it
+            }
+            return;
+        }
+        acknowledge();
+        if (type.equals(SESSION)) {
+            session = message;
+            //The acknowledgement that follows, if any, says how many commands the server handled before
+            if (state == State.LOGIN) {
+                sent = acknowledged;
+            }
+            return;
+        }
+        if (type.equals(CONNECTED)) {
+            if (state == State.LOGIN) {
+                opened();
+            }
+            return;
+        }
+        if (type.equals(FATAL_ERROR) && state == State.LOGIN) {
+            //The userName is taken or the session is gone, the server closes the connection
+            closed(new IOException(message));
+            return;
+        }
+        //Only what answers the client's commands is matched to a request, broadcasts arrive at any time
+        if (state == State.OPEN && (type.equals(WHISPER_SENT) || type.equals(USERS) || type.equals(ROOMS)
+                || type.equals(HISTORY) || type.equals(STATS) || type.equals(ERROR))) {
+            Request request = pending.peekFirst();
+            if (request != null) {
+                request.answers.add(cm);
+            }
+        }
+        for (ChatListener listener : listeners) {
+            try {
+                if (type.equals(CHAT_RECEIVED)) {
+                    listener.onChat(message);
+                }
+                else if (type.equals(WHISPER_RECEIVED)) {
+                    listener.onWhisper(message);
+                }
+                else if (type.equals(USER_JOINED) || type.equals(USER_LEFT)) {
+                    listener.onPresence(message);
+                }
+                else if (type.equals(ERROR) || type.equals(FATAL_ERROR)) {
+                    listener.onError(message);
+                }
+                else {
+                    listener.onAnswer(type, message);
+                }
+            } catch (RuntimeException e) {
+                //A listener that fails must not take the loop, and every other client on it, down
+                LOG.log(Level.WARNING, "A chat listener failed on " + type, e);
+            }
+        }
+    }
+
+    /**
+     * Completes the requests an acknowledgement from the server covers
+     * @param count-the number of commands the server has handled since login
+     */
+    private void acknowledged(long count) {
+        acknowledged = count;
+        if (state == State.LOGIN) {
+            //Resuming, nothing is in flight and the numbering carries on from the server's
+            sent = count;
+            return;
+        }
+        Request request;
+        while ((request = pending.peekFirst()) != null && request.number <= count) {
+            pending.pollFirst();
+            finish(request);
+        }
+        goodbye();
+    }
+
+    /**
+     * Completes a request the server has handled, with its answers or its error
+     */
+    private static void finish(Request request) {
+        for (ChatMessage answer : request.answers) {
+            if (answer.getType().equals(ERROR)) {
+                request.future.completeExceptionally(new IOException(answer.getMessage()));
+                return;
+            }
+        }
+        if (request.answered && request.answers.isEmpty()) {
+            request.future.completeExceptionally(new IOException("The server did not answer " + request.type
+                    + ", it was dropped"));
+            return;
+        }
+        request.future.complete(request.answers);
+    }
+
+    /**
+     * The server has logged the client in or resumed its session, requests may be sent
+     */
+    private void opened() {
+        state = State.OPEN;
+        online = !leaving;
+        if (resumeDeadline == 0) {
+            connected.complete(this);
+            return;
+        }
+        resumeDeadline = 0;
+        changed(Change.RECONNECTED);
+    }
+
+    /**
+     * Tells every listener of a change in the connection, one that throws is logged and the others still hear of it
+     * @param change-what changed
+     */
+    private void changed(Change change) {
+        for (ChatListener listener : listeners) {
+            try {
+                if (change == Change.RECONNECTING) {
+                    listener.onReconnecting();
+                }
+                else if (change == Change.RECONNECTED) {
+                    listener.onReconnected();
+                }
+                else {
+                    listener.onClosed();
+                }
+            } catch (RuntimeException e) {
+                //A listener that fails must not leave the client half way through a reconnect or a close
+                LOG.log(Level.WARNING, "A chat listener failed on " + change, e);
+            }
+        }
+    }
+
+    /**
+     * Acknowledges a message from the server: at once when ACK_EVERY have gone unacknowledged, otherwise after
+     * ACK_DELAY_MILLIS unless a request written before then carries it
+     */
+    private void acknowledge() {
+        received++;
+        if (received - ackSent >= ACK_EVERY) {
+            writeAck();
+            flush();
+        }
+        else if (!ackScheduled) {
+            ackScheduled = true;
+            final int current = attempt;
+            loop.schedule(new Runnable() {
+                public void run() {
+                    ackScheduled = false;
+                    if (attempt == current && (state == State.LOGIN || state == State.OPEN)) {
+                        writeAck();
+                        flush();
+                    }
+                }
+            }, ACK_DELAY_MILLIS);
+        }
+    }
+
+    /**
+     * Queues an acknowledgement of everything received so far, if there is anything new
+     */
+    private void writeAck() {
+        if (received > ackSent) {
+            ready.add(ByteBuffer.wrap(WireCodec.encode(ACK, Long.toString(received))));
+            ackSent = received;
+        }
+    }
+
+    /**
+     * Writes the queued requests and whatever else is ready, as much as the channel takes, then waits for it to
+     * become writable again
+     */
+    private void flush() {
+        flushScheduled.set(false);
+        if (state == State.IDLE || state == State.CONNECTING || state == State.CLOSED) {
+            return;
+        }
+        //Requests only go out once logged in, one queued since then fails as the connection is gone
+        if (state == State.OPEN && !closing) {
+            Request request;
+            while ((request = outbox.poll()) != null) {
+                writeAck();
+                request.number = ++sent;
+                pending.add(request);
+                ready.add(ByteBuffer.wrap(WireCodec.encode(request.type, request.message, deflater)));
+            }
+        }
+        ByteBuffer[] batch = loop.batch;
+        int count = 0;
+        try {
+            //Ciphertext left over goes first, and the handshake moves on
+            if (secure != null) {
+                secure.flush();
+            }
+            while (!ready.isEmpty()) {
+                count = 0;
+                ByteBuffer buffer;
+                while (count < batch.length && (buffer = ready.poll()) != null) {
+                    batch[count++] = buffer;
+                }
+                if (secure != null) {
+                    secure.write(batch, 0, count);
+                }
+                else {
+                    channel.write(batch, 0, count);
+                }
+                if (batch[count - 1].hasRemaining()) {
+                    //The channel is full, keep what it did not take in order for the next flush
+                    for (int i = count - 1; i >= 0 && batch[i].hasRemaining(); i--) {
+                        ready.addFirst(batch[i]);
+                    }
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            failed(e);
+            return;
+        } finally {
+            Arrays.fill(batch, 0, count, null);
+        }
+        if (key.isValid()) {
+            boolean writing = !ready.isEmpty();
+            if (secure != null) {
+                writing = secure.flushing() || (writing && !secure.handshaking());
+            }
+            key.interestOps(SelectionKey.OP_READ | (writing ? SelectionKey.OP_WRITE : 0));
+        }
+    }
+
+    /**
+     * Handles a connection that failed: while logged in, or trying to get back, the session is resumed if the
+     * server gave one; otherwise the client closes
+     * @param cause-what went wrong
+     */
+    private void failed(IOException cause) {
+        if (state == State.CLOSED) {
+            return;
+        }
+        //Saying goodbye ends with the server closing the connection
+        if (leaving) {
+            closed(closing ? null : cause);
+            return;
+        }
+        boolean wasOpen = state == State.OPEN;
+        if (session == null || (!wasOpen && resumeDeadline == 0)) {
+            closed(cause);
+            return;
+        }
+        closeChannel();
+        state = State.IDLE;
+        if (wasOpen) {
+            online = false;
+            resumeDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RESUME_MILLIS);
+            failPending(new IOException("The connection dropped, the server may or may not have handled the request"));
+            changed(Change.RECONNECTING);
+        }
+        if (System.nanoTime() - resumeDeadline > 0) {
+            closed(cause);
+            return;
+        }
+        loop.schedule(new Runnable() {
+            public void run() {
+                if (state == State.IDLE && !leaving) {
+                    open();
+                }
+                else if (state == State.IDLE) {
+                    closed(null);
+                }
+            }
+        }, RETRY_MILLIS);
+    }
+
+    /**
+     * Closes the client for good, failing whatever is still waiting; called on the loop thread
+     * @param cause-why, null when it was asked to close
+     */
+    void closed(IOException cause) {
+        if (state == State.CLOSED) {
+            return;
+        }
+        boolean wasConnected = connected.isDone();
+        state = State.CLOSED;
+        online = false;
+        loop.clients.remove(this);
+        closeChannel();
+        IOException failure = cause != null ? cause : new IOException("The client is closed");
+        failPending(failure);
+        //Listeners hear of it before anyone waiting on the future goes on, who must go on whatever they do
+        try {
+            if (wasConnected) {
+                changed(Change.CLOSED);
+            }
+        } finally {
+            connected.completeExceptionally(failure);
+            closed.complete(null);
+        }
+    }
+
+    /**
+     * Fails every request written and not yet acknowledged, and every one not yet written
+     */
+    private void failPending(IOException cause) {
+        Request request;
+        while ((request = pending.poll()) != null) {
+            request.future.completeExceptionally(cause);
+        }
+        while ((request = outbox.poll()) != null) {
+            request.future.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * Closes the channel of the current connection
+     */
+    private void closeChannel() {
+        attempt++;
+        closing = false;
+        goodbyeSent = false;
+        ackScheduled = false;
+        ready.clear();
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            if (secure != null) {
+                secure.close();
+            }
+            else if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+        }
+    }
+}
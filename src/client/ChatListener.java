@@ -0,0 +1,65 @@
+package client;
+
+/**
+ * Receives what the server sends to a ChatClient, sorted by what it is. Every method is called on the client's
+ * loop thread, in the order the server sent the messages, so it should hand anything slow to another thread.
+ * Only the methods wanted need to be written, the others do nothing.
+ * Author: Nick Vaccarello
+ * email: nwv4110@rit.edu
+ */
+public interface ChatListener {
+    /**
+     * A chat sent to the client's room, this client's own included
+     * @param message-the chat as the server shows it, with the time and the sender
+     */
+    default void onChat(String message) {
+    }
+
+    /**
+     * A whisper sent to this client
+     * @param message-the whisper as the server shows it, with the time and the sender
+     */
+    default void onWhisper(String message) {
+    }
+
+    /**
+     * Users joining or leaving the client's room, or the client moving to another room
+     * @param message-who came and went
+     */
+    default void onPresence(String message) {
+    }
+
+    /**
+     * An answer to one of the client's requests, which also completes the request's future: WHISPER_SENT,
+     * USERS, ROOMS, HISTORY or STATS
+     * @param type-the protocol message
+     * @param message-the answer
+     */
+    default void onAnswer(String type, String message) {
+    }
+
+    /**
+     * An error from the server, most of them answer a request and fail its future too
+     * @param message-the error
+     */
+    default void onError(String message) {
+    }
+
+    /**
+     * The connection dropped and the client is resuming its session; requests fail until it is back
+     */
+    default void onReconnecting() {
+    }
+
+    /**
+     * The session was resumed, what was missed while away has been passed on already
+     */
+    default void onReconnected() {
+    }
+
+    /**
+     * The client has closed for good, because it was asked to or because its session could not be resumed
+     */
+    default void onClosed() {
+    }
+}
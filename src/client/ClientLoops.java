@@ -0,0 +1,213 @@
+package client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A small, fixed pool of selector threads that does the reading, writing and timing for any number of ChatClients,
+ * so one JVM can keep hundreds of sessions open without a thread for each. Clients are handed to the loops in
+ * turn and stay on theirs, everything a client does on the network happens on its loop's thread.
+ * Author: Nick Vaccarello
+ * email: nwv4110@rit.edu
+ */
+public class ClientLoops {
+    // most buffers handed to a channel in one gathering write
+    private static final int WRITE_BATCH = 64;
+    // where failures that would otherwise stop a loop are reported
+    private static final Logger LOG = Logger.getLogger(ClientLoops.class.getName());
+
+    private final Loop[] loops;
+    // the loop the next client is handed to
+    private final AtomicInteger next = new AtomicInteger();
+    private volatile boolean running = true;
+
+    /**
+     * Constructs and starts a loop for each core
+     */
+    public ClientLoops() throws IOException {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructs and starts the loops
+     * @param count-the number of selector threads
+     * @throws IOException if a selector can not be opened
+     */
+    public ClientLoops(int count) throws IOException {
+        loops = new Loop[Math.max(1, count)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new Loop(i);
+        }
+        for (Loop loop : loops) {
+            loop.thread.start();
+        }
+    }
+
+    /**
+     * Gets the loop for a new client
+     */
+    Loop next() {
+        return loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+    }
+
+    /**
+     * Stops the loops, closing the connection of every client still on them
+     */
+    public void close() {
+        running = false;
+        for (Loop loop : loops) {
+            loop.selector.wakeup();
+        }
+    }
+
+    /**
+     * Work to run on a loop at a time
+     */
+    private static class Timer {
+        // when to run, in System.nanoTime()
+        final long at;
+        // order the timer was set in, so timers due at the same time run in that order
+        final long order;
+        final Runnable task;
+
+        Timer(long at, long order, Runnable task) {
+            this.at = at;
+            this.order = order;
+            this.task = task;
+        }
+    }
+
+    /**
+     * A thread that owns a selector and runs the clients registered with it
+     */
+    class Loop implements Runnable {
+        final Selector selector;
+        final Thread thread;
+        // buffers for one gathering write, shared by every client on this loop
+        final ByteBuffer[] batch = new ByteBuffer[WRITE_BATCH];
+        // every client given this loop and not closed yet, connected or not
+        final Set<ChatClient> clients = ConcurrentHashMap.newKeySet();
+        // work handed to this loop by other threads
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        // work waiting for its time, only touched on this loop's thread
+        private final PriorityQueue<Timer> timers = new PriorityQueue<Timer>(16, new Comparator<Timer>() {
+            public int compare(Timer a, Timer b) {
+                long order = a.at - b.at;
+                if (order == 0) {
+                    order = a.order - b.order;
+                }
+                return order < 0 ? -1 : order > 0 ? 1 : 0;
+            }
+        });
+        private long timersSet;
+
+        /**
+         * Constructs a loop with its own selector
+         * @param index-number of the loop, used to name its thread
+         */
+        Loop(int index) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, "chatterbox-client-loop-" + index);
+            thread.setDaemon(true);
+        }
+
+        /**
+         * Runs a task on this loop's thread
+         * @param task-the work to run
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        /**
+         * Runs a task on this loop's thread once a delay has passed, called on this loop's thread
+         * @param task-the work to run
+         * @param delayMillis-how long to wait first
+         */
+        void schedule(Runnable task, long delayMillis) {
+            timers.add(new Timer(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis), timersSet++, task));
+        }
+
+        /**
+         * Runs the timers whose time has come
+         * @return milliseconds until the next one is due, 0 if none are set
+         */
+        private long runDue() {
+            Timer timer;
+            while ((timer = timers.peek()) != null && timer.at - System.nanoTime() <= 0) {
+                timers.poll();
+                run(timer.task);
+            }
+            if (timer == null) {
+                return 0;
+            }
+            return Math.max(1, TimeUnit.NANOSECONDS.toMillis(timer.at - System.nanoTime()));
+        }
+
+        /**
+         * Runs a task, one that fails, such as a listener throwing, must not stop the loop for every other client
+         */
+        private void run(Runnable task) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                LOG.log(Level.WARNING, "A task on a client loop failed", e);
+            }
+        }
+
+        /**
+         * Selects ready clients and runs their connecting, reading and writing until the loops are closed
+         */
+        public void run() {
+            long timeout = 0;
+            while (running) {
+                try {
+                    selector.select(timeout);
+                } catch (IOException e) {
+                    break;
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    run(task);
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        ((ChatClient) key.attachment()).select(key);
+                    } catch (RuntimeException e) {
+                        LOG.log(Level.WARNING, "A client failed on its loop", e);
+                    }
+                }
+                timeout = runDue();
+            }
+            //Closed, every client still here is closed with it, even one waiting to reconnect or never connected
+            for (ChatClient client : new ArrayList<ChatClient>(clients)) {
+                try {
+                    client.closed(new IOException("The client loops were closed"));
+                } catch (RuntimeException e) {
+                    LOG.log(Level.WARNING, "A client failed to close with its loop", e);
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+}
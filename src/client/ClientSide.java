@@ -1,10 +1,25 @@
 package client;
 
 import common.ChatMessage;
+import common.Tls;
+import common.WireCodec;
 
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
 import java.net.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 
 /**
@@ -13,12 +28,84 @@ import java.util.*;
  * email: nwv4110@rit.edu
  */
 public class ClientSide implements common.ChatterboxProtocol {
+    // how long to wait for the server to answer a binary hello before falling back to object streams
+    private static final int HELLO_TIMEOUT = 3000;
+    // queued after the last pipelined message so the sender knows to stop, compared by identity
+    private static final ChatMessage END = new ChatMessage(DISCONNECT, "");
+    // messages received before one is acknowledged straight away
+    private static final int ACK_EVERY = 64;
+    // otherwise the acknowledgement waits this long for more to cover, or for a message to ride along with
+    private static final long ACK_DELAY_MILLIS = 50;
+    // how long to keep trying to resume a session after the connection drops, the server's default hold
+    private static final long RESUME_MILLIS = 30000;
+    // wait between attempts to reconnect
+    private static final long RETRY_MILLIS = 1000;
+    // one thread sends the delayed acknowledgements of every client in this JVM
+    private static final ScheduledExecutorService ACK_TIMER = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "chatterbox-ack");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
     private String notif = " *** ";
     private ObjectInputStream sInput;
     private ObjectOutputStream sOutput;
+    // raw streams used once the server agreed to the binary framing
+    private InputStream bInput;
+    private OutputStream bOutput;
+    // reused for every long message once the server agreed to deflate them, null otherwise
+    private Deflater deflater;
+    private Inflater inflater;
+    // whether both sides acknowledge what they receive
+    private boolean acking;
+    // messages received from the server since login, and how many of them it was last told about
+    private volatile long received;
+    private long ackSent;
+    private AtomicBoolean ackScheduled = new AtomicBoolean();
+    // commands sent since login, and how many of them the server has said it handled
+    private long sent;
+    private volatile long acknowledged;
+    // token to resume the session with if the connection drops, null if the server gave none
+    private volatile String session;
+    // set while the connection is gone and the session is being resumed, what is sent meanwhile is lost
+    private volatile boolean offline;
+    // set once the user disconnects, so a closed socket is not taken for a dropped one
+    private volatile boolean leaving;
     private Socket socket;
     private String server, userName;
     private int port;
+    // whether to ask the server for the binary framing
+    private boolean binaryWire;
+    // bytes buffered before they are written to the socket
+    private int flushBytes = 8192;
+    // messages waiting for the sender thread, null unless pipelining
+    private BlockingQueue<ChatMessage> outbox;
+    private Sender sender;
+    // how long a pipelined batch waits for more messages before it is written
+    private long lingerNanos;
+    // gets what the server sends instead of the console, null for the interactive client
+    private Listener listener;
+    // makes the TLS sockets and keeps their sessions for reconnecting, null for plain sockets
+    private SSLContext tls;
+
+    /**
+     * Receives what the server sends when ClientSide is used from a program rather than the console
+     */
+    public interface Listener {
+        /**
+         * Called on the listening thread for every message from the server
+         * @param type-the protocol message, or null for a server using object streams, which only sends the text
+         * @param message-the message text
+         */
+        void received(String type, String message);
+
+        /**
+         * Called once when the connection to the server has closed
+         */
+        void closed();
+    }
 
     /**
      * Constructor for creating a client with their userName, server, and port
@@ -27,9 +114,51 @@ public class ClientSide implements common.ChatterboxProtocol {
      * @param userName
      */
     public ClientSide(String server, int port, String userName) {
+        this(server, port, userName, true);
+    }
+
+    /**
+     * Constructor for creating a client that may be kept on the object stream format
+     * @param server
+     * @param port
+     * @param userName
+     * @param binaryWire-whether to ask the server for the binary framing
+     */
+    public ClientSide(String server, int port, String userName, boolean binaryWire) {
         this.server = server;
         this.port = port;
         this.userName = userName;
+        this.binaryWire = binaryWire;
+    }
+
+    /**
+     * Makes sendMessage only queue the message and return, a sender thread writes queued messages to the server
+     * in batches. Call before start.
+     * @param depth-most messages that may be queued before sendMessage waits
+     * @param flushBytes-a batch is written as soon as it reaches this many bytes
+     * @param lingerMillis-otherwise it is written this long after its first message
+     */
+    public void pipeline(int depth, int flushBytes, int lingerMillis) {
+        outbox = new ArrayBlockingQueue<ChatMessage>(depth);
+        this.flushBytes = flushBytes;
+        lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+    }
+
+    /**
+     * Connects over TLS. Clients sharing a context resume the sessions it keeps instead of doing the full
+     * handshake again, including when a dropped connection is resumed. Call before start.
+     * @param context-the context, such as one from common.Tls.client
+     */
+    public void useTls(SSLContext context) {
+        tls = context;
+    }
+
+    /**
+     * Hands everything the server sends to a listener instead of printing it. Call before start.
+     * @param listener-gets the messages; console output, connection notices included, is turned off
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
     }
 
     /**
@@ -38,7 +167,7 @@ public class ClientSide implements common.ChatterboxProtocol {
      */
     public boolean start() {
         try {
-            socket = new Socket(server, port);
+            socket = connect();
         }
         //Error if they can't connect to the server
         catch(Exception ec) {
@@ -50,23 +179,46 @@ public class ClientSide implements common.ChatterboxProtocol {
                 + socket.getPort();
         display(msg);
 
-        //Create data streams for reading and writing
-        try
-        {
-            sInput  = new ObjectInputStream(socket.getInputStream());
-            sOutput = new ObjectOutputStream(socket.getOutputStream());
+        //Ask for the binary framing, a server that does not answer gets a fresh connection using object streams
+        if (binaryWire && !negotiate()) {
+            display("Server does not speak the binary framing, using object streams");
+            disconnect();
+            try {
+                socket = connect();
+            }
+            catch(Exception ec) {
+                display("Error connectiong to server:" + ec);
+                return false;
+            }
         }
-        catch (IOException eIO) {
-            display("Exception creating new Input/output Streams: " + eIO);
-            return false;
+
+        //Create data streams for reading and writing
+        if (bOutput == null) {
+            try
+            {
+                sInput  = new ObjectInputStream(socket.getInputStream());
+                sOutput = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream(), flushBytes));
+                sOutput.flush();
+            }
+            catch (IOException eIO) {
+                display("Exception creating new Input/output Streams: " + eIO);
+                return false;
+            }
         }
 
         //Creates a ListenFromServer thread to begin to listen for messages
         new ListenFromServer().start();
-        //Sends the userName as a string, the rest of the writing will be objects
+        //Sends the userName, as a connect frame or as a string before the rest of the objects
         try
         {
-            sOutput.writeObject(userName);
+            if (bOutput != null) {
+                WireCodec.write(bOutput, CONNECT, userName);
+                bOutput.flush();
+            }
+            else {
+                sOutput.writeObject(userName);
+                sOutput.flush();
+            }
         }
         catch (IOException eIO) {
             //Error in case login fails
@@ -74,25 +226,153 @@ public class ClientSide implements common.ChatterboxProtocol {
             disconnect();
             return false;
         }
+        if (outbox != null) {
+            sender = new Sender();
+            sender.start();
+        }
         //Return true saying that login was a success
         return true;
     }
 
+    /**
+     * Opens a socket to the server, over TLS if asked for, checking the server's certificate names the host
+     */
+    private Socket connect() throws IOException {
+        if (tls == null) {
+            return new Socket(server, port);
+        }
+        SSLSocket secure = (SSLSocket) tls.getSocketFactory().createSocket(server, port);
+        SSLParameters parameters = secure.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        secure.setSSLParameters(parameters);
+        secure.startHandshake();
+        return secure;
+    }
+
+    /**
+     * Sends a binary hello and waits for the server to agree on a framing version
+     * @return true if the binary framing is in use
+     */
+    private boolean negotiate() {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), flushBytes);
+            //Every server starts with the object stream header
+            byte[] header = new byte[WireCodec.STREAM_HEADER.length];
+            new DataInputStream(in).readFully(header);
+            if (!Arrays.equals(header, WireCodec.STREAM_HEADER)) {
+                return false;
+            }
+            out.write(WireCodec.hello(WireCodec.VERSION));
+            out.flush();
+            //An older server never answers, so only wait so long
+            socket.setSoTimeout(HELLO_TIMEOUT);
+            byte[] answer = new byte[WireCodec.HELLO_LENGTH];
+            new DataInputStream(in).readFully(answer);
+            socket.setSoTimeout(0);
+            int version = WireCodec.helloVersion(answer);
+            if (version == 0) {
+                return false;
+            }
+            if (version >= WireCodec.DEFLATE_VERSION) {
+                deflater = new Deflater(Deflater.BEST_SPEED);
+                inflater = new Inflater();
+            }
+            acking = version >= WireCodec.ACK_VERSION;
+            bInput = in;
+            bOutput = out;
+            return true;
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Reconnects after the connection dropped and resumes the session: nobody in the chat sees the user leave, and
+     * the server sends again everything this client had not received. Tries every RETRY_MILLIS for RESUME_MILLIS.
+     * @return true once the session is resumed, false if the server no longer has it or could not be reached
+     */
+    private boolean resumeSession() {
+        offline = true;
+        display(notif + "Connection lost, reconnecting" + notif);
+        long deadline = System.currentTimeMillis() + RESUME_MILLIS;
+        while (!leaving && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            }
+            catch(InterruptedException e) {
+                return false;
+            }
+            try {
+                //Writers wait while the streams are swapped
+                synchronized (this) {
+                    try {
+                        socket.close();
+                    }
+                    catch(IOException e) {}
+                    socket = connect();
+                    if (!negotiate()) {
+                        continue;
+                    }
+                    //The token and how many messages arrived, the server sends again whatever came after them
+                    WireCodec.write(bOutput, RESUME, session + " " + received);
+                    bOutput.flush();
+                    ackSent = received;
+                }
+                ChatMessage answer = WireCodec.read(bInput, inflater);
+                if (!answer.getType().equals(SESSION)) {
+                    //The session expired, the server says so and closes the connection
+                    display(answer.getMessage());
+                    return false;
+                }
+                acknowledge();
+                session = answer.getMessage();
+                offline = false;
+                display(notif + "Reconnected" + notif);
+                return true;
+            }
+            catch(IOException e) {
+                //Not back yet, try again
+            }
+        }
+        return false;
+    }
+
     /**
      * Display method for the client console
      * @param msg-The message being displayed
      */
     private void display(String msg) {
-        System.out.println(msg);
+        if (listener == null) {
+            System.out.println(msg);
+        }
     }
 
     /**
-     * Method for sending a method to the server
+     * Method for sending a method to the server. When pipelining the message is only queued, so any number of
+     * threads can have messages in flight without waiting on the socket.
      * @param msg-The message being sent
      */
-    void sendMessage(ChatMessage msg) {
+    public void sendMessage(ChatMessage msg) {
+        if (offline) {
+            display(notif + "Reconnecting, the message was not sent" + notif);
+            return;
+        }
+        if (outbox != null) {
+            try {
+                outbox.put(msg);
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
         try {
-            sOutput.writeObject(msg);
+            synchronized (this) {
+                write(msg);
+                flush();
+            }
         }
         catch(IOException e) {
             display("Exception writing to server: " + e);
@@ -100,9 +380,110 @@ public class ClientSide implements common.ChatterboxProtocol {
     }
 
     /**
-     * Disconnect method that closes all the data streams
+     * Gets the number of commands the server has said it handled, out of those sent since login. Only counted
+     * when the server speaks the binary framing at WireCodec.ACK_VERSION or newer.
+     */
+    public long acknowledged() {
+        return acknowledged;
+    }
+
+    /**
+     * Gets the number of commands sent since login that the server has not said it handled yet
+     */
+    public synchronized long unacknowledged() {
+        return sent - acknowledged;
+    }
+
+    /**
+     * Writes a message into the output buffer, it reaches the server once the buffer fills or is flushed. A
+     * pending acknowledgement goes just ahead of it, so it costs no write of its own.
+     * @param msg-The message being written
+     */
+    private synchronized void write(ChatMessage msg) throws IOException {
+        if (bOutput != null) {
+            writeAck();
+            WireCodec.write(bOutput, msg.getType(), msg.getMessage(), deflater);
+        }
+        else {
+            sOutput.writeObject(msg);
+        }
+        if (acking) {
+            sent++;
+        }
+    }
+
+    /**
+     * Writes an acknowledgement of everything received so far into the output buffer, if there is anything new
      */
-    private void disconnect() {
+    private synchronized void writeAck() throws IOException {
+        long count = received;
+        if (acking && count > ackSent) {
+            WireCodec.write(bOutput, ACK, Long.toString(count));
+            ackSent = count;
+        }
+    }
+
+    /**
+     * Acknowledges a message from the server: at once when ACK_EVERY have gone unacknowledged, otherwise after
+     * ACK_DELAY_MILLIS unless a message written before then carries it
+     */
+    private void acknowledge() {
+        received++;
+        if (received - ackSent >= ACK_EVERY) {
+            sendAck();
+        }
+        else if (ackScheduled.compareAndSet(false, true)) {
+            ACK_TIMER.schedule(new Runnable() {
+                public void run() {
+                    ackScheduled.set(false);
+                    sendAck();
+                }
+            }, ACK_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes the acknowledgement and flushes it
+     */
+    private synchronized void sendAck() {
+        try {
+            long before = ackSent;
+            writeAck();
+            if (ackSent != before) {
+                flush();
+            }
+        }
+        catch(IOException e) {
+            //The listener finds out the connection is gone
+        }
+    }
+
+    /**
+     * Writes what is buffered to the server
+     */
+    private synchronized void flush() throws IOException {
+        if (bOutput != null) {
+            bOutput.flush();
+        }
+        else {
+            sOutput.flush();
+        }
+    }
+
+    /**
+     * Disconnect method that sends what is still queued and then closes all the data streams
+     */
+    public void disconnect() {
+        leaving = true;
+        if (sender != null) {
+            try {
+                outbox.put(END);
+                sender.join(HELLO_TIMEOUT);
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
         try {
             if(sInput != null) sInput.close();
         }
@@ -119,19 +500,89 @@ public class ClientSide implements common.ChatterboxProtocol {
     }
 
     /**
-     * Main method for running the client
-     * @param args
+     * Main method for running the client. The console runs on a ChatClient, unless kept to the object stream
+     * format, when it runs on this class.
+     * @param args-pass --wire=legacy to keep to the object stream format, --pipeline to send in batches with it,
+     *            --host=name and --port=number to reach a server other than localhost:6789, and --tls to connect
+     *            over TLS, trusting the certificates in --tls-truststore=file if given
      */
     public static void main(String[] args) {
         String serverAddress = "localhost";
+        int port = PORT;
+        String trustStore = null;
+        String trustPassword = "changeit";
+        for (String arg : args) {
+            if (arg.startsWith("--host=")) {
+                serverAddress = arg.substring("--host=".length());
+            }
+            else if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(arg.substring("--port=".length()));
+            }
+            else if (arg.startsWith("--tls-truststore=")) {
+                trustStore = arg.substring("--tls-truststore=".length());
+            }
+            else if (arg.startsWith("--tls-password=")) {
+                trustPassword = arg.substring("--tls-password=".length());
+            }
+        }
+        boolean binaryWire = !Arrays.asList(args).contains("--wire=legacy");
+        SSLContext context = null;
+        if (trustStore != null || Arrays.asList(args).contains("--tls")) {
+            try {
+                context = Tls.client(trustStore, trustPassword);
+            }
+            catch(Exception e) {
+                System.out.println("Error setting up TLS: " + e);
+                return;
+            }
+        }
         Scanner scan = new Scanner(System.in);
 
         System.out.print("Enter the userName: ");
         String userName = scan.nextLine();
-        ClientSide client = new ClientSide(serverAddress, PORT, userName);
-        //Try and connect to the server
-        if(!client.start())
-            return;
+        ClientSide client = null;
+        ClientLoops loops = null;
+        ChatClient chat = null;
+        if (binaryWire) {
+            try {
+                loops = new ClientLoops(1);
+            }
+            catch(IOException e) {
+                System.out.println("Error starting the client: " + e);
+                return;
+            }
+            chat = new ChatClient(serverAddress, port, userName, loops);
+            if (context != null) {
+                chat.useTls(context);
+            }
+            chat.addListener(new Console());
+            //Try and connect to the server
+            try {
+                chat.connect().get();
+            }
+            catch(InterruptedException e) {
+                return;
+            }
+            catch(ExecutionException e) {
+                System.out.println("Error connectiong to server: " + e.getCause().getMessage());
+                loops.close();
+                return;
+            }
+            System.out.println("ChatterboxClient connected to " + serverAddress + "\nChatterbox server port: " + port);
+        }
+        else {
+            client = new ClientSide(serverAddress, port, userName, false);
+            //Typed or piped lines are queued and sent in batches instead of one write each
+            if (Arrays.asList(args).contains("--pipeline")) {
+                client.pipeline(1024, 8192, 2);
+            }
+            if (context != null) {
+                client.useTls(context);
+            }
+            //Try and connect to the server
+            if(!client.start())
+                return;
+        }
 
         System.out.println("\nHello.! Welcome to ChatterBox "+userName+"! Type \'/help\' to see a list of commands ");
 
@@ -140,13 +591,21 @@ public class ClientSide implements common.ChatterboxProtocol {
             String[] command;
             System.out.print("> ");
             String msg = scan.nextLine();
+            //The command to send, none for the ones handled here
+            ChatMessage request = null;
             //Display commands if client types /help
             if(msg.equals("/help")){
                 System.out.println("/help - displays this message");
                 System.out.println("/quit - quit Chatterbox");
                 System.out.println("/c <message> - send a message to all connected clients");
                 System.out.println("/w <recipient> <message> - send a private message to the recipient");
-                System.out.println("/list - display a list of currently connected users");
+                System.out.println("/list [prefix] [page] - display connected users, 100 a page, only names starting with prefix if given");
+                System.out.println("/join <room> - move to another chat room, opening it if it is empty");
+                System.out.println("/leave - leave the chat room and go back to the lobby");
+                System.out.println("/rooms - display a list of open chat rooms");
+                System.out.println("/history [n] - display the last n messages of the room and your whispers");
+                System.out.println("/search <words> - display recent messages of the room that have every word");
+                System.out.println("/stats - display the server's metrics, admins only");
             }
             //String for additional input if the user wishes to quit
             String answer = "";
@@ -156,37 +615,131 @@ public class ClientSide implements common.ChatterboxProtocol {
             }
             //Quit/Disconnect if users answers y(yes) for quiting
             if(answer.equalsIgnoreCase("y")) {
-                client.sendMessage(new ChatMessage(DISCONNECT, ""));
+                if (client != null) {
+                    client.sendMessage(new ChatMessage(DISCONNECT, ""));
+                }
                 break;
             }
             else if(answer.equalsIgnoreCase("n")){
                 //Do nothing and accept more commands from user
             }
             //For displaying connected users
-            else if(msg.equalsIgnoreCase("/list")) {
-                client.sendMessage(new ChatMessage(LIST_USERS, ""));
+            else if(msg.equalsIgnoreCase("/list") || msg.startsWith("/list ")) {
+                request = new ChatMessage(LIST_USERS, msg.substring("/list".length()).trim());
+            }
+            //For moving to another room
+            else if(msg.startsWith("/join ")) {
+                request = new ChatMessage(JOIN_ROOM, msg.substring("/join ".length()));
+            }
+            //For going back to the lobby
+            else if(msg.equalsIgnoreCase("/leave")) {
+                request = new ChatMessage(LEAVE_ROOM, "");
+            }
+            //For displaying open rooms
+            else if(msg.equalsIgnoreCase("/rooms")) {
+                request = new ChatMessage(LIST_ROOMS, "");
+            }
+            //For displaying the server's metrics
+            else if(msg.equalsIgnoreCase("/stats")) {
+                request = new ChatMessage(GET_STATS, "");
+            }
+            //For displaying earlier messages
+            else if(msg.equalsIgnoreCase("/history") || msg.startsWith("/history ")) {
+                request = new ChatMessage(GET_HISTORY, msg.substring("/history".length()).trim());
             }
-            //Sending a message to all users
+            //For finding earlier messages
+            else if(msg.equalsIgnoreCase("/search") || msg.startsWith("/search ")) {
+                request = new ChatMessage(SEARCH, msg.substring("/search".length()).trim());
+            }
+            //Sending a message to all users in the room
             else if(msg.contains("/c")) {
                 msg = msg.split("/c")[1];
-                client.sendMessage(new ChatMessage(SEND_CHAT, msg));
+                request = new ChatMessage(SEND_CHAT, msg);
             }
             //For private messaging
             else if(msg.contains("/w")&& msg.split(" ", 3).length>2){
                 command = msg.split(" ", 2);
                 msg = command[1];
-                client.sendMessage(new ChatMessage(SEND_WHISPER, msg));
+                request = new ChatMessage(SEND_WHISPER, msg);
             }
             //It isn't an acceptable command
             else{
-                client.sendMessage(new ChatMessage(ERROR, msg));
+                request = new ChatMessage(ERROR, msg);
+            }
+
+            if (request == null) {
+                continue;
+            }
+            if (client != null) {
+                client.sendMessage(request);
+            }
+            //The answer, or the error, is printed by the console listener as it arrives
+            else if (chat.isOnline()) {
+                chat.request(request.getType(), request.getMessage());
+            }
+            else {
+                System.out.println(" *** Reconnecting, the message was not sent *** ");
             }
 
         }
         //Close resources
         scan.close();
         //Disconnect the client
-        client.disconnect();
+        if (client != null) {
+            client.disconnect();
+        }
+        else {
+            try {
+                chat.close().get();
+            }
+            catch(InterruptedException | ExecutionException e) {
+            }
+            loops.close();
+        }
+    }
+
+    /**
+     * Prints what the server sends to a ChatClient on the console
+     */
+    static class Console implements ChatListener {
+        private String notif = " *** ";
+
+        private void print(String msg) {
+            System.out.println(msg);
+            System.out.print("> ");
+        }
+
+        public void onChat(String message) {
+            print(message);
+        }
+
+        public void onWhisper(String message) {
+            print(message);
+        }
+
+        public void onPresence(String message) {
+            print(message);
+        }
+
+        public void onAnswer(String type, String message) {
+            print(message);
+        }
+
+        public void onError(String message) {
+            print(message);
+        }
+
+        public void onReconnecting() {
+            System.out.println(notif + "Connection lost, reconnecting" + notif);
+        }
+
+        public void onReconnected() {
+            System.out.println(notif + "Reconnected" + notif);
+        }
+
+        public void onClosed() {
+            System.out.println(notif +" Connection successfully closed: Goodbye "+ notif);
+        }
     }
 
     /**
@@ -197,14 +750,43 @@ public class ClientSide implements common.ChatterboxProtocol {
         public void run() {
             while(true) {
                 try {
-                    //Read the message
-                    String msg = (String) sInput.readObject();
+                    //Read the message, the console only shows its text
+                    ChatMessage cm = bInput != null ? WireCodec.read(bInput, inflater) : null;
+                    //The server's acknowledgements are counted, never shown and never acknowledged themselves
+                    if (cm != null && cm.getType().equals(ACK)) {
+                        acknowledged = Long.parseLong(cm.getMessage());
+                        continue;
+                    }
+                    if (acking) {
+                        acknowledge();
+                    }
+                    //The token is kept for when the connection drops, never shown
+                    if (cm != null && cm.getType().equals(SESSION)) {
+                        session = cm.getMessage();
+                        continue;
+                    }
+                    //The console already welcomed the user
+                    if (cm != null && cm.getType().equals(CONNECTED)) {
+                        continue;
+                    }
+                    String msg = cm != null ? cm.getMessage() : (String) sInput.readObject();
+                    if (listener != null) {
+                        listener.received(cm != null ? cm.getType() : null, msg);
+                        continue;
+                    }
                     System.out.println(msg);
                     System.out.print("> ");
                 }
                 catch(IOException e) {
+                    //A dropped connection is picked up again where it left off if the server still has the session
+                    if (!leaving && session != null && resumeSession()) {
+                        continue;
+                    }
                     //Display the connection was successfully closed
                     display(notif +" Connection successfully closed: Goodbye "+ notif);
+                    if (listener != null) {
+                        listener.closed();
+                    }
                     break;
                 }
                 catch(ClassNotFoundException e2) {
@@ -213,4 +795,44 @@ public class ClientSide implements common.ChatterboxProtocol {
             }
         }
     }
+
+    /**
+     * Class that writes pipelined messages to the server. It keeps adding queued messages to the output buffer
+     * until the batch has waited lingerNanos, then flushes; a full buffer is written out on its own.
+     */
+    class Sender extends Thread {
+
+        public void run() {
+            //Once writing fails the queue is thrown away until the session resumes, so senders never wait on a dead
+            //socket
+            while(true) {
+                try {
+                    ChatMessage msg = outbox.take();
+                    if (msg == END) {
+                        break;
+                    }
+                    if (offline) {
+                        continue;
+                    }
+                    write(msg);
+                    long deadline = System.nanoTime() + lingerNanos;
+                    while ((msg = outbox.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) != null
+                            && msg != END) {
+                        write(msg);
+                    }
+                    flush();
+                    if (msg == END) {
+                        break;
+                    }
+                }
+                catch(IOException e) {
+                    display("Exception writing to server: " + e);
+                    offline = true;
+                }
+                catch(InterruptedException e) {
+                    break;
+                }
+            }
+        }
+    }
 }
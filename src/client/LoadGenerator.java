@@ -0,0 +1,378 @@
+package client;
+
+import common.ChatMessage;
+import common.LatencyHistogram;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Headless tool that connects many simulated users to a server with ClientSide and drives a mix of chats,
+ * whispers and user lists at them. Every chat and whisper carries the time it was sent, so each copy delivered
+ * gives an end-to-end latency. The user count is ramped up in steps, and the first step whose p99 latency passes
+ * the target, or that loses messages, is reported as where the server breaks down. Each step also reports how
+ * fast its users connected, optionally while a flood of connections that never log in is opened alongside.
+ * Author: Nick Vaccarello
+ * email: nwv4110@rit.edu
+ */
+public class LoadGenerator implements common.ChatterboxProtocol {
+    // marks a load generator payload, followed by the step it was sent in and System.nanoTime() when it was sent
+    private static final String MARK = "lg:";
+    // users connecting at the same time
+    private static final int CONNECT_THREADS = 16;
+    // longest wait after a step for the last deliveries
+    private static final long DRAIN_NANOS = TimeUnit.SECONDS.toNanos(5);
+    // share of the expected deliveries that must arrive for a step to count as healthy
+    private static final double MIN_DELIVERED = 0.99;
+    // most flood connections held open at once, the oldest are closed beyond it
+    private static final int FLOOD_KEEP = 4096;
+
+    private String host;
+    // ports users connect to in turn, one for each node of a cluster
+    private int[] ports;
+    private boolean binaryWire;
+    // user counts of the ramp, each step adds users to the ones already connected
+    private int[] steps;
+    private int rooms;
+    // messages each user sends per second
+    private double rate;
+    private int seconds;
+    // percentages of chats and whispers, the rest are user lists
+    private int chatPercent;
+    private int whisperPercent;
+    private long sloNanos;
+    // connections opened per second that never log in, 0 for none
+    private int flood;
+
+    // the connected users, in the order they connected
+    private List<User> users = Collections.synchronizedList(new ArrayList<User>());
+    // users currently in each room, a chat is expected to reach all of them
+    private AtomicIntegerArray roomSizes;
+    // the step being measured, deliveries sent in another step are not counted
+    private volatile int step;
+    private volatile LatencyHistogram latency = new LatencyHistogram();
+    private LongAdder sent = new LongAdder();
+    private LongAdder expected = new LongAdder();
+    private LongAdder delivered = new LongAdder();
+    private AtomicInteger failures = new AtomicInteger();
+    // number given to the next user, so a user that failed to connect never leaves a name to reuse
+    private int nextUser;
+    // time each user of the current step took to connect and log in
+    private LatencyHistogram connectLatency = new LatencyHistogram();
+
+    /**
+     * A simulated user
+     */
+    class User implements ClientSide.Listener {
+        final String name;
+        final int room;
+        ClientSide client;
+        volatile boolean closed;
+
+        User(String name, int room) {
+            this.name = name;
+            this.room = room;
+        }
+
+        public void received(String type, String message) {
+            int mark = message.indexOf(MARK);
+            if (mark < 0) {
+                return;
+            }
+            long now = System.nanoTime();
+            int colon = message.indexOf(':', mark + MARK.length());
+            int end = colon + 1;
+            while (end < message.length() && Character.isDigit(message.charAt(end))) {
+                end++;
+            }
+            //Left over from an earlier step, its latency belongs to a different user count
+            if (Integer.parseInt(message.substring(mark + MARK.length(), colon)) != step) {
+                return;
+            }
+            delivered.increment();
+            latency.record(now - Long.parseLong(message.substring(colon + 1, end)));
+        }
+
+        public void closed() {
+            if (!closed) {
+                closed = true;
+                roomSizes.decrementAndGet(room);
+                failures.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Constructs a load generator from its options
+     * @param options-options given as --name=value, see main
+     */
+    LoadGenerator(Map<String, String> options) {
+        host = option(options, "host", "localhost");
+        String[] portList = option(options, "port", Integer.toString(PORT)).split(",");
+        ports = new int[portList.length];
+        for (int i = 0; i < portList.length; i++) {
+            ports[i] = Integer.parseInt(portList[i].trim());
+        }
+        binaryWire = !option(options, "wire", "binary").equals("legacy");
+        String[] counts = option(options, "users", "100,250,500,1000,2000").split(",");
+        steps = new int[counts.length];
+        for (int i = 0; i < counts.length; i++) {
+            steps[i] = Integer.parseInt(counts[i].trim());
+        }
+        rooms = Math.max(1, Integer.parseInt(option(options, "rooms", "10")));
+        rate = Double.parseDouble(option(options, "rate", "1"));
+        seconds = Integer.parseInt(option(options, "duration", "10"));
+        String[] mix = option(options, "mix", "80,15,5").split(",");
+        chatPercent = Integer.parseInt(mix[0].trim());
+        whisperPercent = Integer.parseInt(mix[1].trim());
+        sloNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(option(options, "slo-ms", "100")));
+        flood = Integer.parseInt(option(options, "flood", "0"));
+        roomSizes = new AtomicIntegerArray(rooms);
+    }
+
+    /**
+     * Gets an option
+     */
+    private static String option(Map<String, String> options, String name, String def) {
+        String value = options.get(name);
+        return value == null ? def : value;
+    }
+
+    /**
+     * Runs every step of the ramp and reports where latency broke down
+     */
+    void run() throws InterruptedException {
+        display("Ramping up to " + steps[steps.length - 1] + " users in " + rooms + " rooms, " + rate
+                + " messages per user per second, " + chatPercent + "% chats, " + whisperPercent + "% whispers, "
+                + (100 - chatPercent - whisperPercent) + "% user lists, " + seconds + "s per step"
+                + (flood > 0 ? ", " + flood + " connections per second that never log in" : ""));
+        if (flood > 0) {
+            startFlood();
+        }
+        int healthy = 0;
+        int broken = 0;
+        for (int count : steps) {
+            connect(count);
+            if (users.isEmpty()) {
+                display("No user could connect to " + host + ":" + Arrays.toString(ports));
+                break;
+            }
+            boolean ok = measure();
+            if (ok) {
+                healthy = users.size();
+            }
+            else {
+                broken = users.size();
+                break;
+            }
+        }
+        if (broken == 0) {
+            display("No breakdown up to " + healthy + " users");
+        }
+        else {
+            display("Latency breaks down between " + healthy + " and " + broken + " users");
+        }
+        disconnect();
+    }
+
+    /**
+     * Connects users until there are count of them, each moves to its room once logged in
+     * @param count-the number of users wanted
+     */
+    private void connect(int count) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(CONNECT_THREADS);
+        connectLatency = new LatencyHistogram();
+        final int failed = failures.get();
+        final int connected = users.size();
+        long start = System.nanoTime();
+        for (int i = users.size(); i < count; i++, nextUser++) {
+            final User user = new User("load" + nextUser, nextUser % rooms);
+            final int port = ports[nextUser % ports.length];
+            pool.execute(new Runnable() {
+                public void run() {
+                    ClientSide client = new ClientSide(host, port, user.name, binaryWire);
+                    client.pipeline(256, 8192, 1);
+                    client.setListener(user);
+                    long started = System.nanoTime();
+                    if (!client.start()) {
+                        failures.incrementAndGet();
+                        return;
+                    }
+                    connectLatency.record(System.nanoTime() - started);
+                    user.client = client;
+                    //Room 0 is the lobby everyone starts in
+                    if (user.room > 0) {
+                        client.sendMessage(new ChatMessage(JOIN_ROOM, "room" + user.room));
+                    }
+                    roomSizes.incrementAndGet(user.room);
+                    users.add(user);
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.HOURS);
+        long elapsed = System.nanoTime() - start;
+        if (users.size() > connected) {
+            display(String.format("connected=%d in %.0fms connects/s=%.0f connect p50=%.2fms p99=%.2fms max=%.2fms"
+                            + " failed=%d", users.size() - connected, millis(elapsed),
+                    (users.size() - connected) / (elapsed / 1e9), millis(connectLatency.percentile(50)),
+                    millis(connectLatency.percentile(99)), millis(connectLatency.max()), failures.get() - failed));
+        }
+        //Let the joins settle so they are not measured
+        Thread.sleep(1000);
+    }
+
+    /**
+     * Starts a thread that opens flood connections for the rest of the run, they connect and then send nothing
+     */
+    private void startFlood() {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                ArrayDeque<Socket> open = new ArrayDeque<Socket>();
+                long interval = TimeUnit.SECONDS.toNanos(1) / flood;
+                long next = System.nanoTime();
+                for (int i = 0; ; i++) {
+                    LockSupport.parkNanos(next - System.nanoTime());
+                    next += interval;
+                    try {
+                        open.add(new Socket(host, ports[i % ports.length]));
+                    } catch (IOException e) {
+                        //Refused or reset, the server is shedding them; keep going
+                    }
+                    if (open.size() > FLOOD_KEEP) {
+                        try {
+                            open.poll().close();
+                        } catch (IOException e) {
+                        }
+                    }
+                }
+            }
+        }, "load-flood");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Drives the mix at the connected users for one step and reports it
+     * @return false if the p99 latency passed the target, messages were lost or users were disconnected
+     */
+    private boolean measure() {
+        step++;
+        latency = new LatencyHistogram();
+        sent.reset();
+        expected.reset();
+        delivered.reset();
+        int failed = failures.get();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int count = users.size();
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / (rate * count));
+        long start = System.nanoTime();
+        long next = start;
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        long now;
+        while ((now = System.nanoTime()) < end) {
+            if (now < next) {
+                LockSupport.parkNanos(next - now);
+                continue;
+            }
+            //Too far behind to catch up without a burst, just carry on from here
+            next = Math.max(next + interval, now - TimeUnit.MILLISECONDS.toNanos(100));
+            User user = users.get(random.nextInt(count));
+            if (user.closed) {
+                continue;
+            }
+            int roll = random.nextInt(100);
+            String payload = MARK + step + ":" + System.nanoTime();
+            if (roll < chatPercent) {
+                expected.add(roomSizes.get(user.room));
+                user.client.sendMessage(new ChatMessage(SEND_CHAT, " " + payload));
+            }
+            else if (roll < chatPercent + whisperPercent) {
+                //The recipient gets the whisper and the sender gets it back as sent
+                expected.add(2);
+                user.client.sendMessage(new ChatMessage(SEND_WHISPER,
+                        users.get(random.nextInt(count)).name + " " + payload));
+            }
+            else {
+                user.client.sendMessage(new ChatMessage(LIST_USERS, ""));
+            }
+            sent.increment();
+        }
+        //Wait for what is still on its way
+        long drainEnd = System.nanoTime() + DRAIN_NANOS;
+        while (delivered.sum() < expected.sum() && System.nanoTime() < drainEnd) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(50));
+        }
+        LatencyHistogram measured = latency;
+        double share = expected.sum() == 0 ? 1 : (double) delivered.sum() / expected.sum();
+        boolean ok = measured.percentile(99) <= sloNanos && share >= MIN_DELIVERED && failures.get() == failed;
+        display(String.format("users=%d sent/s=%.0f delivered/s=%.0f delivered=%.2f%% p50=%.2fms p99=%.2fms"
+                        + " p99.9=%.2fms max=%.2fms disconnects=%d%s",
+                count, sent.sum() / (double) seconds, delivered.sum() / (double) seconds, share * 100,
+                millis(measured.percentile(50)), millis(measured.percentile(99)),
+                millis(measured.percentile(99.9)), millis(measured.max()), failures.get() - failed,
+                ok ? "" : "  <- over target"));
+        return ok;
+    }
+
+    /**
+     * Converts nanoseconds to milliseconds
+     */
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    /**
+     * Disconnects every user
+     */
+    private void disconnect() {
+        synchronized (users) {
+            for (User user : users) {
+                user.closed = true;
+                user.client.sendMessage(new ChatMessage(DISCONNECT, ""));
+                user.client.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Display method for the load generator's console
+     * @param msg-The message being displayed
+     */
+    private static void display(String msg) {
+        System.out.println(msg);
+    }
+
+    /**
+     * Main method for running the load generator
+     * @param args-options such as --users=100,500,1000 --rooms=10 --rate=1 --duration=10 --mix=80,15,5
+     *            --slo-ms=100 --host=localhost --port=6789,6790 --wire=legacy --flood=200
+     */
+    public static void main(String[] args) throws InterruptedException {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            //Only accept --name=value, anything else is a typo we want to hear about
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Unrecognized option: " + arg);
+            }
+            String[] pair = arg.substring(2).split("=", 2);
+            options.put(pair[0], pair[1]);
+        }
+        new LoadGenerator(options).run();
+    }
+}
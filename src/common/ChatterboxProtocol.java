@@ -50,6 +50,57 @@ public interface ChatterboxProtocol {
      */
     public static String LIST_USERS = "list_users";
 
+    /**
+     * The protocol message sent from the client to the Chatterbox server to
+     * move to another chat room, opening it if nobody is in it yet.
+     */
+    public static String JOIN_ROOM = "join_room";
+
+    /**
+     * The protocol message sent from the client to the Chatterbox server to
+     * leave its chat room and go back to the lobby.
+     */
+    public static String LEAVE_ROOM = "leave_room";
+
+    /**
+     * The protocol message sent from the client to the Chatterbox server to
+     * list the chat rooms that are open.
+     */
+    public static String LIST_ROOMS = "list_rooms";
+
+    /**
+     * The protocol message sent from the client to the Chatterbox server to
+     * get the last messages sent to its chat room and its whispers.
+     */
+    public static String GET_HISTORY = "get_history";
+
+    /**
+     * The protocol message sent from an admin client to the Chatterbox
+     * server to get the server's metrics.
+     */
+    public static String GET_STATS = "get_stats";
+
+    /**
+     * The protocol message sent from the client to the Chatterbox server to
+     * find the recent messages of its chat room that have every word given.
+     */
+    public static String SEARCH = "search";
+
+    /**
+     * The protocol message sent both ways once the binary framing is at
+     * ACK_VERSION, saying how many messages have been received from the
+     * other side since login; one covers every message before it.
+     */
+    public static String ACK = "ack";
+
+    /**
+     * The protocol message sent from the client to the Chatterbox server
+     * instead of CONNECT once the binary framing is at RESUME_VERSION, to
+     * pick up a session whose connection dropped; it carries the session's
+     * token and how many messages the client received before.
+     */
+    public static String RESUME = "resume";
+
     //
     // SERVER MESSAGES - sent from server to client
     //
@@ -91,6 +142,31 @@ public interface ChatterboxProtocol {
      */
     public static String USERS = "users";
 
+    /**
+     * The protocol message sent from the Chatterbox server to client to
+     * respond to a request for a list of chat rooms.
+     */
+    public static String ROOMS = "rooms";
+
+    /**
+     * The protocol message sent from the Chatterbox server to client to
+     * respond to a request for history or a search, one message at a time.
+     */
+    public static String HISTORY = "history";
+
+    /**
+     * The protocol message sent from the Chatterbox server to client to
+     * respond to a request for the server's metrics.
+     */
+    public static String STATS = "stats";
+
+    /**
+     * The protocol message sent from the Chatterbox server to client once
+     * it has logged in or resumed at RESUME_VERSION, carrying the token the
+     * client resumes its session with.
+     */
+    public static String SESSION = "session";
+
     /**
      * The protocol message sent from the Chatterbox server to client to
      * notify the client that a new user has joined the chat room.
@@ -0,0 +1,94 @@
+package common;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * Histogram of latencies in nanoseconds with log-linear buckets: every power of two is split into 32 buckets, so
+ * any recorded value is reported within about 3% whatever its size. Recording is a couple of shifts and an atomic
+ * increment, it never allocates and never locks. The server times commands with it and the load generator times
+ * deliveries.
+ * Author: Nick Vaccarello
+ * email: nwv4110@rit.edu
+ */
+public class LatencyHistogram {
+    // bits of precision kept below the leading bit
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    // counts per bucket, values below SUB_BUCKETS have a bucket each
+    private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS) * SUB_BUCKETS);
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Records a latency
+     * @param nanos-the latency, negative values count as zero
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(index(value));
+        max.accumulate(value);
+    }
+
+    /**
+     * Gets the bucket a value falls in
+     */
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    /**
+     * Gets the largest value that falls in a bucket
+     */
+    static long highest(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long sub = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /**
+     * Gets the number of latencies recorded
+     */
+    public long count() {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * Gets a percentile of the latencies recorded so far
+     * @param percentile-between 0 and 100
+     * @return the latency in nanoseconds at or below which that share of latencies fell, 0 if none were recorded
+     */
+    public long percentile(double percentile) {
+        long total = count();
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highest(i), max());
+            }
+        }
+        return max();
+    }
+
+    /**
+     * Gets the largest latency recorded
+     */
+    public long max() {
+        return max.get();
+    }
+}
@@ -0,0 +1,69 @@
+package common;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+/**
+ * Builds the TLS contexts for the server and the client from PKCS12 key stores, such as one made with keytool.
+ * A context keeps the sessions it has negotiated, so one context shared by every connection lets a client that
+ * reconnects resume its session instead of doing the full handshake again.
+ * Author: Nick Vaccarello
+ * email: nwv4110@rit.edu
+ */
+public class Tls {
+    /**
+     * Builds the server's context from the key store holding its certificate and private key
+     * @param keyStore-path of the PKCS12 key store
+     * @param password-password of the key store and of the key in it
+     * @param sessionCache-most sessions kept for clients to resume, 0 for no limit
+     * @param sessionTimeout-seconds a session may be resumed for
+     */
+    public static SSLContext server(String keyStore, String password, int sessionCache, int sessionTimeout)
+            throws IOException, GeneralSecurityException {
+        KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keys.init(load(keyStore, password), password.toCharArray());
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keys.getKeyManagers(), null, null);
+        context.getServerSessionContext().setSessionCacheSize(sessionCache);
+        context.getServerSessionContext().setSessionTimeout(sessionTimeout);
+        return context;
+    }
+
+    /**
+     * Builds a client's context
+     * @param trustStore-path of the PKCS12 store of certificates to trust, null to trust what the JVM trusts
+     * @param password-password of the trust store
+     */
+    public static SSLContext client(String trustStore, String password)
+            throws IOException, GeneralSecurityException {
+        SSLContext context = SSLContext.getInstance("TLS");
+        if (trustStore == null) {
+            context.init(null, null, null);
+            return context;
+        }
+        TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trust.init(load(trustStore, password));
+        context.init(null, trust.getTrustManagers(), null);
+        return context;
+    }
+
+    /**
+     * Reads a PKCS12 store from a file
+     */
+    private static KeyStore load(String path, String password) throws IOException, GeneralSecurityException {
+        KeyStore store = KeyStore.getInstance("PKCS12");
+        InputStream in = new FileInputStream(path);
+        try {
+            store.load(in, password.toCharArray());
+        } finally {
+            in.close();
+        }
+        return store;
+    }
+}
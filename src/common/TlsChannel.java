@@ -0,0 +1,362 @@
+package common;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A socket channel with TLS on it, driven by an SSLEngine so the same code serves a blocking channel, where reads
+ * and writes wait like a socket's, and a non-blocking one, where they only do what can be done now and the event
+ * loop comes back when the channel is ready. Reading and writing may go on at the same time from two threads, as
+ * the thread engine's reader and writer do. The server's connections use it in server mode and ChatClient's in
+ * client mode. Whether a client resumes a session or does the full handshake is up to the SSLContext the engine
+ * came from, which keeps the sessions.
+ * Author: Nick Vaccarello
+ * email: nwv4110@rit.edu
+ */
+public class TlsChannel implements ByteChannel, GatheringByteChannel {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    // ciphertext read and not yet unwrapped, and plaintext unwrapped and not yet read; guarded by reading
+    private ByteBuffer netIn;
+    private ByteBuffer appIn;
+    // ciphertext wrapped and not yet written; guarded by writing
+    private ByteBuffer netOut;
+    // reading may wrap a handshake message, so it may take writing too, never the other way round
+    private final ReentrantLock reading = new ReentrantLock();
+    private final ReentrantLock writing = new ReentrantLock();
+    private volatile boolean handshaken;
+    // set once the other side has closed, guarded by reading
+    private boolean eof;
+
+    /**
+     * Wraps a connected channel and starts the handshake; in server mode nothing is sent until the client's hello
+     * arrives
+     * @param channel-the channel, blocking or not
+     * @param engine-an engine in server or client mode
+     */
+    public TlsChannel(SocketChannel channel, SSLEngine engine) throws SSLException {
+        this.channel = channel;
+        this.engine = engine;
+        int packet = engine.getSession().getPacketBufferSize();
+        netIn = ByteBuffer.allocate(packet);
+        appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+        netOut = ByteBuffer.allocate(packet);
+        engine.beginHandshake();
+    }
+
+    /**
+     * Moves the handshake on as far as it goes without waiting; on a blocking channel that is to the end
+     * @return true once the handshake is done
+     */
+    public boolean handshake() throws IOException {
+        if (handshaken) {
+            return true;
+        }
+        reading.lock();
+        try {
+            while (!handshaken) {
+                switch (engine.getHandshakeStatus()) {
+                    case NEED_TASK:
+                        runTasks();
+                        break;
+                    case NEED_WRAP:
+                        if (!wrapHandshake()) {
+                            return false;
+                        }
+                        break;
+                    case NEED_UNWRAP:
+                        if (!unwrap()) {
+                            return false;
+                        }
+                        if (eof) {
+                            throw new EOFException("Closed during the TLS handshake");
+                        }
+                        break;
+                    default:
+                        handshaken = true;
+                }
+            }
+            return true;
+        } finally {
+            reading.unlock();
+        }
+    }
+
+    /**
+     * Whether the handshake is still going, nothing written goes out until it is done
+     */
+    public boolean handshaking() {
+        return !handshaken;
+    }
+
+    /**
+     * Whether ciphertext is waiting for the channel to take it
+     */
+    public boolean flushing() {
+        writing.lock();
+        try {
+            return netOut.position() > 0;
+        } finally {
+            writing.unlock();
+        }
+    }
+
+    /**
+     * Whether bytes have been read from the channel that have not been read from this channel yet, a selector
+     * will not say so since they are no longer in the socket
+     */
+    public boolean buffered() {
+        reading.lock();
+        try {
+            return appIn.position() > 0 || netIn.position() > 0;
+        } finally {
+            reading.unlock();
+        }
+    }
+
+    /**
+     * Moves the handshake on and writes the ciphertext the channel did not take before
+     * @return false if some is still waiting
+     */
+    public boolean flush() throws IOException {
+        handshake();
+        writing.lock();
+        try {
+            return flushNet();
+        } finally {
+            writing.unlock();
+        }
+    }
+
+    /**
+     * Reads plaintext, doing the handshake first
+     * @return the bytes read, 0 if none could be without waiting, -1 once the other side has closed
+     */
+    public int read(ByteBuffer dst) throws IOException {
+        if (!handshake()) {
+            return 0;
+        }
+        reading.lock();
+        try {
+            while (appIn.position() == 0 && !eof) {
+                if (!unwrap()) {
+                    return 0;
+                }
+                //Messages after the handshake, such as a key update, may need an answer
+                SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+                if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    runTasks();
+                }
+                else if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                    wrapHandshake();
+                }
+            }
+            if (appIn.position() == 0) {
+                return -1;
+            }
+            appIn.flip();
+            int count = Math.min(dst.remaining(), appIn.remaining());
+            int limit = appIn.limit();
+            appIn.limit(appIn.position() + count);
+            dst.put(appIn);
+            appIn.limit(limit);
+            appIn.compact();
+            return count;
+        } finally {
+            reading.unlock();
+        }
+    }
+
+    /**
+     * Writes plaintext, doing the handshake first
+     * @return the bytes written, which may be fewer than asked on a non-blocking channel
+     */
+    public int write(ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[] {src}, 0, 1);
+    }
+
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    /**
+     * Wraps plaintext a record at a time and writes it. On a non-blocking channel it stops at the first record the
+     * channel does not take all of; that record counts as written and the rest of it goes out with the next
+     * write or flush.
+     * @return the plaintext bytes written
+     */
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        if (!handshake()) {
+            return 0;
+        }
+        writing.lock();
+        try {
+            if (!flushNet()) {
+                return 0;
+            }
+            long written = 0;
+            while (hasRemaining(srcs, offset, length)) {
+                SSLEngineResult result = engine.wrap(srcs, offset, length, netOut);
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    netOut = grow(netOut, engine.getSession().getPacketBufferSize());
+                    continue;
+                }
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    throw new ClosedChannelException();
+                }
+                written += result.bytesConsumed();
+                if (!flushNet()) {
+                    break;
+                }
+            }
+            return written;
+        } finally {
+            writing.unlock();
+        }
+    }
+
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * Closes the channel, telling the other side first if that can be done without waiting; a writer blocked on the
+     * socket is not waited for
+     */
+    public void close() throws IOException {
+        engine.closeOutbound();
+        if (!channel.isBlocking() && writing.tryLock()) {
+            try {
+                if (flushNet()) {
+                    engine.wrap(EMPTY, netOut);
+                    flushNet();
+                }
+            } catch (IOException e) {
+                //Closing anyway
+            } finally {
+                writing.unlock();
+            }
+        }
+        channel.close();
+    }
+
+    /**
+     * Unwraps what has arrived into appIn, reading from the channel whenever a whole record is not there yet
+     * @return false if that needs bytes the channel does not have yet
+     */
+    private boolean unwrap() throws IOException {
+        while (true) {
+            netIn.flip();
+            SSLEngineResult result;
+            try {
+                result = engine.unwrap(netIn, appIn);
+            } finally {
+                netIn.compact();
+            }
+            switch (result.getStatus()) {
+                case BUFFER_OVERFLOW:
+                    //Let the reader take what is there before unwrapping more
+                    if (appIn.position() > 0) {
+                        return true;
+                    }
+                    appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+                    break;
+                case BUFFER_UNDERFLOW:
+                    if (!netIn.hasRemaining()) {
+                        netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+                    }
+                    int count = channel.read(netIn);
+                    if (count < 0) {
+                        eof = true;
+                        return true;
+                    }
+                    if (count == 0) {
+                        return false;
+                    }
+                    break;
+                case CLOSED:
+                    eof = true;
+                    return true;
+                default:
+                    return true;
+            }
+        }
+    }
+
+    /**
+     * Wraps and writes a handshake message
+     * @return false if the channel did not take all of it
+     */
+    private boolean wrapHandshake() throws IOException {
+        writing.lock();
+        try {
+            if (!flushNet()) {
+                return false;
+            }
+            while (engine.wrap(EMPTY, netOut).getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                netOut = grow(netOut, engine.getSession().getPacketBufferSize());
+            }
+            return flushNet();
+        } finally {
+            writing.unlock();
+        }
+    }
+
+    /**
+     * Writes the wrapped ciphertext, the caller holds writing
+     * @return false if the channel did not take all of it
+     */
+    private boolean flushNet() throws IOException {
+        netOut.flip();
+        try {
+            while (netOut.hasRemaining()) {
+                if (channel.write(netOut) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            netOut.compact();
+        }
+    }
+
+    /**
+     * Runs the engine's slow work, checking certificates and keys, on the calling thread
+     */
+    private void runTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] srcs, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (srcs[i].hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copies a buffer being filled into a bigger one, at least the size the engine asks for
+     */
+    private static ByteBuffer grow(ByteBuffer buffer, int size) {
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(size, buffer.capacity() * 2));
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+}
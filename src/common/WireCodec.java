@@ -0,0 +1,377 @@
+package common;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compact binary framing for Chatterbox messages. Every frame is a one byte opcode for the protocol message, a
+ * varint payload length and the payload in UTF-8. Clients ask for it with a hello right after connecting and fall
+ * back to the object stream format when the server does not answer. From version 2 a payload of DEFLATE_MIN bytes
+ * or more may be deflated, which is marked by the high bit of the opcode.
+ * Author: Nick Vaccarello
+ * email: nwv4110@rit.edu
+ */
+public class WireCodec implements ChatterboxProtocol {
+    /**
+     * Version of the framing this build speaks.
+     */
+    public static final int VERSION = 5;
+
+    /**
+     * First version of the framing in which payloads may be deflated.
+     */
+    public static final int DEFLATE_VERSION = 2;
+
+    /**
+     * Smallest payload worth deflating, shorter ones always go as they are.
+     */
+    public static final int DEFLATE_MIN = 512;
+
+    /**
+     * First version of the framing in which each side acknowledges what it has received.
+     */
+    public static final int ACK_VERSION = 3;
+
+    /**
+     * First version of the framing in which a client whose connection dropped may resume its session.
+     */
+    public static final int RESUME_VERSION = 4;
+
+    /**
+     * First version of the framing in which the server says CONNECTED once a login or resume is done, and
+     * acknowledges the commands before each one it answers, so every answer can be matched to its command.
+     */
+    public static final int REPLY_VERSION = 5;
+
+    /**
+     * First bytes of a hello and of its answer. An object stream always starts with 0xACED, so the server can tell
+     * the two formats apart from the first byte a client sends.
+     */
+    public static final byte[] MAGIC = {'C', 'B', 'X'};
+
+    /**
+     * Length of a hello or its answer: the magic followed by one version byte.
+     */
+    public static final int HELLO_LENGTH = MAGIC.length + 1;
+
+    /**
+     * The object stream header the server writes first, so clients of either format can read it.
+     */
+    public static final byte[] STREAM_HEADER = {(byte) 0xac, (byte) 0xed, 0x00, 0x05};
+
+    /**
+     * Largest payload accepted in a single frame.
+     */
+    public static final int MAX_PAYLOAD = 1 << 20;
+
+    // set on the opcode of a frame whose payload is deflated
+    private static final int DEFLATED = 0x80;
+
+    // protocol messages indexed by opcode, opcode 0 is unused so a zeroed buffer never decodes; new messages are
+    // added at the end so existing opcodes never change
+    private static final String[] TYPES = {
+            null, CONNECT, DISCONNECT, SEND_CHAT, SEND_WHISPER, LIST_USERS, CONNECTED, DISCONNECTED,
+            CHAT_RECEIVED, WHISPER_RECEIVED, WHISPER_SENT, USERS, USER_JOINED, USER_LEFT, ERROR, FATAL_ERROR,
+            JOIN_ROOM, LEAVE_ROOM, LIST_ROOMS, ROOMS, GET_HISTORY, HISTORY, GET_STATS, STATS, ACK,
+            RESUME, SESSION, SEARCH
+    };
+
+    /**
+     * Gets the opcode of a protocol message
+     * @param type-one of the ChatterboxProtocol messages
+     * @return the opcode
+     */
+    public static byte opcode(String type) {
+        for (int i = 1; i < TYPES.length; i++) {
+            if (TYPES[i].equals(type)) {
+                return (byte) i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown protocol message: " + type);
+    }
+
+    /**
+     * Gets the protocol message of an opcode
+     * @param opcode-the opcode read from a frame
+     * @return the protocol message
+     * @throws StreamCorruptedException if the opcode is unknown
+     */
+    public static String type(int opcode) throws StreamCorruptedException {
+        if (opcode <= 0 || opcode >= TYPES.length) {
+            throw new StreamCorruptedException("Unknown opcode: " + opcode);
+        }
+        return TYPES[opcode];
+    }
+
+    /**
+     * Builds a hello, or the answer to one
+     * @param version-the version offered, or the version chosen by the server; 0 refuses
+     */
+    public static byte[] hello(int version) {
+        byte[] hello = new byte[HELLO_LENGTH];
+        System.arraycopy(MAGIC, 0, hello, 0, MAGIC.length);
+        hello[MAGIC.length] = (byte) version;
+        return hello;
+    }
+
+    /**
+     * Reads the version out of a hello or its answer
+     * @param hello-the bytes received
+     * @return the version
+     * @throws StreamCorruptedException if the bytes are not a hello
+     */
+    public static int helloVersion(byte[] hello) throws StreamCorruptedException {
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (hello[i] != MAGIC[i]) {
+                throw new StreamCorruptedException("Not a Chatterbox hello");
+            }
+        }
+        return hello[MAGIC.length] & 0xff;
+    }
+
+    /**
+     * Encodes a frame
+     * @param type-one of the ChatterboxProtocol messages
+     * @param message-the payload
+     * @return the whole frame
+     */
+    public static byte[] encode(String type, String message) {
+        return encode(type, message, null);
+    }
+
+    /**
+     * Encodes a frame, deflating the payload if it is long enough and deflating makes it shorter
+     * @param type-one of the ChatterboxProtocol messages
+     * @param message-the payload
+     * @param deflater-reused for every frame of a connection, null to never deflate
+     * @return the whole frame
+     */
+    public static byte[] encode(String type, String message, Deflater deflater) {
+        byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+        int opcode = opcode(type);
+        if (deflater != null && payload.length >= DEFLATE_MIN) {
+            byte[] deflated = deflate(payload, deflater);
+            if (deflated != null) {
+                payload = deflated;
+                opcode |= DEFLATED;
+            }
+        }
+        ByteBuffer frame = ByteBuffer.allocate(1 + varintLength(payload.length) + payload.length);
+        frame.put((byte) opcode);
+        putVarint(frame, payload.length);
+        frame.put(payload);
+        return frame.array();
+    }
+
+    /**
+     * Deflates a payload
+     * @return the deflated bytes, or null if they are no shorter than the payload
+     */
+    private static byte[] deflate(byte[] payload, Deflater deflater) {
+        deflater.reset();
+        deflater.setInput(payload);
+        deflater.finish();
+        byte[] out = new byte[payload.length - 1];
+        int length = 0;
+        while (!deflater.finished() && length < out.length) {
+            length += deflater.deflate(out, length, out.length - length);
+        }
+        return deflater.finished() ? Arrays.copyOf(out, length) : null;
+    }
+
+    /**
+     * Inflates a deflated payload, refusing one that would grow past MAX_PAYLOAD
+     * @param in-the deflated bytes
+     * @param inflater-reused for every frame of a connection
+     * @return the payload
+     */
+    private static String inflate(byte[] in, int offset, int length, Inflater inflater)
+            throws StreamCorruptedException {
+        if (inflater == null) {
+            throw new StreamCorruptedException("Deflated frame on a connection that did not negotiate deflate");
+        }
+        inflater.reset();
+        inflater.setInput(in, offset, length);
+        byte[] out = new byte[Math.min(Math.max(length * 4, 1024), MAX_PAYLOAD)];
+        int size = 0;
+        try {
+            while (!inflater.finished()) {
+                if (size == out.length) {
+                    if (out.length >= MAX_PAYLOAD) {
+                        throw new StreamCorruptedException("Deflated frame too long");
+                    }
+                    out = Arrays.copyOf(out, Math.min(out.length * 2, MAX_PAYLOAD));
+                }
+                int count = inflater.inflate(out, size, out.length - size);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new StreamCorruptedException("Truncated deflated frame");
+                }
+                size += count;
+            }
+        } catch (DataFormatException e) {
+            throw new StreamCorruptedException("Malformed deflated frame: " + e.getMessage());
+        }
+        return new String(out, 0, size, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes a frame, the caller flushes
+     * @param out-stream to write to
+     * @param type-one of the ChatterboxProtocol messages
+     * @param message-the payload
+     */
+    public static void write(OutputStream out, String type, String message) throws IOException {
+        out.write(encode(type, message));
+    }
+
+    /**
+     * Writes a frame, deflating a long payload, the caller flushes
+     * @param out-stream to write to
+     * @param type-one of the ChatterboxProtocol messages
+     * @param message-the payload
+     * @param deflater-reused for every frame of a connection, null to never deflate
+     */
+    public static void write(OutputStream out, String type, String message, Deflater deflater) throws IOException {
+        out.write(encode(type, message, deflater));
+    }
+
+    /**
+     * Reads a whole frame, blocking until it has arrived
+     * @param in-stream to read from
+     * @return the frame as a ChatMessage
+     * @throws EOFException if the stream ends
+     */
+    public static ChatMessage read(InputStream in) throws IOException {
+        return read(in, null);
+    }
+
+    /**
+     * Reads a whole frame, inflating its payload if it was deflated, blocking until it has arrived
+     * @param in-stream to read from
+     * @param inflater-reused for every frame of a connection, null if deflate was not negotiated
+     * @return the frame as a ChatMessage
+     * @throws EOFException if the stream ends
+     */
+    public static ChatMessage read(InputStream in, Inflater inflater) throws IOException {
+        int opcode = in.read();
+        if (opcode < 0) {
+            throw new EOFException();
+        }
+        String type = type(opcode & ~DEFLATED);
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            if (shift > 28) {
+                throw new StreamCorruptedException("Malformed length");
+            }
+            length |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        checkLength(length);
+        byte[] payload = new byte[length];
+        new DataInputStream(in).readFully(payload);
+        if ((opcode & DEFLATED) != 0) {
+            return new ChatMessage(type, inflate(payload, 0, length, inflater));
+        }
+        return new ChatMessage(type, new String(payload, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Decodes the next frame in the buffer. The buffer position is only moved when a whole frame was decoded.
+     * @param in-buffer in read mode holding the bytes received so far
+     * @return the frame as a ChatMessage, or null if more bytes are needed
+     * @throws StreamCorruptedException if the bytes are not a frame
+     */
+    public static ChatMessage decode(ByteBuffer in) throws StreamCorruptedException {
+        return decode(in, null);
+    }
+
+    /**
+     * Decodes the next frame in the buffer, inflating its payload if it was deflated. The buffer position is only
+     * moved when a whole frame was decoded.
+     * @param in-buffer in read mode holding the bytes received so far
+     * @param inflater-reused for every frame of a connection, null if deflate was not negotiated
+     * @return the frame as a ChatMessage, or null if more bytes are needed
+     * @throws StreamCorruptedException if the bytes are not a frame
+     */
+    public static ChatMessage decode(ByteBuffer in, Inflater inflater) throws StreamCorruptedException {
+        int start = in.position();
+        try {
+            int opcode = in.get() & 0xff;
+            String type = type(opcode & ~DEFLATED);
+            int length = getVarint(in);
+            checkLength(length);
+            if (in.remaining() < length) {
+                in.position(start);
+                return null;
+            }
+            String message = (opcode & DEFLATED) != 0
+                    ? inflate(in.array(), in.arrayOffset() + in.position(), length, inflater)
+                    : new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+            return new ChatMessage(type, message);
+        } catch (BufferUnderflowException e) {
+            in.position(start);
+            return null;
+        }
+    }
+
+    /**
+     * Rejects lengths no client or server should send
+     */
+    private static void checkLength(int length) throws StreamCorruptedException {
+        if (length < 0 || length > MAX_PAYLOAD) {
+            throw new StreamCorruptedException("Frame too long: " + length);
+        }
+    }
+
+    /**
+     * Number of bytes a value takes as a varint
+     */
+    static int varintLength(int value) {
+        int length = 1;
+        while ((value & ~0x7f) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Writes an unsigned varint, seven bits per byte with the high bit set on all but the last
+     */
+    static void putVarint(ByteBuffer out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    /**
+     * Reads an unsigned varint
+     * @throws BufferUnderflowException if the buffer ends inside the varint
+     */
+    static int getVarint(ByteBuffer in) throws StreamCorruptedException {
+        int value = 0;
+        for (int shift = 0; shift <= 28; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("Malformed length");
+    }
+}
@@ -0,0 +1,154 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The frames written to one client that it has not acknowledged yet. Frames are numbered in the order they are
+ * written, so a client acknowledges by saying how many it has received and one acknowledgement covers every frame
+ * up to it. The window is a fixed ring and also bounds what is in flight: once it is full the engine stops writing
+ * to the client until an acknowledgement makes room, and anything more waits in the outbound queue, where the slow
+ * consumer policy applies.
+ * Author: Nick Vaccarello
+ * email: nwv4110@rit.edu
+ */
+class AckWindow {
+    // slots a window starts with, it doubles as a client falls behind
+    private static final int INITIAL_CAPACITY = 64;
+
+    // frames by number, the oldest are overwritten
+    private Frame[] frames;
+    // most frames kept, a power of two
+    private final int capacity;
+    // number the next frame written gets, frames are numbered from 1
+    private long next = 1;
+    // every frame up to this one is acknowledged or given up
+    private long acked;
+    // frames given up because the window was full
+    private long unconfirmed;
+    // set once the client is gone, so a writer waiting for room stops waiting
+    private boolean closed;
+
+    /**
+     * Constructs an empty window
+     * @param capacity-most frames kept unacknowledged, rounded up to a power of two
+     */
+    AckWindow(int capacity) {
+        this(capacity, 0);
+    }
+
+    /**
+     * Constructs an empty window for a resumed session, numbering carries on from what the client has received
+     * @param capacity-most frames kept unacknowledged, rounded up to a power of two
+     * @param received-the number of frames the client received before
+     */
+    AckWindow(int capacity, long received) {
+        this.capacity = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        frames = new Frame[Math.min(INITIAL_CAPACITY, this.capacity)];
+        next = received + 1;
+        acked = received;
+    }
+
+    /**
+     * Numbers a frame being written to the client; acknowledgements are never numbered themselves
+     * @param frame-the frame
+     */
+    synchronized void sent(Frame frame) {
+        if (frame.type.equals(common.ChatterboxProtocol.ACK)) {
+            return;
+        }
+        if (next - 1 - acked == frames.length) {
+            if (frames.length < capacity) {
+                grow();
+            }
+            //Engines wait for room first, this only happens to a frame written without asking
+            else {
+                acked++;
+                unconfirmed++;
+            }
+        }
+        frames[(int) next & (frames.length - 1)] = frame;
+        next++;
+    }
+
+    /**
+     * Doubles the ring, most clients keep up and never need more than the first few slots
+     */
+    private void grow() {
+        Frame[] bigger = new Frame[frames.length * 2];
+        for (long seq = acked + 1; seq < next; seq++) {
+            bigger[(int) seq & (bigger.length - 1)] = frames[(int) seq & (frames.length - 1)];
+        }
+        frames = bigger;
+    }
+
+    /**
+     * Lets go of every frame up to the one the client says it has received
+     * @param through-the number of frames the client has received
+     */
+    synchronized void ack(long through) {
+        through = Math.min(through, next - 1);
+        while (acked < through) {
+            acked++;
+            frames[(int) acked & (frames.length - 1)] = null;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Gets the frames written after the ones the client says it has received, to write them again
+     * @param received-the number of frames the client has received
+     */
+    synchronized List<Frame> since(long received) {
+        List<Frame> missed = new ArrayList<Frame>();
+        for (long seq = Math.max(received, acked) + 1; seq < next; seq++) {
+            missed.add(frames[(int) seq & (frames.length - 1)]);
+        }
+        return missed;
+    }
+
+    /**
+     * Whether as many frames as the window holds are waiting to be acknowledged
+     */
+    synchronized boolean full() {
+        return next - 1 - acked >= capacity;
+    }
+
+    /**
+     * Waits until the window has room for another frame or the client is gone
+     */
+    synchronized void awaitRoom() throws InterruptedException {
+        while (!closed && next - 1 - acked >= capacity) {
+            wait();
+        }
+    }
+
+    /**
+     * Wakes a writer waiting for room, the client is gone
+     */
+    synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * Gets the number of frames written and not yet acknowledged
+     */
+    synchronized int size() {
+        return (int) (next - 1 - acked);
+    }
+
+    /**
+     * Gets the number of frames the client has acknowledged
+     */
+    synchronized long acked() {
+        return acked - unconfirmed;
+    }
+
+    /**
+     * Gets the number of frames given up without being acknowledged
+     */
+    synchronized long unconfirmed() {
+        return unconfirmed;
+    }
+}
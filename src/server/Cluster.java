@@ -0,0 +1,650 @@
+package server;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Links this server to the other nodes of a cluster, so rooms, whispers and the user list span every node. Each
+ * node keeps its own users and relays what they do to the others: chats for a room, whispers for a user on another
+ * node, and users joining, moving and leaving so every node knows the whole roster.
+ *
+ * Relayed events are numbered and kept in a ring. Every peer has a sender thread that writes whatever has piled up
+ * since its last write as one batch, so a busy node sends many events per write and a slow or unreachable peer
+ * never holds up a broadcast. When a link comes back the peer says the last event it saw and the sender resumes
+ * from there, so the numbers also let the peer drop anything it is sent twice.
+ * Author: Nick Vaccarello
+ * email: nwv4110@rit.edu
+ */
+class Cluster {
+    // first bytes a node sends after connecting to a peer
+    private static final int MAGIC = 0x43425850;
+    // link frames: a batch of events, and a snapshot of the sender's users
+    private static final byte BATCH = 1;
+    private static final byte ROSTER = 2;
+    // events: a broadcast to a room, a whisper, a user joining or moving to a room, and a user leaving
+    private static final byte CHAT = 1;
+    private static final byte WHISPER = 2;
+    private static final byte JOIN = 3;
+    private static final byte LEAVE = 4;
+    // most events written to a peer in one batch
+    private static final int RELAY_BATCH = 256;
+    // wait between attempts to reach a peer that is down
+    private static final long RECONNECT_MILLIS = 1000;
+    // longest a link goes without a write, an empty batch is sent so a dead link is noticed
+    private static final long HEARTBEAT_MILLIS = 500;
+    // longest a link goes without a read, a connect takes or a write is stuck before the peer is taken for dead, a
+    // few missed heartbeats
+    private static final int LINK_TIMEOUT_MILLIS = (int) (4 * HEARTBEAT_MILLIS);
+
+    /**
+     * The output of a link to a peer, noting when a write to the socket started so the watchdog can close a link
+     * whose peer has stopped reading; a blocked write has no timeout of its own
+     */
+    private static class WatchedOutput extends FilterOutputStream {
+        final String peer;
+        final Socket socket;
+        // System.nanoTime() the write in progress started
+        volatile long since;
+        volatile boolean writing;
+
+        WatchedOutput(String peer, Socket socket) throws IOException {
+            super(socket.getOutputStream());
+            this.peer = peer;
+            this.socket = socket;
+        }
+
+        public void write(int b) throws IOException {
+            started();
+            try {
+                out.write(b);
+            } finally {
+                writing = false;
+            }
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            started();
+            try {
+                out.write(b, off, len);
+            } finally {
+                writing = false;
+            }
+        }
+
+        private void started() {
+            since = System.nanoTime();
+            writing = true;
+        }
+
+        /**
+         * Whether a write has been stuck for longer than a link may go unwritable
+         * @param now-System.nanoTime()
+         */
+        boolean stuck(long now) {
+            return writing && now - since > TimeUnit.MILLISECONDS.toNanos(LINK_TIMEOUT_MILLIS);
+        }
+    }
+
+    /**
+     * Something a user on this node did that the other nodes need to hear about
+     */
+    private static class Event {
+        final long seq;
+        final byte kind;
+        // the room of a chat or join, or the recipient of a whisper
+        final String target;
+        // the sender of a chat or whisper, or the user joining or leaving
+        final String user;
+        // the protocol message a chat is delivered as
+        final String type;
+        final String text;
+
+        Event(long seq, byte kind, String target, String user, String type, String text) {
+            this.seq = seq;
+            this.kind = kind;
+            this.target = target;
+            this.user = user;
+            this.type = type;
+            this.text = text;
+        }
+    }
+
+    /**
+     * What this node knows about another node, kept across reconnects
+     */
+    private static class Node {
+        final String name;
+        // when the node started, a restarted node numbers its events from 1 again
+        long epoch;
+        // the last event delivered from the node
+        volatile long lastSeen;
+        // the event the node's last roster snapshot was taken at, joins and leaves up to it are already in it
+        long rosterSeq;
+        // the node's users and the room each is in
+        final ConcurrentHashMap<String, String> users = new ConcurrentHashMap<String, String>();
+        // the link it is sending on, only one at a time
+        Socket link;
+
+        Node(String name) {
+            this.name = name;
+        }
+    }
+
+    // the server that delivers relayed events to its own users
+    private final ServerSide server;
+    // name of this node, unique in the cluster
+    private final String name;
+    // when this node started
+    private final long epoch = System.currentTimeMillis();
+    private final int port;
+    // addresses of the other nodes, as host:port
+    private final List<String> peers;
+    // the last events, the oldest are overwritten; guarded by this, as are head and local
+    private final Event[] ring;
+    // number the next event gets, events are numbered from 1
+    private long head = 1;
+    // this node's users and their rooms, changed together with the events announcing them
+    private final Map<String, String> local = new HashMap<String, String>();
+    // the other nodes by name
+    private final ConcurrentHashMap<String, Node> nodes = new ConcurrentHashMap<String, Node>();
+    // counts every change to the users of the other nodes, so a roster built from them can tell it is stale
+    private final AtomicLong rosterVersion = new AtomicLong();
+    // the outputs of the links this node opened, watched for writes that do not finish
+    private final Set<WatchedOutput> outputs = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Constructs this node's side of the cluster
+     * @param server-the server that delivers relayed events
+     * @param name-name of this node
+     * @param port-port the other nodes connect to
+     * @param peers-addresses of the other nodes as host:port
+     * @param buffer-most events kept for a peer that is behind or reconnecting, rounded up to a power of two
+     */
+    Cluster(ServerSide server, String name, int port, List<String> peers, int buffer) {
+        this.server = server;
+        this.name = name;
+        this.port = port;
+        this.peers = peers;
+        ring = new Event[Integer.highestOneBit(Math.max(buffer, 2) - 1) << 1];
+    }
+
+    /**
+     * Starts accepting links from the other nodes and a sender for each of them
+     * @throws IOException if the cluster port can not be opened
+     */
+    void start() throws IOException {
+        final ServerSocket serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(port));
+        daemon("chatterbox-cluster-accept", new Runnable() {
+            public void run() {
+                while (true) {
+                    try {
+                        final Socket socket = serverSocket.accept();
+                        daemon("chatterbox-cluster-in", new Runnable() {
+                            public void run() {
+                                receive(socket);
+                            }
+                        });
+                    } catch (IOException e) {
+                        server.display(ServerLog.Level.ERROR, "Cluster port closed: " + e);
+                        return;
+                    }
+                }
+            }
+        });
+        for (final String peer : peers) {
+            daemon("chatterbox-cluster-out-" + peer, new Runnable() {
+                public void run() {
+                    send(peer);
+                }
+            });
+        }
+        if (!peers.isEmpty()) {
+            daemon("chatterbox-cluster-watchdog", new Runnable() {
+                public void run() {
+                    watch();
+                }
+            });
+        }
+        server.display("Cluster node " + name + " on port " + port + ", peers " + peers + ".");
+    }
+
+    /**
+     * Closes any link whose peer has left a write stuck for LINK_TIMEOUT_MILLIS, which fails the write so its sender
+     * reconnects
+     */
+    private void watch() {
+        while (true) {
+            try {
+                Thread.sleep(HEARTBEAT_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.nanoTime();
+            for (WatchedOutput output : outputs) {
+                if (output.stuck(now)) {
+                    server.display(ServerLog.Level.WARN, "Cluster peer " + output.peer + " stopped reading for "
+                            + LINK_TIMEOUT_MILLIS + " ms, closing the link.");
+                    outputs.remove(output);
+                    try {
+                        output.socket.close();
+                    } catch (IOException e) {
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts a daemon thread
+     */
+    private static void daemon(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Relays a broadcast to the room of the same name on every other node
+     * @param room-name of the room
+     * @param from-userName of the sender
+     * @param type-the protocol message it is delivered as
+     * @param text-the message as it was delivered here
+     */
+    void chat(String room, String from, String type, String text) {
+        append(CHAT, room, from, type, text);
+    }
+
+    /**
+     * Relays a whisper to the node the recipient is on
+     * @param to-userName of the recipient
+     * @param from-userName of the sender
+     * @param text-the message as it is delivered
+     * @return false if no other node has the recipient
+     */
+    boolean whisper(String to, String from, String text) {
+        if (nodeOf(to) == null) {
+            return false;
+        }
+        append(WHISPER, to, from, null, text);
+        return true;
+    }
+
+    /**
+     * Tells the other nodes a user of this node is now in a room, after logging in or moving
+     * @param userName-the user
+     * @param room-name of the room
+     */
+    void joined(String userName, String room) {
+        append(JOIN, room, userName, null, null);
+    }
+
+    /**
+     * Tells the other nodes a user of this node has left
+     * @param userName-the user
+     */
+    void left(String userName) {
+        append(LEAVE, null, userName, null, null);
+    }
+
+    /**
+     * Numbers an event, keeps it in the ring and wakes the senders
+     */
+    private synchronized void append(byte kind, String target, String user, String type, String text) {
+        if (kind == JOIN) {
+            local.put(user, target);
+        }
+        else if (kind == LEAVE) {
+            local.remove(user);
+        }
+        ring[(int) head & (ring.length - 1)] = new Event(head, kind, target, user, type, text);
+        head++;
+        notifyAll();
+    }
+
+    /**
+     * Gets the node another user is on
+     * @param userName-the user
+     * @return the node's name, or null if no other node has the user
+     */
+    String nodeOf(String userName) {
+        for (Node node : nodes.values()) {
+            if (node.users.containsKey(userName)) {
+                return node.name;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the users of the other nodes
+     * @return userName to the name of its node
+     */
+    Map<String, String> remoteUsers() {
+        Map<String, String> users = new HashMap<String, String>();
+        for (Node node : nodes.values()) {
+            for (String userName : node.users.keySet()) {
+                users.put(userName, node.name);
+            }
+        }
+        return users;
+    }
+
+    /**
+     * Gets a number that changes whenever a user of another node joins, moves or leaves
+     */
+    long rosterVersion() {
+        return rosterVersion.get();
+    }
+
+    /**
+     * Gets how many users of the other nodes are in each room
+     */
+    Map<String, Integer> remoteRooms() {
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (Node node : nodes.values()) {
+            for (String room : node.users.values()) {
+                Integer count = counts.get(room);
+                counts.put(room, count == null ? 1 : count + 1);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Keeps a link open to one peer, sending it every event, and reconnects whenever the link breaks
+     * @param peer-address of the peer as host:port
+     */
+    private void send(String peer) {
+        int colon = peer.lastIndexOf(':');
+        InetSocketAddress address = new InetSocketAddress(peer.substring(0, colon),
+                Integer.parseInt(peer.substring(colon + 1)));
+        boolean reported = false;
+        while (true) {
+            Socket socket = new Socket();
+            WatchedOutput output = null;
+            boolean linked = false;
+            try {
+                socket.connect(address, LINK_TIMEOUT_MILLIS);
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(LINK_TIMEOUT_MILLIS);
+                output = new WatchedOutput(peer, socket);
+                outputs.add(output);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output));
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                out.writeInt(MAGIC);
+                writeString(out, name);
+                out.writeLong(epoch);
+                out.flush();
+                //The peer answers with the last of our events it has seen
+                long lastSeen = in.readLong();
+                server.display("Linked to cluster peer " + peer + (lastSeen == 0 ? "."
+                        : ", resuming after event " + lastSeen + "."));
+                reported = false;
+                linked = true;
+                relay(out, lastSeen);
+            } catch (IOException e) {
+                //Only say so once, a peer that is down would fill the log every second
+                if (!reported) {
+                    server.display(ServerLog.Level.WARN, "Cluster peer " + peer + " unreachable: " + e);
+                    reported = true;
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                if (output != null) {
+                    outputs.remove(output);
+                }
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                }
+            }
+            //A link that was up is tried again at once, the peer may only have dropped the connection
+            try {
+                Thread.sleep(linked ? 0 : RECONNECT_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes a roster snapshot and then every event the peer has not seen, in batches, until the link breaks. A
+     * link with nothing to send gets an empty batch every HEARTBEAT_MILLIS.
+     * @param out-the link
+     * @param lastSeen-the last event the peer saw, 0 if it has seen none of this node's events
+     */
+    private void relay(DataOutputStream out, long lastSeen) throws IOException, InterruptedException {
+        Map<String, String> roster;
+        long rosterSeq;
+        long cursor;
+        synchronized (this) {
+            roster = new HashMap<String, String>(local);
+            rosterSeq = head - 1;
+            //A peer new to this node gets the roster and what happens from now on, not old chats
+            cursor = lastSeen == 0 ? head : lastSeen + 1;
+        }
+        out.writeByte(ROSTER);
+        out.writeLong(rosterSeq);
+        out.writeInt(roster.size());
+        for (Map.Entry<String, String> user : roster.entrySet()) {
+            writeString(out, user.getKey());
+            writeString(out, user.getValue());
+        }
+        out.flush();
+        List<Event> batch = new ArrayList<Event>(RELAY_BATCH);
+        while (true) {
+            long lost = 0;
+            synchronized (this) {
+                if (cursor >= head) {
+                    wait(HEARTBEAT_MILLIS);
+                }
+                //The ring has moved past what the peer saw, those events are gone
+                long oldest = Math.max(1, head - ring.length);
+                if (cursor < oldest) {
+                    lost = oldest - cursor;
+                    cursor = oldest;
+                }
+                while (cursor < head && batch.size() < RELAY_BATCH) {
+                    batch.add(ring[(int) cursor & (ring.length - 1)]);
+                    cursor++;
+                }
+            }
+            if (lost > 0) {
+                server.display(ServerLog.Level.WARN, lost + " events were lost to a cluster peer that fell behind.");
+            }
+            out.writeByte(BATCH);
+            out.writeInt(batch.size());
+            for (Event event : batch) {
+                out.writeLong(event.seq);
+                out.writeByte(event.kind);
+                writeString(out, event.target);
+                writeString(out, event.user);
+                writeString(out, event.type);
+                writeString(out, event.text);
+            }
+            out.flush();
+            batch.clear();
+        }
+    }
+
+    /**
+     * Reads what a peer sends until its link breaks, delivering its events here
+     * @param socket-the link the peer opened
+     */
+    private void receive(Socket socket) {
+        Node node = null;
+        try {
+            //A peer that stops sending, even heartbeats, is unlinked rather than waited on forever
+            socket.setSoTimeout(LINK_TIMEOUT_MILLIS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            if (in.readInt() != MAGIC) {
+                throw new StreamCorruptedException("Not a Chatterbox cluster link");
+            }
+            node = link(readString(in), in.readLong(), socket);
+            out.writeLong(node.lastSeen);
+            out.flush();
+            server.display("Cluster peer " + node.name + " linked.");
+            while (true) {
+                byte frame = in.readByte();
+                if (frame == ROSTER) {
+                    long rosterSeq = in.readLong();
+                    Map<String, String> users = new HashMap<String, String>();
+                    for (int i = in.readInt(); i > 0; i--) {
+                        users.put(readString(in), readString(in));
+                    }
+                    node.rosterSeq = rosterSeq;
+                    node.users.keySet().retainAll(users.keySet());
+                    node.users.putAll(users);
+                    rosterVersion.incrementAndGet();
+                }
+                else if (frame == BATCH) {
+                    for (int i = in.readInt(); i > 0; i--) {
+                        deliver(node, in.readLong(), in.readByte(), readString(in), readString(in), readString(in),
+                                readString(in));
+                    }
+                }
+                else {
+                    throw new StreamCorruptedException("Unknown cluster frame: " + frame);
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            server.display(ServerLog.Level.WARN, "Cluster link " + (node == null ? "" : "from " + node.name + " ")
+                    + "timed out, nothing was heard for " + LINK_TIMEOUT_MILLIS + " ms.");
+        } catch (IOException e) {
+            server.display(ServerLog.Level.WARN, "Cluster link " + (node == null ? "" : "from " + node.name + " ")
+                    + "closed: " + e);
+        } finally {
+            if (node != null) {
+                unlink(node, socket);
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * Records that a peer has linked, closing any older link of the same node
+     * @param nodeName-name of the peer
+     * @param nodeEpoch-when the peer started
+     * @param socket-the new link
+     * @return what is known about the peer
+     */
+    private Node link(String nodeName, long nodeEpoch, Socket socket) throws IOException {
+        if (nodeName.equals(name)) {
+            throw new StreamCorruptedException("Cluster peer has this node's name " + name);
+        }
+        Node node = nodes.get(nodeName);
+        if (node == null) {
+            Node created = new Node(nodeName);
+            node = nodes.putIfAbsent(nodeName, created);
+            if (node == null) {
+                node = created;
+            }
+        }
+        synchronized (node) {
+            if (node.link != null) {
+                node.link.close();
+            }
+            node.link = socket;
+            //A restarted node numbers its events from the start again
+            if (node.epoch != nodeEpoch) {
+                node.epoch = nodeEpoch;
+                node.lastSeen = 0;
+                node.rosterSeq = 0;
+                node.users.clear();
+                rosterVersion.incrementAndGet();
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Forgets a peer's users once its link is gone, unless it has linked again since
+     */
+    private void unlink(Node node, Socket socket) {
+        synchronized (node) {
+            if (node.link == socket) {
+                node.link = null;
+                node.users.clear();
+                rosterVersion.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Applies one event from a peer, events already delivered are dropped
+     */
+    private void deliver(Node node, long seq, byte kind, String target, String user, String type, String text) {
+        if (seq <= node.lastSeen) {
+            return;
+        }
+        node.lastSeen = seq;
+        switch (kind) {
+            case CHAT:
+                server.relayed(target, user, type, text);
+                break;
+            case WHISPER:
+                server.relayedWhisper(target, user, text);
+                break;
+            case JOIN:
+                //Already in the roster snapshot
+                if (seq > node.rosterSeq) {
+                    node.users.put(user, target);
+                    rosterVersion.incrementAndGet();
+                }
+                break;
+            case LEAVE:
+                if (seq > node.rosterSeq) {
+                    node.users.remove(user);
+                    rosterVersion.incrementAndGet();
+                }
+                break;
+        }
+    }
+
+    /**
+     * Writes a string as its UTF-8 length and bytes, null is written as -1
+     */
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a string written by writeString
+     */
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > common.WireCodec.MAX_PAYLOAD * 4) {
+            throw new StreamCorruptedException("Cluster string too long: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
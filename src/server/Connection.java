@@ -0,0 +1,146 @@
+package server;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Date;
+import java.util.zip.Inflater;
+
+/**
+ * A connected client as seen by the server, whichever engine is serving it
+ * Author: Nick Vaccarello
+ * email: nwv4110@rit.edu
+ */
+abstract class Connection {
+    //unique id easier for disconnecting a user
+    int id;
+    //userName of the Client
+    String userName;
+    //timestamp
+    String date;
+    //messages waiting to be written to the client
+    OutboundQueue queue;
+    //whether the client negotiated the binary framing
+    volatile boolean binary;
+    //whether the client negotiated deflating long payloads, only with the binary framing
+    volatile boolean deflate;
+    //inflates the client's deflated frames, reused for every one; only the reading side touches it
+    Inflater inflater;
+    //frames written and not yet acknowledged, null unless the client negotiated acknowledgements
+    volatile AckWindow acks;
+    //commands received since login and how many of them the client was last told about, reading side only
+    long commands;
+    long commandsAcked;
+    //the chat room the client is in, null before it joins and after it leaves
+    volatile Room room;
+    //where the client connected from, null for a client that is not on a socket
+    InetAddress address;
+    //buckets the client's commands are charged to, its own and its address's, null when that limit is off
+    volatile RateLimiter.Limits userLimits;
+    volatile RateLimiter.Limits addressLimits;
+    //whether the client has been told its commands are being dropped, reading side only
+    boolean throttled;
+    //whether the client's framing lets it resume its session, set when it negotiates
+    boolean resumable;
+    //whether the client matches answers to its commands by the acknowledgements ahead of them, set when it negotiates
+    boolean replies;
+    //token the client resumes its session with, null if it was given none
+    String token;
+    //set while the client's connection is gone and its session waits for it to come back
+    volatile Sessions.Session parked;
+    //whether the client said goodbye or was sent away, its session is not kept then
+    volatile boolean quit;
+
+    /**
+     * Constructs a connection with the given id
+     * @param id-unique id of the connection
+     * @param queue-the queue its messages wait in
+     */
+    Connection(int id, OutboundQueue queue) {
+        this.id = id;
+        this.queue = queue;
+        date = new Date().toString() + "\n";
+    }
+
+    public String getuserName() {
+        return userName;
+    }
+
+    /**
+     * Method for writing a string to the clients output stream. The message is only queued, so this never waits
+     * on the client's socket.
+     * @param type-The protocol message, only sent to clients using the binary framing
+     * @param msg-The message being written
+     * @return false if the client is no longer connected or was disconnected for falling too far behind
+     */
+    boolean writeMsg(String type, String msg) {
+        return send(new Frame(type, msg, false));
+    }
+
+    /**
+     * Queues a frame that may also be going to other clients, it is encoded at most once per wire format
+     * @param frame-the frame being written
+     * @return false if the client is no longer connected or was disconnected for falling too far behind
+     */
+    boolean send(Frame frame) {
+        Sessions.Session session = parked;
+        if (session != null) {
+            return session.add(frame);
+        }
+        if (queue.offer(frame, frame.size(wire())) < 0) {
+            //Closed as the client was parked, the frame waits with the rest
+            session = parked;
+            if (session != null) {
+                return session.add(frame);
+            }
+            close();
+            return false;
+        }
+        //Parked after this read it, and the queue may have been emptied into the session before the frame arrived
+        session = parked;
+        if (session != null) {
+            Frame left;
+            while ((left = queue.poll()) != null) {
+                session.add(left);
+            }
+            return true;
+        }
+        schedule();
+        return true;
+    }
+
+    /**
+     * Gets the bytes of a frame the engine is about to write, numbering it for acknowledgement
+     * @param frame-the frame taken off the queue
+     */
+    ByteBuffer writing(Frame frame) {
+        AckWindow window = acks;
+        if (window != null) {
+            window.sent(frame);
+        }
+        return frame.buffer(wire());
+    }
+
+    /**
+     * Gets the wire format the client negotiated: Frame.LEGACY, Frame.BINARY or Frame.DEFLATE
+     */
+    int wire() {
+        return deflate ? Frame.DEFLATE : binary ? Frame.BINARY : Frame.LEGACY;
+    }
+
+    /**
+     * Gets the number of messages waiting to be written to the client
+     */
+    int queueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Makes sure the engine's writer will drain what was just queued
+     */
+    abstract void schedule();
+
+    /**
+     * Method that closes the connection
+     */
+    abstract void close();
+}
@@ -0,0 +1,151 @@
+package server;
+
+import common.WireCodec;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.Deflater;
+
+/**
+ * A message on its way to one or more clients. Each wire format is encoded at most once, however many clients the
+ * frame goes to, and every client writes its own read-only view of the same bytes. That includes the deflated
+ * form, so a long message broadcast to a room is compressed once rather than once per recipient.
+ * Author: Nick Vaccarello
+ * email: nwv4110@rit.edu
+ */
+class Frame {
+    /**
+     * The object stream format
+     */
+    static final int LEGACY = 0;
+
+    /**
+     * The binary framing
+     */
+    static final int BINARY = 1;
+
+    /**
+     * The binary framing with long payloads deflated
+     */
+    static final int DEFLATE = 2;
+
+    // serialization type code of a String, and of a String longer than 65535 bytes
+    private static final byte TC_STRING = 0x74;
+    private static final byte TC_LONGSTRING = 0x7C;
+    // deflaters waiting to be reused, each encoding borrows one so no two threads share a context
+    private static final ConcurrentLinkedQueue<Deflater> DEFLATERS = new ConcurrentLinkedQueue<Deflater>();
+
+    // the protocol message
+    final String type;
+    // the message being written
+    final String text;
+    // whether the encodings go in direct buffers, worth it for frames written to many sockets
+    private final boolean direct;
+    // the encodings by wire format, each made the first time a client of that format asks
+    private final AtomicReferenceArray<ByteBuffer> encodings = new AtomicReferenceArray<ByteBuffer>(3);
+
+    /**
+     * Constructs a frame
+     * @param type-The protocol message, only sent to clients using the binary framing
+     * @param text-The message being written
+     * @param direct-whether the encodings go in direct buffers
+     */
+    Frame(String type, String text, boolean direct) {
+        this.type = type;
+        this.text = text;
+        this.direct = direct;
+    }
+
+    /**
+     * Gets a view of the encoded frame for one client to write, the bytes themselves are shared
+     * @param wire-LEGACY, BINARY or DEFLATE, as the client negotiated
+     */
+    ByteBuffer buffer(int wire) {
+        return encoded(wire).duplicate();
+    }
+
+    /**
+     * Gets the size of the encoded frame
+     * @param wire-LEGACY, BINARY or DEFLATE, as the client negotiated
+     */
+    int size(int wire) {
+        return encoded(wire).remaining();
+    }
+
+    /**
+     * Gets the shared encoding, making it on first use
+     */
+    private ByteBuffer encoded(int wire) {
+        ByteBuffer buffer = encodings.get(wire);
+        if (buffer == null) {
+            //Too short to deflate even at three UTF-8 bytes a character, share the plain binary bytes
+            if (wire == DEFLATE && text.length() < WireCodec.DEFLATE_MIN / 3) {
+                buffer = encoded(BINARY);
+            }
+            else {
+                //Two threads may both encode, they produce the same bytes so either result is fine
+                byte[] bytes = wire == LEGACY ? legacyString(text) : wire == BINARY ? WireCodec.encode(type, text)
+                        : deflated();
+                buffer = direct ? ByteBuffer.allocateDirect(bytes.length).put(bytes) : ByteBuffer.wrap(bytes);
+                buffer.clear();
+                buffer = buffer.asReadOnlyBuffer();
+            }
+            encodings.set(wire, buffer);
+        }
+        return buffer;
+    }
+
+    /**
+     * Encodes the binary framing with a long payload deflated, borrowing a deflater from the pool
+     */
+    private byte[] deflated() {
+        Deflater deflater = DEFLATERS.poll();
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.BEST_SPEED);
+        }
+        try {
+            return WireCodec.encode(type, text, deflater);
+        } finally {
+            DEFLATERS.offer(deflater);
+        }
+    }
+
+    /**
+     * Encodes a String exactly as ObjectOutputStream.writeObject would for a String it has not written before, so
+     * the bytes do not depend on what else was written to the stream and can be shared between clients
+     * @param s-the String
+     * @return the type code, the length and the modified UTF-8 bytes
+     */
+    static byte[] legacyString(String s) {
+        int utfLength = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            utfLength += (c >= 0x0001 && c <= 0x007F) ? 1 : (c > 0x07FF ? 3 : 2);
+        }
+        boolean isLong = utfLength > 0xFFFF;
+        ByteBuffer out = ByteBuffer.allocate((isLong ? 9 : 3) + utfLength);
+        if (isLong) {
+            out.put(TC_LONGSTRING).putLong(utfLength);
+        }
+        else {
+            out.put(TC_STRING).putShort((short) utfLength);
+        }
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                out.put((byte) c);
+            }
+            else if (c > 0x07FF) {
+                out.put((byte) (0xE0 | ((c >> 12) & 0x0F)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            }
+            else {
+                out.put((byte) (0xC0 | ((c >> 6) & 0x1F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+        return out.array();
+    }
+}
@@ -0,0 +1,151 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The connections that have been accepted but have not logged in yet. Each gets a deadline to send its hello and
+ * userName, after which it is closed, and only so many may be logging in at once: when another connection arrives
+ * the oldest is closed to make room, since a client that is really logging in finishes in milliseconds and one that
+ * has been waiting longest is the likeliest to be stuck or trickling. The acceptor only records the connection and
+ * moves on; the engine does the handshake itself.
+ * Author: Nick Vaccarello
+ * email: nwv4110@rit.edu
+ */
+class Handshakes implements Runnable {
+    // least time between sweeps, so a flood of expiring connections is closed in batches
+    private static final long SWEEP_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    // connections logging in and their deadlines in System.nanoTime(), oldest first; guarded by this
+    private final LinkedHashMap<Connection, Long> pending = new LinkedHashMap<Connection, Long>();
+    private final long timeoutNanos;
+    private final int max;
+    private final ServerSide server;
+    // connections closed for running out of time and to make room for newer ones
+    private long timedOut;
+    private long evicted;
+
+    /**
+     * Constructs an empty set of handshakes
+     * @param server-the server, for its log
+     * @param timeoutMillis-how long a connection has to log in
+     * @param max-most connections logging in at once
+     */
+    Handshakes(ServerSide server, int timeoutMillis, int max) {
+        this.server = server;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.max = Math.max(1, max);
+    }
+
+    /**
+     * Starts the thread that closes connections whose time is up
+     */
+    void start() {
+        Thread thread = new Thread(this, "chatterbox-handshakes");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Starts the clock on a newly accepted connection, closing the oldest one still logging in if there are too many
+     * @param client-the connection
+     */
+    void begin(Connection client) {
+        Connection oldest = null;
+        synchronized (this) {
+            if (pending.size() >= max) {
+                Iterator<Connection> it = pending.keySet().iterator();
+                oldest = it.next();
+                it.remove();
+                evicted++;
+            }
+            if (pending.isEmpty()) {
+                notifyAll();
+            }
+            pending.put(client, System.nanoTime() + timeoutNanos);
+        }
+        if (oldest != null) {
+            server.display(ServerLog.Level.DEBUG, "Too many connections logging in, the oldest was closed.");
+            oldest.close();
+        }
+    }
+
+    /**
+     * Stops the clock on a connection that has sent its userName
+     * @param client-the connection
+     * @return false if it ran out of time or was closed to make room, it must not join then
+     */
+    synchronized boolean finish(Connection client) {
+        return pending.remove(client) != null;
+    }
+
+    /**
+     * Gets the number of connections logging in
+     */
+    synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * Gets the number of connections closed for not logging in in time
+     */
+    synchronized long timedOut() {
+        return timedOut;
+    }
+
+    /**
+     * Gets the number of connections closed to make room for newer ones
+     */
+    synchronized long evicted() {
+        return evicted;
+    }
+
+    /**
+     * Closes connections as their deadlines pass
+     */
+    public void run() {
+        List<Connection> expired = new ArrayList<Connection>();
+        while (true) {
+            synchronized (this) {
+                long now = System.nanoTime();
+                long wait = 0;
+                //Deadlines are all the same length, so they come in the order connections arrived
+                Iterator<Map.Entry<Connection, Long>> it = pending.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<Connection, Long> entry = it.next();
+                    if (entry.getValue() - now > 0) {
+                        wait = Math.max(entry.getValue() - now, SWEEP_NANOS);
+                        break;
+                    }
+                    it.remove();
+                    expired.add(entry.getKey());
+                }
+                if (expired.isEmpty()) {
+                    try {
+                        //Nothing pending waits for the next connection
+                        if (wait == 0) {
+                            wait();
+                        }
+                        else {
+                            TimeUnit.NANOSECONDS.timedWait(this, wait);
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    continue;
+                }
+                timedOut += expired.size();
+            }
+            server.display(ServerLog.Level.WARN, expired.size() + " connections closed for not logging in within "
+                    + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + " ms.");
+            for (Connection client : expired) {
+                client.close();
+            }
+            expired.clear();
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package server;
+
+import common.ChatMessage;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Incremental decoder for the object stream a ChatterBox client writes with ObjectOutputStream.
+ * An ObjectInputStream can only block until a whole object has arrived, which an event loop cannot do, so this
+ * class understands the small part of the serialization grammar the client actually uses (Strings and ChatMessage
+ * objects) and only consumes bytes once a whole object is buffered.
+ * Author: Nick Vaccarello
+ * email: nwv4110@rit.edu
+ */
+class LegacyDecoder {
+    // serialization stream constants, see java.io.ObjectStreamConstants
+    private static final short STREAM_MAGIC = (short) 0xaced;
+    private static final short STREAM_VERSION = 5;
+    private static final byte TC_NULL = 0x70;
+    private static final byte TC_REFERENCE = 0x71;
+    private static final byte TC_CLASSDESC = 0x72;
+    private static final byte TC_OBJECT = 0x73;
+    private static final byte TC_STRING = 0x74;
+    private static final byte TC_ENDBLOCKDATA = 0x78;
+    private static final byte TC_RESET = 0x79;
+    private static final byte TC_LONGSTRING = 0x7C;
+    private static final int BASE_WIRE_HANDLE = 0x7e0000;
+    private static final byte SC_WRITE_METHOD = 0x01;
+    // largest string a client may send, anything bigger is treated as a broken stream
+    private static final int MAX_STRING = 1 << 20;
+
+    // objects the client has written so far, indexed by wire handle
+    private ArrayList<Object> handles = new ArrayList<Object>();
+    // whether the stream header has been read
+    private boolean headerRead;
+
+    /**
+     * Class descriptor as written by the client, only the field names and types are kept
+     */
+    private static class ClassDesc {
+        String name;
+        char[] types;
+        String[] fields;
+    }
+
+    /**
+     * Decodes the next object in the buffer. The buffer position is only moved when a whole object was decoded.
+     * @param in-buffer in read mode holding the bytes received so far
+     * @return the decoded String or ChatMessage, or null if more bytes are needed
+     * @throws IOException if the stream holds something a ChatterBox client never sends
+     */
+    Object decode(ByteBuffer in) throws IOException {
+        if (!headerRead) {
+            if (in.remaining() < 4) {
+                return null;
+            }
+            if (in.getShort() != STREAM_MAGIC || in.getShort() != STREAM_VERSION) {
+                throw new StreamCorruptedException("invalid stream header");
+            }
+            headerRead = true;
+        }
+        while (true) {
+            int start = in.position();
+            int handleCount = handles.size();
+            try {
+                Object obj = readContent(in);
+                //Null would read as waiting for more bytes, and no client sends one
+                if (obj == null) {
+                    throw new StreamCorruptedException("null object");
+                }
+                //A reset has already been applied to the handles, so it is consumed on its own
+                if (obj != RESET) {
+                    return obj;
+                }
+            } catch (BufferUnderflowException e) {
+                //Not all of the object is here yet, forget what was read and wait for more bytes
+                in.position(start);
+                while (handles.size() > handleCount) {
+                    handles.remove(handles.size() - 1);
+                }
+                return null;
+            }
+        }
+    }
+
+    // marker returned for TC_RESET so the caller reads the next object
+    private static final Object RESET = new Object();
+
+    /**
+     * Reads one content element from the stream
+     */
+    private Object readContent(ByteBuffer in) throws IOException {
+        byte tc = in.get();
+        switch (tc) {
+            case TC_NULL:
+                return null;
+            case TC_REFERENCE:
+                int handle = in.getInt() - BASE_WIRE_HANDLE;
+                if (handle < 0 || handle >= handles.size()) {
+                    throw new StreamCorruptedException("invalid handle " + handle);
+                }
+                return handles.get(handle);
+            case TC_STRING:
+                return readString(in, in.getShort() & 0xffff);
+            case TC_LONGSTRING:
+                long length = in.getLong();
+                if (length > MAX_STRING) {
+                    throw new StreamCorruptedException("string too long: " + length);
+                }
+                return readString(in, (int) length);
+            case TC_OBJECT:
+                return readObject(in);
+            case TC_RESET:
+                handles.clear();
+                return RESET;
+            default:
+                throw new StreamCorruptedException("unsupported type code " + tc);
+        }
+    }
+
+    /**
+     * Reads a string written in modified UTF-8 and gives it a handle
+     */
+    private String readString(ByteBuffer in, int length) throws IOException {
+        String s = readUtf(in, length);
+        handles.add(s);
+        return s;
+    }
+
+    /**
+     * Reads a class descriptor, new or referenced
+     */
+    private ClassDesc readClassDesc(ByteBuffer in) throws IOException {
+        byte tc = in.get();
+        if (tc == TC_NULL) {
+            return null;
+        }
+        if (tc == TC_REFERENCE) {
+            int handle = in.getInt() - BASE_WIRE_HANDLE;
+            if (handle < 0 || handle >= handles.size() || !(handles.get(handle) instanceof ClassDesc)) {
+                throw new StreamCorruptedException("invalid class handle " + handle);
+            }
+            return (ClassDesc) handles.get(handle);
+        }
+        if (tc != TC_CLASSDESC) {
+            throw new StreamCorruptedException("unsupported class descriptor " + tc);
+        }
+        ClassDesc desc = new ClassDesc();
+        handles.add(desc);
+        desc.name = readUtf(in, in.getShort() & 0xffff);
+        in.getLong(); //serialVersionUID, the class is looked up by name only
+        byte flags = in.get();
+        if ((flags & SC_WRITE_METHOD) != 0) {
+            throw new InvalidClassException(desc.name, "custom writeObject is not supported");
+        }
+        int count = in.getShort();
+        desc.types = new char[count];
+        desc.fields = new String[count];
+        for (int i = 0; i < count; i++) {
+            desc.types[i] = (char) in.get();
+            desc.fields[i] = readUtf(in, in.getShort() & 0xffff);
+            if (desc.types[i] == 'L' || desc.types[i] == '[') {
+                //Type name of an object field, written as a string object
+                readContent(in);
+            }
+        }
+        if (in.get() != TC_ENDBLOCKDATA) {
+            throw new StreamCorruptedException("class annotations are not supported");
+        }
+        if (readClassDesc(in) != null) {
+            throw new InvalidClassException(desc.name, "serializable super classes are not supported");
+        }
+        return desc;
+    }
+
+    /**
+     * Reads an object, only ChatMessage objects are accepted
+     */
+    private Object readObject(ByteBuffer in) throws IOException {
+        ClassDesc desc = readClassDesc(in);
+        if (desc == null || !desc.name.equals(ChatMessage.class.getName())) {
+            throw new InvalidClassException(desc == null ? "null" : desc.name, "unexpected class");
+        }
+        int handle = handles.size();
+        handles.add(null);
+        String type = null;
+        String message = null;
+        for (int i = 0; i < desc.fields.length; i++) {
+            if (desc.types[i] != 'L') {
+                throw new InvalidClassException(desc.name, "unexpected field " + desc.fields[i]);
+            }
+            Object value = readContent(in);
+            if (desc.fields[i].equals("type")) {
+                type = (String) value;
+            }
+            else if (desc.fields[i].equals("message")) {
+                message = (String) value;
+            }
+        }
+        ChatMessage cm = new ChatMessage(type, message);
+        handles.set(handle, cm);
+        return cm;
+    }
+
+    /**
+     * Decodes modified UTF-8, the encoding used by DataOutput.writeUTF
+     */
+    private static String readUtf(ByteBuffer in, int length) throws IOException {
+        if (length > MAX_STRING) {
+            throw new StreamCorruptedException("string too long: " + length);
+        }
+        if (in.remaining() < length) {
+            throw new BufferUnderflowException();
+        }
+        char[] chars = new char[length];
+        int count = 0;
+        int end = in.position() + length;
+        while (in.position() < end) {
+            int c = in.get() & 0xff;
+            if (c < 0x80) {
+                chars[count++] = (char) c;
+            }
+            else if ((c & 0xe0) == 0xc0) {
+                chars[count++] = (char) (((c & 0x1f) << 6) | (in.get() & 0x3f));
+            }
+            else if ((c & 0xf0) == 0xe0) {
+                chars[count++] = (char) (((c & 0x0f) << 12) | ((in.get() & 0x3f) << 6) | (in.get() & 0x3f));
+            }
+            else {
+                throw new UTFDataFormatException("malformed input around byte " + in.position());
+            }
+        }
+        return new String(chars, 0, count);
+    }
+}
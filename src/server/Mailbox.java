@@ -0,0 +1,399 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Whispers held for users who are not connected, until they next log in. The letters are appended to one file and
+ * found through an index in memory that keeps, for each recipient, where their letters are in the file, so holding
+ * and handing over a user's letters only touches that user's. Handing letters over appends a record saying so; a
+ * timer thread forces the file to disk, drops letters past their age and, once most of the file is letters already
+ * handed over or dropped, copies the rest to a new file. The file is read through once when the server starts.
+ * Author: Nick Vaccarello
+ * email: nwv4110@rit.edu
+ */
+class Mailbox {
+    // a whisper held for a user
+    private static final byte LETTER = 1;
+    // every letter before it for the user has been handed over
+    private static final byte TAKEN = 2;
+    // first bytes of the file
+    private static final int MAGIC = 0x43424d31;
+    // the magic
+    private static final int HEADER = 4;
+    // kind, time and the length of the recipient
+    private static final int RECORD_HEADER = 1 + 8 + 4;
+    // file name of the mailbox and of the copy made while compacting it
+    private static final String FILE = "mailbox.dat";
+    private static final String COMPACTING = "mailbox.tmp";
+    // how often letters past their age are dropped and the file compacted if it is mostly dead
+    private static final long SWEEP_MILLIS = 60000;
+    // smallest file worth compacting
+    private static final long COMPACT_BYTES = 1 << 20;
+
+    /**
+     * Where one letter is in the file
+     */
+    private static class Letter {
+        // start of the record, at its length
+        long position;
+        // length of the record after its length
+        final int length;
+        // when it was sent, in System.currentTimeMillis()
+        final long time;
+
+        Letter(long position, int length, long time) {
+            this.position = position;
+            this.length = length;
+            this.time = time;
+        }
+    }
+
+    private final File dir;
+    private final int maxMessages;
+    private final long maxBytes;
+    private final long maxAgeMillis;
+    private FileChannel file;
+    // the letters held for each user, oldest first
+    private final Map<String, ArrayDeque<Letter>> letters = new HashMap<String, ArrayDeque<Letter>>();
+    // letters held and the bytes of their records
+    private int held;
+    private long liveBytes;
+    // end of the file, where the next record goes
+    private long end;
+    // whether anything was appended since the last sync
+    private boolean dirty;
+
+    /**
+     * Opens the mailbox, reading the file once to index the letters still held, and starts syncing it
+     * @param dir-directory the file is kept in, created if needed
+     * @param maxMessages-most letters held for one user
+     * @param maxBytes-most bytes of letters held for everyone
+     * @param maxAgeMillis-how long a letter is held, 0 to hold it until it is handed over
+     * @param syncMillis-how often new letters are forced to disk
+     * @throws IOException if the directory or the file can not be opened
+     */
+    Mailbox(File dir, int maxMessages, long maxBytes, long maxAgeMillis, final long syncMillis) throws IOException {
+        this.dir = dir;
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can not create " + dir);
+        }
+        File path = new File(dir, FILE);
+        file = FileChannel.open(path.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        if (file.size() == 0) {
+            file.write(ByteBuffer.allocate(HEADER).putInt(0, MAGIC));
+            file.force(true);
+        }
+        load(path);
+        expire(System.currentTimeMillis());
+        Thread syncer = new Thread(new Runnable() {
+            public void run() {
+                long swept = System.currentTimeMillis();
+                while (true) {
+                    try {
+                        Thread.sleep(syncMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    sync();
+                    if (System.currentTimeMillis() - swept >= SWEEP_MILLIS) {
+                        swept = System.currentTimeMillis();
+                        sweep();
+                    }
+                }
+            }
+        }, "chatterbox-mailbox-sync");
+        syncer.setDaemon(true);
+        syncer.start();
+    }
+
+    /**
+     * Indexes the letters in the file, cutting off a record left half written when the server stopped
+     */
+    private void load(File path) throws IOException {
+        long size = file.size();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path), 1 << 16));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a mailbox: " + path);
+            }
+            long position = HEADER;
+            while (position + 4 <= size) {
+                int length = in.readInt();
+                if (length < RECORD_HEADER || position + 4 + length > size) {
+                    break;
+                }
+                byte kind = in.readByte();
+                long time = in.readLong();
+                int toLength = in.readInt();
+                if (toLength < 0 || RECORD_HEADER + toLength > length) {
+                    break;
+                }
+                byte[] to = new byte[toLength];
+                in.readFully(to);
+                skip(in, length - RECORD_HEADER - to.length);
+                String recipient = new String(to, StandardCharsets.UTF_8);
+                if (kind == LETTER) {
+                    add(recipient, new Letter(position, length, time));
+                }
+                else if (kind == TAKEN) {
+                    remove(recipient);
+                }
+                position += 4 + length;
+            }
+            end = position;
+        } catch (EOFException e) {
+            throw new IOException("Corrupt mailbox: " + path);
+        } finally {
+            in.close();
+        }
+        if (end < size) {
+            file.truncate(end);
+        }
+    }
+
+    private static void skip(DataInputStream in, int bytes) throws IOException {
+        while (bytes > 0) {
+            int skipped = in.skipBytes(bytes);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            bytes -= skipped;
+        }
+    }
+
+    private void add(String to, Letter letter) {
+        ArrayDeque<Letter> queue = letters.get(to);
+        if (queue == null) {
+            queue = new ArrayDeque<Letter>();
+            letters.put(to, queue);
+        }
+        queue.addLast(letter);
+        held++;
+        liveBytes += 4 + letter.length;
+    }
+
+    /**
+     * Takes every letter held for a user out of the index
+     * @return the letters, oldest first, or null if there are none
+     */
+    private ArrayDeque<Letter> remove(String to) {
+        ArrayDeque<Letter> queue = letters.remove(to);
+        if (queue != null) {
+            for (Letter letter : queue) {
+                held--;
+                liveBytes -= 4 + letter.length;
+            }
+        }
+        return queue;
+    }
+
+    /**
+     * Drops a user's letters that are past their age, they are always the oldest
+     */
+    private void expire(ArrayDeque<Letter> queue, long now) {
+        Letter letter;
+        while (maxAgeMillis > 0 && (letter = queue.peekFirst()) != null && now - letter.time > maxAgeMillis) {
+            queue.pollFirst();
+            held--;
+            liveBytes -= 4 + letter.length;
+        }
+    }
+
+    /**
+     * Drops every letter past its age
+     */
+    private void expire(long now) {
+        for (Iterator<ArrayDeque<Letter>> i = letters.values().iterator(); i.hasNext(); ) {
+            ArrayDeque<Letter> queue = i.next();
+            expire(queue, now);
+            if (queue.isEmpty()) {
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Appends a record to the end of the file
+     * @return where it starts
+     */
+    private long append(byte kind, long time, byte[] to, byte[] text) throws IOException {
+        int length = RECORD_HEADER + to.length + (text == null ? 0 : 4 + text.length);
+        ByteBuffer out = ByteBuffer.allocate(4 + length);
+        out.putInt(length).put(kind).putLong(time).putInt(to.length).put(to);
+        if (text != null) {
+            out.putInt(text.length).put(text);
+        }
+        out.flip();
+        long position = end;
+        while (out.hasRemaining()) {
+            file.write(out, position + out.position());
+        }
+        end += out.limit();
+        dirty = true;
+        return position;
+    }
+
+    /**
+     * Holds a whisper for a user who is not connected
+     * @param to-userName of the recipient
+     * @param text-the whisper as it will be delivered
+     * @return false if the user's mailbox, or the whole mailbox, is full
+     * @throws IOException if the letter can not be written
+     */
+    synchronized boolean put(String to, String text) throws IOException {
+        long now = System.currentTimeMillis();
+        ArrayDeque<Letter> queue = letters.get(to);
+        if (queue != null) {
+            expire(queue, now);
+        }
+        byte[] toBytes = to.getBytes(StandardCharsets.UTF_8);
+        byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+        int length = RECORD_HEADER + toBytes.length + 4 + textBytes.length;
+        if ((queue != null && queue.size() >= maxMessages) || liveBytes + 4 + length > maxBytes) {
+            return false;
+        }
+        add(to, new Letter(append(LETTER, now, toBytes, textBytes), length, now));
+        return true;
+    }
+
+    /**
+     * Hands over every letter held for a user, who no longer has any afterwards
+     * @param to-userName of the recipient
+     * @return the whispers as they are delivered, oldest first, empty if there are none
+     * @throws IOException if the letters can not be read, they are held until the next try
+     */
+    synchronized List<String> take(String to) throws IOException {
+        List<String> found = new ArrayList<String>();
+        ArrayDeque<Letter> queue = letters.get(to);
+        if (queue == null) {
+            return found;
+        }
+        expire(queue, System.currentTimeMillis());
+        for (Letter letter : queue) {
+            ByteBuffer in = ByteBuffer.allocate(letter.length);
+            while (in.hasRemaining()) {
+                if (file.read(in, letter.position + 4 + in.position()) < 0) {
+                    throw new IOException("Mailbox ends inside a letter for " + to);
+                }
+            }
+            //Past the kind and time, then past the recipient
+            in.position(1 + 8);
+            in.position(in.position() + 4 + in.getInt(in.position()));
+            byte[] text = new byte[in.getInt()];
+            in.get(text);
+            found.add(new String(text, StandardCharsets.UTF_8));
+        }
+        append(TAKEN, System.currentTimeMillis(), to.getBytes(StandardCharsets.UTF_8), null);
+        remove(to);
+        return found;
+    }
+
+    /**
+     * Forces what was appended since the last sync to disk
+     */
+    synchronized void sync() {
+        if (dirty) {
+            dirty = false;
+            try {
+                file.force(false);
+            } catch (IOException e) {
+                //Tried again with the next letter
+                dirty = true;
+            }
+        }
+    }
+
+    /**
+     * Drops the letters past their age and compacts the file once most of it is dead
+     */
+    synchronized void sweep() {
+        expire(System.currentTimeMillis());
+        if (end > COMPACT_BYTES && end > 2 * (HEADER + liveBytes)) {
+            try {
+                compact();
+            } catch (IOException e) {
+                //The file is left as it was, only bigger than it needs to be
+            }
+        }
+    }
+
+    /**
+     * Copies the letters still held to a new file and puts it in place of the old one
+     */
+    private void compact() throws IOException {
+        File copy = new File(dir, COMPACTING);
+        FileChannel out = FileChannel.open(copy.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        Map<Letter, Long> moved = new HashMap<Letter, Long>();
+        long position = HEADER;
+        try {
+            out.write(ByteBuffer.allocate(HEADER).putInt(0, MAGIC));
+            for (ArrayDeque<Letter> queue : letters.values()) {
+                for (Letter letter : queue) {
+                    long copied = 0;
+                    while (copied < 4 + letter.length) {
+                        copied += file.transferTo(letter.position + copied, 4 + letter.length - copied, out);
+                    }
+                    moved.put(letter, position);
+                    position += copied;
+                }
+            }
+            out.force(true);
+        } finally {
+            out.close();
+        }
+        //Renamed over the old file while it is still open, so a failed rename leaves the mailbox as it was
+        Files.move(copy.toPath(), new File(dir, FILE).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        file.close();
+        file = FileChannel.open(new File(dir, FILE).toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        for (Map.Entry<Letter, Long> entry : moved.entrySet()) {
+            entry.getKey().position = entry.getValue();
+        }
+        end = position;
+        dirty = false;
+    }
+
+    /**
+     * Gets the number of letters held
+     */
+    synchronized int size() {
+        return held;
+    }
+
+    /**
+     * Gets the number of users letters are held for
+     */
+    synchronized int recipients() {
+        return letters.size();
+    }
+
+    /**
+     * Forces everything to disk, the mailbox is not used afterwards
+     */
+    synchronized void close() {
+        dirty = true;
+        sync();
+    }
+}
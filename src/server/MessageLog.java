@@ -0,0 +1,291 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Append-only log of every chat message and whisper, kept in fixed size segment files that are memory-mapped.
+ * Appends copy the record into the mapped segment, a timer thread forces it to disk, and full segments are sealed and
+ * deleted oldest first once the log outgrows its retention. History is read backwards straight out of the mapped
+ * segments, so nothing but the messages asked for ever lands on the heap.
+ * Author: Nick Vaccarello
+ * email: nwv4110@rit.edu
+ */
+class MessageLog {
+    /**
+     * A chat message sent to a room
+     */
+    static final byte CHAT = 1;
+
+    /**
+     * A whisper from one user to another
+     */
+    static final byte WHISPER = 2;
+
+    // first bytes of every segment
+    private static final int MAGIC = 0x43425831;
+    // the magic and the end of the last whole record, the only part of a segment read at startup
+    private static final int HEADER = 8;
+    // most records looked at to answer one history request, so a quiet room can not make it walk the whole log
+    static final int MAX_SCAN = 100000;
+    // file name suffix of a segment
+    private static final String SUFFIX = ".log";
+
+    /**
+     * One segment file, mapped for its whole size
+     */
+    private static class Segment {
+        final File file;
+        final MappedByteBuffer buffer;
+        // end of the last whole record, written after the record so readers never see half of one
+        volatile int end;
+
+        Segment(File file, MappedByteBuffer buffer, int end) {
+            this.file = file;
+            this.buffer = buffer;
+            this.end = end;
+        }
+    }
+
+    // where the segments are kept
+    private final File dir;
+    private final int segmentBytes;
+    private final long retainBytes;
+    // oldest first, the last one is being appended to
+    private final CopyOnWriteArrayList<Segment> segments = new CopyOnWriteArrayList<Segment>();
+    // number given to the next segment's file
+    private long nextSegment;
+    // whether anything was appended since the last sync
+    private volatile boolean dirty;
+
+    /**
+     * Opens the log, mapping the segments already on disk and reading only their headers, and starts syncing it
+     * @param dir-directory the segments are kept in, created if needed
+     * @param segmentBytes-size of each segment file
+     * @param retainBytes-most bytes of segments kept, the oldest are deleted beyond it
+     * @param syncMillis-how often appended messages are forced to disk
+     * @throws IOException if the directory or a segment can not be opened
+     */
+    MessageLog(File dir, int segmentBytes, long retainBytes, final long syncMillis) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = Math.max(segmentBytes, 1 << 16);
+        this.retainBytes = retainBytes;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can not create " + dir);
+        }
+        File[] files = dir.listFiles();
+        List<File> existing = new ArrayList<File>();
+        for (File file : files == null ? new File[0] : files) {
+            if (file.getName().endsWith(SUFFIX)) {
+                existing.add(file);
+            }
+        }
+        //Names are zero padded numbers, so sorting the names sorts the segments
+        Collections.sort(existing);
+        for (File file : existing) {
+            segments.add(map(file));
+            nextSegment = Long.parseLong(file.getName().substring(0, file.getName().length() - SUFFIX.length())) + 1;
+        }
+        if (segments.isEmpty()) {
+            roll();
+        }
+        Thread syncer = new Thread(new Runnable() {
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(syncMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    sync();
+                }
+            }
+        }, "chatterbox-history-sync");
+        syncer.setDaemon(true);
+        syncer.start();
+    }
+
+    /**
+     * Maps an existing segment, taking where its records end from the header
+     */
+    private Segment map(File file) throws IOException {
+        MappedByteBuffer buffer;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        if (buffer.capacity() < HEADER || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a message log segment: " + file);
+        }
+        int end = buffer.getInt(4);
+        if (end < HEADER || end > buffer.capacity()) {
+            throw new IOException("Corrupt message log segment: " + file);
+        }
+        return new Segment(file, buffer, end);
+    }
+
+    /**
+     * Seals the segment being appended to, starts a new one and deletes what is past retention
+     */
+    private void roll() throws IOException {
+        if (!segments.isEmpty()) {
+            segments.get(segments.size() - 1).buffer.force();
+        }
+        File file = new File(dir, String.format("%020d", nextSegment++) + SUFFIX);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        MappedByteBuffer buffer;
+        try {
+            raf.setLength(segmentBytes);
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        } finally {
+            raf.close();
+        }
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, HEADER);
+        segments.add(new Segment(file, buffer, HEADER));
+        long total = 0;
+        for (Segment segment : segments) {
+            total += segment.buffer.capacity();
+        }
+        while (total > retainBytes && segments.size() > 1) {
+            Segment oldest = segments.remove(0);
+            total -= oldest.buffer.capacity();
+            //The mapping stays valid for readers still holding it, the space comes back once they let go
+            oldest.file.delete();
+        }
+    }
+
+    /**
+     * Appends a record, each is its length, the record and its length again so history can walk backwards
+     * @param kind-CHAT or WHISPER
+     * @param to-the room a chat went to, or the user a whisper went to
+     * @param from-userName of the sender
+     * @param text-the message as it was delivered
+     * @throws IOException if a new segment can not be created
+     */
+    synchronized void append(byte kind, String to, String from, String text) throws IOException {
+        byte[] toBytes = to.getBytes(StandardCharsets.UTF_8);
+        byte[] fromBytes = from.getBytes(StandardCharsets.UTF_8);
+        byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+        int length = 1 + 8 + 4 + toBytes.length + 4 + fromBytes.length + 4 + textBytes.length;
+        if (HEADER + length + 8 > segmentBytes) {
+            throw new IOException("Message of " + textBytes.length + " bytes does not fit a log segment");
+        }
+        Segment segment = segments.get(segments.size() - 1);
+        if (segment.end + length + 8 > segment.buffer.capacity()) {
+            roll();
+            segment = segments.get(segments.size() - 1);
+        }
+        ByteBuffer out = segment.buffer.duplicate();
+        out.position(segment.end);
+        out.putInt(length).put(kind).putLong(System.currentTimeMillis());
+        out.putInt(toBytes.length).put(toBytes);
+        out.putInt(fromBytes.length).put(fromBytes);
+        out.putInt(textBytes.length).put(textBytes);
+        out.putInt(length);
+        segment.buffer.putInt(4, out.position());
+        segment.end = out.position();
+        dirty = true;
+    }
+
+    /**
+     * Forces what was appended since the last sync to disk
+     */
+    void sync() {
+        if (dirty) {
+            dirty = false;
+            segments.get(segments.size() - 1).buffer.force();
+        }
+    }
+
+    /**
+     * Gets the last messages a user is allowed to see: chats in their room and whispers to or from them
+     * @param room-name of the room the user is in
+     * @param userName-the user asking
+     * @param count-most messages returned
+     * @return the messages, oldest first
+     */
+    List<String> history(String room, String userName, int count) {
+        List<String> found = new ArrayList<String>();
+        //Records are matched against the mapped bytes, only the texts returned are decoded
+        byte[] roomBytes = room.getBytes(StandardCharsets.UTF_8);
+        byte[] userBytes = userName.getBytes(StandardCharsets.UTF_8);
+        int scanned = 0;
+        Object[] snapshot = segments.toArray();
+        for (int s = snapshot.length - 1; s >= 0 && found.size() < count && scanned < MAX_SCAN; s--) {
+            Segment segment = (Segment) snapshot[s];
+            ByteBuffer in = segment.buffer.duplicate();
+            int pos = segment.end;
+            while (pos > HEADER && found.size() < count && scanned < MAX_SCAN) {
+                int length = in.getInt(pos - 4);
+                int start = pos - 4 - length;
+                byte kind = in.get(start);
+                int to = start + 1 + 8;
+                int from = to + 4 + in.getInt(to);
+                if ((kind == CHAT && equal(in, to, roomBytes))
+                        || (kind == WHISPER && (equal(in, to, userBytes) || equal(in, from, userBytes)))) {
+                    in.position(from + 4 + in.getInt(from));
+                    found.add(string(in));
+                }
+                pos = start - 4;
+                scanned++;
+            }
+        }
+        Collections.reverse(found);
+        return found;
+    }
+
+    /**
+     * Whether the length prefixed string at a position holds exactly the given bytes
+     * @param in-the segment
+     * @param at-where its length prefix is
+     * @param bytes-the UTF-8 bytes compared against
+     */
+    private static boolean equal(ByteBuffer in, int at, byte[] bytes) {
+        if (in.getInt(at) != bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (in.get(at + 4 + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads a length prefixed UTF-8 string
+     */
+    private static String string(ByteBuffer in) {
+        int length = in.getInt();
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Gets the number of segments kept
+     */
+    int segmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Forces everything to disk, the log is not appended to afterwards
+     */
+    synchronized void close() {
+        dirty = true;
+        sync();
+    }
+}
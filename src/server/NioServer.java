@@ -0,0 +1,582 @@
+package server;
+
+import common.ChatMessage;
+import common.TlsChannel;
+import common.WireCodec;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Server engine that serves every client from a small, fixed pool of selector event loops instead of a thread per
+ * client. Commands are handed to the same ServerSide methods the thread engine uses.
+ * Author: Nick Vaccarello
+ * email: nwv4110@rit.edu
+ */
+class NioServer implements common.ChatterboxProtocol {
+    // initial size of the buffer holding bytes received from a client
+    private static final int READ_BUFFER_SIZE = 4096;
+    // largest amount of unread bytes a client may leave buffered
+    private static final int MAX_READ_BUFFER = (1 << 20) + READ_BUFFER_SIZE;
+    // most buffers handed to a channel in one gathering write
+    private static final int WRITE_BATCH = 64;
+
+    // the server that handles the commands
+    private ServerSide server;
+    // the port number to listen for connection
+    private int port;
+    // the event loops serving the connections
+    private EventLoop[] loops;
+    // to keep the server running unless specified
+    private volatile boolean continueToRun;
+
+    /**
+     * Constructs the engine and opens a selector for each event loop
+     * @param server-the server that handles the commands
+     * @param port-the port number to listen for connection
+     * @param loopCount-the number of event loops
+     * @throws IOException if a selector can not be opened
+     */
+    NioServer(ServerSide server, int port, int loopCount) throws IOException {
+        this.server = server;
+        this.port = port;
+        loops = new EventLoop[Math.max(1, loopCount)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+        }
+    }
+
+    /**
+     * Starts the event loops and accepts connections on the calling thread until the server stops
+     * @throws IOException if the server socket can not be opened
+     */
+    void run() throws IOException {
+        continueToRun = true;
+        for (EventLoop loop : loops) {
+            loop.thread.start();
+        }
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(new InetSocketAddress(port));
+            server.display("Waiting connection on port: " + port + " with " + loops.length + " event loops.");
+            int next = 0;
+            // Loop to continuously look for connections
+            while (continueToRun) {
+                SocketChannel channel = serverChannel.accept();
+                server.display("ChatterboxClient connection received from "+channel.socket().getInetAddress());
+                // hand the connection to the event loops in turn
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            }
+        } finally {
+            serverChannel.close();
+            stop();
+        }
+    }
+
+    /**
+     * Stops the event loops and closes every connection they serve
+     */
+    void stop() {
+        continueToRun = false;
+        for (EventLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+    }
+
+    /**
+     * A thread that owns a selector and does all the reading and writing for its connections
+     */
+    class EventLoop implements Runnable {
+        Selector selector;
+        Thread thread;
+        // work handed to this loop by other threads
+        ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        // buffers for one gathering write, shared by every connection on this loop
+        ByteBuffer[] batch = new ByteBuffer[WRITE_BATCH];
+        // connections the rate limits hold back, only touched on this loop's thread
+        ArrayList<NioConnection> paused = new ArrayList<NioConnection>();
+
+        /**
+         * Constructs an event loop with its own selector
+         * @param index-number of the loop, used to name its thread
+         */
+        EventLoop(int index) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, "chatterbox-loop-" + index);
+        }
+
+        /**
+         * Runs a task on this loop's thread
+         * @param task-the work to run
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        /**
+         * Stops reading from a connection until a time, called on this loop's thread
+         * @param client-the connection, holding the command that has to wait
+         * @param until-System.nanoTime() when it may go on
+         */
+        void pause(NioConnection client, long until) {
+            client.resumeAt = until;
+            paused.add(client);
+            if (client.key.isValid()) {
+                client.key.interestOps(client.interest());
+            }
+        }
+
+        /**
+         * Resumes the paused connections whose time has come
+         * @return milliseconds until the next one is due, 0 if none are paused
+         */
+        long resumeDue() {
+            long now = System.nanoTime();
+            long next = Long.MAX_VALUE;
+            for (int i = paused.size() - 1; i >= 0; i--) {
+                NioConnection client = paused.get(i);
+                if (client.resumeAt - now <= 0) {
+                    //Order does not matter, so fill the gap with the last one
+                    paused.set(i, paused.get(paused.size() - 1));
+                    paused.remove(paused.size() - 1);
+                    client.resume();
+                }
+                else {
+                    next = Math.min(next, client.resumeAt - now);
+                }
+            }
+            return next == Long.MAX_VALUE ? 0 : Math.max(1, TimeUnit.NANOSECONDS.toMillis(next));
+        }
+
+        /**
+         * Starts serving a newly accepted connection on this loop
+         * @param channel-the accepted channel
+         */
+        void register(final SocketChannel channel) {
+            execute(new Runnable() {
+                public void run() {
+                    try {
+                        channel.configureBlocking(false);
+                        NioConnection client = new NioConnection(channel, EventLoop.this);
+                        client.key = channel.register(selector, SelectionKey.OP_READ, client);
+                        // the clock on logging in starts once the loop can read what the client sends
+                        server.handshakes.begin(client);
+                        // the object stream header is already waiting to go out
+                        client.flush();
+                    } catch (IOException e) {
+                        server.display(ServerLog.Level.WARN, ">>"+FATAL_ERROR+SEPARATOR+e);
+                        try {
+                            channel.close();
+                        } catch (IOException ioE) {
+                        }
+                    }
+                }
+            });
+        }
+
+        /**
+         * Selects ready connections and reads from or writes to them until the server stops
+         */
+        public void run() {
+            long timeout = 0;
+            while (continueToRun) {
+                try {
+                    selector.select(timeout);
+                } catch (IOException e) {
+                    server.display(ServerLog.Level.WARN, ">>"+FATAL_ERROR+SEPARATOR+e);
+                    break;
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        server.display(ServerLog.Level.WARN, ">>"+FATAL_ERROR+SEPARATOR+e);
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioConnection client = (NioConnection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            client.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            client.flush();
+                        }
+                    } catch (RuntimeException e) {
+                        //Only the connection that failed is closed, the loop carries on with the others
+                        server.display(ServerLog.Level.WARN, ">>"+client.userName+": "+FATAL_ERROR+SEPARATOR+e);
+                        client.disconnect();
+                    }
+                }
+                timeout = resumeDue();
+            }
+            // When the server has stop running, close every connection of this loop
+            for (SelectionKey key : selector.keys()) {
+                ((NioConnection) key.attachment()).close();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * A client served by an event loop. Reading and flushing only happen on the loop's thread, writeMsg and send
+     * may be called from any thread and only queue the frame.
+     */
+    class NioConnection extends Connection {
+        SocketChannel channel;
+        // what is read and written goes through TLS, null for a plain connection
+        TlsChannel tls;
+        SelectionKey key;
+        EventLoop loop;
+        // bytes received that are not yet a whole object
+        ByteBuffer inbound = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        LegacyDecoder decoder = new LegacyDecoder();
+        // whether the client's first bytes have been seen
+        boolean negotiated;
+        // bytes that go out ahead of the queue: the stream header, the hello answer and whatever the channel did
+        // not take the last time it filled up
+        ArrayDeque<ByteBuffer> ready = new ArrayDeque<ByteBuffer>();
+        AtomicBoolean flushScheduled = new AtomicBoolean();
+        volatile boolean closed;
+        // set once the client is only waiting for its last messages before being closed
+        boolean closing;
+        // a command the rate limits hold back, nothing more is read until it is handled
+        ChatMessage held;
+        // when the held command may be handled, in System.nanoTime()
+        long resumeAt;
+
+        /**
+         * Constructs a connection and writes the object stream header the client waits for
+         * @param channel-the accepted channel
+         * @param loop-the event loop serving it
+         */
+        NioConnection(SocketChannel channel, EventLoop loop) throws IOException {
+            super(ServerSide.nextId(), server.newQueue());
+            this.channel = channel;
+            this.loop = loop;
+            address = channel.socket().getInetAddress();
+            tls = server.newTls(channel);
+            //The header goes out when the loop registers the channel, clients of either format wait for it
+            ready.add(ByteBuffer.wrap(WireCodec.STREAM_HEADER));
+        }
+
+        /**
+         * Makes sure the event loop will flush this connection, at most one flush is waiting at a time
+         */
+        void schedule() {
+            if (flushScheduled.compareAndSet(false, true)) {
+                loop.execute(new Runnable() {
+                    public void run() {
+                        flush();
+                    }
+                });
+            }
+        }
+
+        /**
+         * Reads what the client sent and handles every whole object that has arrived
+         */
+        void read() {
+            int count;
+            do {
+                try {
+                    count = tls != null ? tls.read(inbound) : channel.read(inbound);
+                } catch (IOException e) {
+                    server.display(failureLevel(), ">>"+userName+": " +FATAL_ERROR+SEPARATOR+e);
+                    disconnect();
+                    return;
+                }
+                if (count < 0) {
+                    server.display(failureLevel(), ">>"+userName+": " +FATAL_ERROR+SEPARATOR+"connection closed");
+                    disconnect();
+                    return;
+                }
+                server.metrics.bytesIn(count);
+                inbound.flip();
+                process();
+                //What TLS has already taken off the socket will not be selected again, so read on while there is
+                //some
+            } while (tls != null && count > 0 && !closed && held == null && tls.buffered());
+            //The handshake may have finished, or it may have an answer to send
+            if (tls != null && !closed && (!ready.isEmpty() || tls.flushing())) {
+                flush();
+            }
+        }
+
+        /**
+         * Handles every whole object in the inbound buffer, stopping early at one the rate limits hold back
+         */
+        private void process() {
+            try {
+                Object obj;
+                while (!closed && !closing && held == null && (obj = next()) != null) {
+                    if (userName == null) {
+                        //The first object is the userName, a name in use gets an answer and then the door
+                        String name = login(obj);
+                        //Closed for taking too long while it was logging in
+                        if (!server.handshakes.finish(this)) {
+                            close();
+                            return;
+                        }
+                        //A client coming back for its session, one that is gone gets an answer and then the door
+                        if (obj instanceof ChatMessage && ((ChatMessage) obj).getType().equals(RESUME)) {
+                            if (!server.resume(this, name)) {
+                                writeMsg(FATAL_ERROR, server.sessionLost());
+                                closing = true;
+                            }
+                        }
+                        else if (!server.join(this, name)) {
+                            writeMsg(FATAL_ERROR, server.nameInUse(name));
+                            closing = true;
+                        }
+                        continue;
+                    }
+                    ChatMessage cm = (ChatMessage) obj;
+                    if (!ServerSide.wellFormed(cm)) {
+                        throw new StreamCorruptedException("Expected a command but got " + cm);
+                    }
+                    long wait = server.admit(this, cm, System.nanoTime());
+                    if (wait == RateLimiter.DISCONNECTED) {
+                        disconnect();
+                    }
+                    else if (wait > 0) {
+                        //Stop reading until the limits allow it, what is buffered waits behind it
+                        held = cm;
+                        loop.pause(this, System.nanoTime() + wait);
+                    }
+                    else if (wait == 0 && !server.handle(this, cm, System.nanoTime())) {
+                        disconnect();
+                    }
+                }
+            } catch (IOException | ClassCastException e) {
+                server.display(failureLevel(), ">>"+userName+": " +FATAL_ERROR+SEPARATOR+e);
+                disconnect();
+                return;
+            } catch (RuntimeException e) {
+                //A command the server fails on costs this connection only, not every other one on the loop
+                server.display(ServerLog.Level.WARN, ">>"+userName+": " +FATAL_ERROR+SEPARATOR+e);
+                disconnect();
+                return;
+            }
+            //One acknowledgement for everything this read brought in
+            if (!closed && userName != null) {
+                server.acknowledge(this);
+            }
+            inbound.compact();
+            if (!inbound.hasRemaining() && held == null) {
+                //A single object is bigger than the buffer, grow it
+                if (inbound.capacity() >= MAX_READ_BUFFER) {
+                    server.display(failureLevel(), ">>"+userName+": " +FATAL_ERROR+SEPARATOR+"message too long");
+                    disconnect();
+                    return;
+                }
+                ByteBuffer bigger = ByteBuffer.allocate(inbound.capacity() * 2);
+                inbound.flip();
+                bigger.put(inbound);
+                inbound = bigger;
+            }
+        }
+
+        /**
+         * Handles the command the rate limits held back, then whatever arrived behind it, and reads again
+         */
+        void resume() {
+            if (closed) {
+                return;
+            }
+            ChatMessage cm = held;
+            held = null;
+            boolean keep;
+            try {
+                keep = server.handle(this, cm, System.nanoTime());
+            } catch (RuntimeException e) {
+                server.display(ServerLog.Level.WARN, ">>"+userName+": " +FATAL_ERROR+SEPARATOR+e);
+                keep = false;
+            }
+            if (!keep) {
+                disconnect();
+                return;
+            }
+            inbound.flip();
+            process();
+            if (!closed && tls != null && held == null && tls.buffered()) {
+                read();
+            }
+            if (!closed && key.isValid()) {
+                key.interestOps(interest());
+            }
+        }
+
+        /**
+         * Gets the operations to select this connection for: reading unless the rate limits hold it back, and
+         * writing while bytes are left over from a short write. Over TLS nothing but the handshake goes out
+         * until it is done, and ciphertext may be left over even when every buffer was taken.
+         */
+        private int interest() {
+            boolean writing = !ready.isEmpty();
+            if (tls != null) {
+                writing = tls.flushing() || (writing && !tls.handshaking());
+            }
+            return (held == null ? SelectionKey.OP_READ : 0) | (writing ? SelectionKey.OP_WRITE : 0);
+        }
+
+        /**
+         * Decodes the next whole message in the inbound buffer, answering a binary hello first if there is one
+         * @return a String or ChatMessage, or null if more bytes are needed
+         */
+        private Object next() throws IOException {
+            if (!negotiated) {
+                if (!inbound.hasRemaining()) {
+                    return null;
+                }
+                //An object stream starts with 0xACED, a binary client starts with a hello
+                if (inbound.get(inbound.position()) == WireCodec.MAGIC[0]) {
+                    if (inbound.remaining() < WireCodec.HELLO_LENGTH) {
+                        return null;
+                    }
+                    byte[] hello = new byte[WireCodec.HELLO_LENGTH];
+                    inbound.get(hello);
+                    int version = server.negotiate(this, hello);
+                    ready.add(ByteBuffer.wrap(WireCodec.hello(version)));
+                    schedule();
+                    server.display(ServerLog.Level.DEBUG, "<<unknown user: binary framing version " + version);
+                }
+                negotiated = true;
+            }
+            return binary ? WireCodec.decode(inbound, inflater) : decoder.decode(inbound);
+        }
+
+        /**
+         * Gets the userName out of the first message a client sends, or the session out of a resume frame
+         * @param obj-a String from an object stream client or a connect or resume frame from a binary client
+         */
+        private String login(Object obj) throws IOException {
+            if (obj instanceof ChatMessage && ServerSide.wellFormed((ChatMessage) obj)
+                    && (((ChatMessage) obj).getType().equals(CONNECT) || ((ChatMessage) obj).getType().equals(RESUME))) {
+                return ((ChatMessage) obj).getMessage();
+            }
+            if (!binary && obj instanceof String) {
+                return (String) obj;
+            }
+            throw new StreamCorruptedException("Expected a userName but got " + obj);
+        }
+
+        /**
+         * Writes as much of the outbound queue as the channel takes, then waits for it to become writable again.
+         * Queued frames are written straight from their shared buffers, many at a time.
+         */
+        void flush() {
+            flushScheduled.set(false);
+            if (closed) {
+                return;
+            }
+            ByteBuffer[] batch = loop.batch;
+            int count = 0;
+            try {
+                //Ciphertext left over goes first, and the handshake moves on
+                if (tls != null) {
+                    tls.flush();
+                }
+                while (true) {
+                    //Leftovers from a short write go first, then frames from the queue
+                    count = 0;
+                    ByteBuffer buffer;
+                    while (count < batch.length && (buffer = ready.poll()) != null) {
+                        batch[count++] = buffer;
+                    }
+                    Frame frame;
+                    //A client that has not acknowledged a full window gets nothing more until it does
+                    while (count < batch.length && (acks == null || !acks.full()) && (frame = queue.poll()) != null) {
+                        batch[count++] = writing(frame);
+                    }
+                    if (count == 0) {
+                        break;
+                    }
+                    server.metrics.bytesOut(tls != null ? tls.write(batch, 0, count) : channel.write(batch, 0, count));
+                    if (batch[count - 1].hasRemaining()) {
+                        //The channel is full, keep what it did not take in order for the next flush
+                        for (int i = count - 1; i >= 0 && batch[i].hasRemaining(); i--) {
+                            ready.addFirst(batch[i]);
+                        }
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                server.display(failureLevel(), server.notif + "Error sending message to " + userName + server.notif);
+                server.display(failureLevel(), e.toString());
+                disconnect();
+                return;
+            } finally {
+                Arrays.fill(batch, 0, count, null);
+            }
+            if (ready.isEmpty() && closing && (tls == null || !tls.flushing())) {
+                close();
+            }
+            else if (key.isValid()) {
+                key.interestOps(interest());
+            }
+        }
+
+        /**
+         * Gets how much a failure on this connection matters, one that never logged in is only worth a debug line
+         */
+        private ServerLog.Level failureLevel() {
+            return userName == null ? ServerLog.Level.DEBUG : ServerLog.Level.WARN;
+        }
+
+        /**
+         * Removes the client from the chat room and closes the channel
+         */
+        private void disconnect() {
+            if (closed) {
+                return;
+            }
+            if (userName != null) {
+                server.remove(id);
+            }
+            close();
+        }
+
+        /**
+         * Method that closes the channel
+         */
+        void close() {
+            closed = true;
+            server.handshakes.finish(this);
+            queue.close();
+            if (acks != null) {
+                acks.close();
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                if (tls != null) {
+                    tls.close();
+                }
+                else {
+                    channel.close();
+                }
+            } catch (IOException e) {
+            }
+        }
+    }
+}
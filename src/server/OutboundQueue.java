@@ -0,0 +1,214 @@
+package server;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of frames waiting to be written to one client. Broadcasts only add to it, a writer drains it, and
+ * a client that falls too far behind is handled by the slow consumer policy instead of stalling everyone else.
+ * Frames are kept in a ring that grows up to the message limit, so queueing a frame allocates nothing.
+ * Author: Nick Vaccarello
+ * email: nwv4110@rit.edu
+ */
+class OutboundQueue {
+
+    /**
+     * What to do with a message for a client whose queue is full
+     */
+    enum Policy {
+        // make room by dropping the messages that have waited longest
+        DROP_OLDEST,
+        // drop the message that does not fit
+        DROP_NEWEST,
+        // disconnect the client
+        DISCONNECT;
+
+        /**
+         * Parses a policy as written on the command line, such as drop-oldest
+         */
+        static Policy parse(String name) {
+            return valueOf(name.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    // initial capacity of the ring
+    private static final int INITIAL_CAPACITY = 16;
+
+    // the frames waiting and their encoded sizes, a ring starting at head
+    private Frame[] frames = new Frame[INITIAL_CAPACITY];
+    private int[] sizes = new int[INITIAL_CAPACITY];
+    private int head;
+    private int count;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final int maxMessages;
+    private final long maxBytes;
+    private final Policy policy;
+    // encoded bytes waiting in the queue
+    private long bytes;
+    // messages dropped by the policy so far
+    private long dropped;
+    private boolean closed;
+
+    /**
+     * Constructs an empty queue
+     * @param maxMessages-most messages that may wait
+     * @param maxBytes-most encoded bytes that may wait
+     * @param policy-what to do once either limit is reached
+     */
+    OutboundQueue(int maxMessages, long maxBytes, Policy policy) {
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+    }
+
+    /**
+     * Adds a frame without ever blocking
+     * @param frame-the frame to write
+     * @param size-its encoded size for this client
+     * @return the number of messages dropped to respect the limits, or -1 if the queue is closed or the client is
+     * over its limits and must be disconnected
+     */
+    int offer(Frame frame, int size) {
+        lock.lock();
+        try {
+            if (closed) {
+                return -1;
+            }
+            int droppedNow = 0;
+            while (count > 0 && (count >= maxMessages || bytes + size > maxBytes)) {
+                if (policy == Policy.DISCONNECT) {
+                    return -1;
+                }
+                if (policy == Policy.DROP_NEWEST) {
+                    dropped++;
+                    return 1;
+                }
+                removeHead();
+                droppedNow++;
+            }
+            if (count == frames.length) {
+                grow();
+            }
+            int tail = (head + count) % frames.length;
+            frames[tail] = frame;
+            sizes[tail] = size;
+            count++;
+            bytes += size;
+            dropped += droppedNow;
+            notEmpty.signal();
+            return droppedNow;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the next frame without blocking
+     * @return the frame, or null if there is none
+     */
+    Frame poll() {
+        lock.lock();
+        try {
+            return count == 0 ? null : removeHead();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the next frame, waiting for one to be added
+     * @return the frame, or null once the queue is closed
+     */
+    Frame take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (count == 0 && !closed) {
+                notEmpty.await();
+            }
+            return count == 0 ? null : removeHead();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the frame at the head of the ring, the caller holds the lock
+     */
+    private Frame removeHead() {
+        Frame frame = frames[head];
+        frames[head] = null;
+        bytes -= sizes[head];
+        head = (head + 1) % frames.length;
+        count--;
+        return frame;
+    }
+
+    /**
+     * Doubles the ring, the caller holds the lock
+     */
+    private void grow() {
+        Frame[] biggerFrames = new Frame[frames.length * 2];
+        int[] biggerSizes = new int[frames.length * 2];
+        for (int i = 0; i < count; i++) {
+            biggerFrames[i] = frames[(head + i) % frames.length];
+            biggerSizes[i] = sizes[(head + i) % frames.length];
+        }
+        frames = biggerFrames;
+        sizes = biggerSizes;
+        head = 0;
+    }
+
+    /**
+     * Closes the queue, dropping what is left and waking the writer
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            Arrays.fill(frames, null);
+            count = 0;
+            bytes = 0;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of messages waiting
+     */
+    int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of encoded bytes waiting
+     */
+    long bytes() {
+        lock.lock();
+        try {
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of messages dropped by the policy so far
+     */
+    long dropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package server;
+
+import common.ChatterboxProtocol;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Joins and leaves waiting to be announced. Rather than a broadcast to the whole room for every user that comes or
+ * goes, they are collected for a short tick and each room gets one message naming everyone who came and went in
+ * it. A user who leaves and comes back within the same tick, as every user does after a network blip, cancels out
+ * and is not announced at all. Rooms past a size get no announcements, in a room that big they are only noise.
+ * Author: Nick Vaccarello
+ * email: nwv4110@rit.edu
+ */
+class Presence implements Runnable, ChatterboxProtocol {
+    // most userNames spelled out in one announcement, the rest are counted
+    private static final int MAX_NAMED = 5;
+
+    private final ServerSide server;
+    private final long tickMillis;
+    private final int maxRoom;
+    // by room, each userName that joined (true) or left (false) since the last tick, in the order they did;
+    // guarded by this
+    private LinkedHashMap<Room, LinkedHashMap<String, Boolean>> pending =
+            new LinkedHashMap<Room, LinkedHashMap<String, Boolean>>();
+
+    /**
+     * Constructs an empty set of announcements
+     * @param server-the server that broadcasts them
+     * @param tickMillis-how long joins and leaves are collected before they are announced
+     * @param maxRoom-rooms with more users than this get no announcements, 0 for none anywhere
+     */
+    Presence(ServerSide server, int tickMillis, int maxRoom) {
+        this.server = server;
+        this.tickMillis = Math.max(1, tickMillis);
+        this.maxRoom = maxRoom;
+    }
+
+    /**
+     * Starts the thread that announces what has been collected every tick
+     */
+    void start() {
+        Thread thread = new Thread(this, "chatterbox-presence");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Records a user joining a room
+     */
+    void joined(Room room, String userName) {
+        record(room, userName, true);
+    }
+
+    /**
+     * Records a user leaving a room
+     */
+    void left(Room room, String userName) {
+        record(room, userName, false);
+    }
+
+    /**
+     * Records a join or leave, one that undoes the last still waiting cancels it out
+     */
+    private synchronized void record(Room room, String userName, boolean joined) {
+        if (maxRoom == 0) {
+            return;
+        }
+        LinkedHashMap<String, Boolean> changes = pending.get(room);
+        if (changes == null) {
+            changes = new LinkedHashMap<String, Boolean>();
+            pending.put(room, changes);
+        }
+        Boolean last = changes.get(userName);
+        if (last == null) {
+            changes.put(userName, joined);
+        }
+        else if (last != joined) {
+            changes.remove(userName);
+        }
+    }
+
+    /**
+     * Announces what has been collected every tick
+     */
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(tickMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            flush();
+        }
+    }
+
+    /**
+     * Announces every room's joins and leaves in one message per room
+     */
+    void flush() {
+        LinkedHashMap<Room, LinkedHashMap<String, Boolean>> changed;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            changed = pending;
+            pending = new LinkedHashMap<Room, LinkedHashMap<String, Boolean>>();
+        }
+        for (Map.Entry<Room, LinkedHashMap<String, Boolean>> entry : changed.entrySet()) {
+            Room room = entry.getKey();
+            if (entry.getValue().isEmpty() || !announces(room)) {
+                continue;
+            }
+            List<String> joined = new ArrayList<String>();
+            List<String> left = new ArrayList<String>();
+            for (Map.Entry<String, Boolean> change : entry.getValue().entrySet()) {
+                (change.getValue() ? joined : left).add(change.getKey());
+            }
+            StringBuilder message = new StringBuilder(server.notif);
+            if (!joined.isEmpty()) {
+                names(message, joined).append(joined.size() == 1 ? " has joined" : " have joined");
+            }
+            if (!left.isEmpty()) {
+                names(message.append(joined.isEmpty() ? "" : " and "), left)
+                        .append(left.size() == 1 ? " has left" : " have left");
+            }
+            message.append(" the room.").append(server.notif);
+            server.announce(room, joined.isEmpty() ? USER_LEFT : USER_JOINED, message.toString(),
+                    joined.size() + " joined " + left.size() + " left");
+        }
+    }
+
+    /**
+     * Whether joins and leaves are announced in a room, it may be too big for them
+     */
+    boolean announces(Room room) {
+        return maxRoom > 0 && room.size() <= maxRoom;
+    }
+
+    /**
+     * Appends a list of userNames, only spelling out the first few
+     */
+    private static StringBuilder names(StringBuilder message, List<String> names) {
+        int named = names.size() <= MAX_NAMED ? names.size() : MAX_NAMED - 1;
+        for (int i = 0; i < named; i++) {
+            if (i > 0) {
+                message.append(i == names.size() - 1 ? " and " : ", ");
+            }
+            message.append(names.get(i));
+        }
+        if (named < names.size()) {
+            message.append(" and ").append(names.size() - named).append(" others");
+        }
+        return message;
+    }
+}
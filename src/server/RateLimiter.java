@@ -0,0 +1,236 @@
+package server;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits how fast clients may send, in messages and in bytes of text a second, for each user and for each address
+ * the users connect from. Every command is charged before it is handled, so a client sending in a tight loop is
+ * stopped before its messages reach anyone else. The buckets are made when a client logs in; charging a command
+ * only touches buckets the client already holds.
+ * Author: Nick Vaccarello
+ * email: nwv4110@rit.edu
+ */
+class RateLimiter {
+    /**
+     * What is done with a command over the limit
+     */
+    enum Policy {
+        // hold the client's commands back until the buckets allow them
+        DELAY,
+        // drop the command and tell the client
+        DROP,
+        // disconnect the client
+        DISCONNECT;
+
+        /**
+         * Parses a policy as written on the command line, such as drop
+         */
+        static Policy parse(String name) {
+            return valueOf(name.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    /**
+     * Returned by charge when the command is dropped
+     */
+    static final long DROPPED = -1;
+
+    /**
+     * Returned by charge when the client is to be disconnected
+     */
+    static final long DISCONNECTED = -2;
+
+    /**
+     * The buckets of one user or one address
+     */
+    static class Limits {
+        // null when that limit is off
+        final TokenBucket messages;
+        final TokenBucket bytes;
+        // the address shared, null for a user's own limits
+        final InetAddress address;
+        // connections from the address holding these limits, -1 once they are being thrown away
+        final AtomicInteger holders = new AtomicInteger();
+
+        Limits(TokenBucket messages, TokenBucket bytes, InetAddress address) {
+            this.messages = messages;
+            this.bytes = bytes;
+            this.address = address;
+        }
+    }
+
+    private final Policy policy;
+    private final long messagesPerSecond;
+    private final long bytesPerSecond;
+    private final long addressMessagesPerSecond;
+    private final long addressBytesPerSecond;
+    private final long burstMillis;
+    // the limits shared by everyone connecting from an address, only while someone from it is connected
+    private final ConcurrentHashMap<InetAddress, Limits> addresses = new ConcurrentHashMap<InetAddress, Limits>();
+
+    /**
+     * Constructs the rate limits of a server, a rate of 0 turns that limit off
+     * @param config-the startup options
+     */
+    RateLimiter(ServerConfig config) {
+        policy = Policy.parse(config.getOverLimitPolicy());
+        messagesPerSecond = config.getRateMessages();
+        bytesPerSecond = config.getRateBytes();
+        addressMessagesPerSecond = config.getAddressRateMessages();
+        addressBytesPerSecond = config.getAddressRateBytes();
+        burstMillis = config.getRateBurstMillis();
+    }
+
+    /**
+     * Gets what is done with a command over the limit
+     */
+    Policy policy() {
+        return policy;
+    }
+
+    /**
+     * Gives a client that has logged in its own limits and those of its address
+     * @param client-the client
+     */
+    void attach(Connection client) {
+        if (messagesPerSecond > 0 || bytesPerSecond > 0) {
+            client.userLimits = new Limits(bucket(messagesPerSecond), bucket(bytesPerSecond), null);
+        }
+        if (client.address != null && (addressMessagesPerSecond > 0 || addressBytesPerSecond > 0)) {
+            client.addressLimits = hold(client.address);
+        }
+    }
+
+    /**
+     * Lets go of the limits of a client that has left, an address nobody is connected from is forgotten
+     * @param client-the client
+     */
+    void detach(Connection client) {
+        Limits limits = client.addressLimits;
+        if (limits != null && limits.holders.decrementAndGet() == 0 && limits.holders.compareAndSet(0, -1)) {
+            addresses.remove(limits.address, limits);
+        }
+    }
+
+    /**
+     * Hands a parked client's own limits to the connection it came back on, so reconnecting never refills them;
+     * the address may have changed, so the new connection holds the limits of its own
+     * @param parked-the parked client
+     * @param client-the connection it came back on
+     */
+    void resume(Connection parked, Connection client) {
+        attach(client);
+        client.userLimits = parked.userLimits;
+        detach(parked);
+    }
+
+    /**
+     * Gets the limits of an address for one more connection, making them if it is the only one
+     */
+    private Limits hold(InetAddress address) {
+        while (true) {
+            Limits limits = addresses.get(address);
+            if (limits == null) {
+                Limits made = new Limits(bucket(addressMessagesPerSecond), bucket(addressBytesPerSecond), address);
+                limits = addresses.putIfAbsent(address, made);
+                if (limits == null) {
+                    limits = made;
+                }
+            }
+            int holders;
+            do {
+                holders = limits.holders.get();
+            } while (holders >= 0 && !limits.holders.compareAndSet(holders, holders + 1));
+            if (holders >= 0) {
+                return limits;
+            }
+            //The last connection from the address was just leaving, make them again
+            addresses.remove(address, limits);
+        }
+    }
+
+    /**
+     * Makes a bucket, or none if the rate is 0
+     */
+    private TokenBucket bucket(long perSecond) {
+        return perSecond > 0 ? new TokenBucket(perSecond, burstMillis) : null;
+    }
+
+    /**
+     * Charges a command to a client's limits
+     * @param client-the client that sent it
+     * @param bytes-length of its text
+     * @param now-System.nanoTime()
+     * @return 0 to handle it now, with the delay policy how many nanoseconds to hold it first, otherwise DROPPED or
+     *         DISCONNECTED when it is over the limit
+     */
+    long charge(Connection client, long bytes, long now) {
+        Limits user = client.userLimits;
+        Limits address = client.addressLimits;
+        if (policy == Policy.DELAY) {
+            //Everything is borrowed, the client waits for the bucket that is furthest behind
+            long wait = 0;
+            if (user != null) {
+                wait = Math.max(wait, borrow(user.messages, 1, now));
+                wait = Math.max(wait, borrow(user.bytes, bytes, now));
+            }
+            if (address != null) {
+                wait = Math.max(wait, borrow(address.messages, 1, now));
+                wait = Math.max(wait, borrow(address.bytes, bytes, now));
+            }
+            return wait;
+        }
+        //Take from each bucket in turn, giving back to the earlier ones if a later one refuses
+        if (user != null) {
+            if (take(user.messages, 1, now) > 0) {
+                return refused();
+            }
+            if (take(user.bytes, bytes, now) > 0) {
+                refund(user.messages, 1);
+                return refused();
+            }
+        }
+        if (address != null) {
+            if (take(address.messages, 1, now) > 0) {
+                refund(user, bytes);
+                return refused();
+            }
+            if (take(address.bytes, bytes, now) > 0) {
+                refund(user, bytes);
+                refund(address.messages, 1);
+                return refused();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * What charge returns for a command over the limit
+     */
+    private long refused() {
+        return policy == Policy.DISCONNECT ? DISCONNECTED : DROPPED;
+    }
+
+    private static long take(TokenBucket bucket, long cost, long now) {
+        return bucket == null ? 0 : bucket.take(cost, now);
+    }
+
+    private static long borrow(TokenBucket bucket, long cost, long now) {
+        return bucket == null ? 0 : bucket.borrow(cost, now);
+    }
+
+    private static void refund(TokenBucket bucket, long cost) {
+        if (bucket != null) {
+            bucket.refund(cost);
+        }
+    }
+
+    private static void refund(Limits limits, long bytes) {
+        if (limits != null) {
+            refund(limits.messages, 1);
+            refund(limits.bytes, bytes);
+        }
+    }
+}
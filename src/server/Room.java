@@ -0,0 +1,79 @@
+package server;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A named chat room and the clients in it. Broadcasts walk the members without taking any lock, only joining and
+ * leaving lock the room, and only this room, so a busy room never holds up a quiet one.
+ * Author: Nick Vaccarello
+ * email: nwv4110@rit.edu
+ */
+class Room {
+    // name of the room
+    final String name;
+    // the clients in the room
+    private final Set<Connection> members = ConcurrentHashMap.<Connection>newKeySet();
+    // set once the room has emptied and been taken out of the directory, guarded by the room's lock
+    private boolean closed;
+
+    /**
+     * Constructs an empty room
+     * @param name-name of the room
+     */
+    Room(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Adds a client to the room
+     * @param client-the client
+     * @return false if the room has already closed, the caller opens a new one
+     */
+    synchronized boolean add(Connection client) {
+        if (closed) {
+            return false;
+        }
+        members.add(client);
+        return true;
+    }
+
+    /**
+     * Removes a client from the room
+     * @param client-the client
+     * @param closeIfEmpty-whether the room closes when its last client leaves
+     * @return true if the room closed
+     */
+    synchronized boolean remove(Connection client, boolean closeIfEmpty) {
+        members.remove(client);
+        if (closeIfEmpty && members.isEmpty()) {
+            closed = true;
+        }
+        return closed;
+    }
+
+    /**
+     * Puts a client in another's place, the room never looks empty in between so it can not close
+     * @param old-the client leaving
+     * @param client-the client taking its place
+     */
+    synchronized void replace(Connection old, Connection client) {
+        members.add(client);
+        members.remove(old);
+    }
+
+    /**
+     * Gets the clients in the room; safe to walk while clients join and leave
+     */
+    Collection<Connection> members() {
+        return members;
+    }
+
+    /**
+     * Gets the number of clients in the room
+     */
+    int size() {
+        return members.size();
+    }
+}
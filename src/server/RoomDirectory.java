@@ -0,0 +1,129 @@
+package server;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The open chat rooms by name. Every client starts in the lobby, which is always open; any other room opens when
+ * its first client joins and closes when its last client leaves.
+ * Author: Nick Vaccarello
+ * email: nwv4110@rit.edu
+ */
+class RoomDirectory {
+    /**
+     * Name of the room every client starts in
+     */
+    static final String LOBBY = "lobby";
+
+    // most characters in a room name
+    static final int MAX_NAME = 32;
+
+    // the open rooms by name
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<String, Room>();
+    private final Room lobby = new Room(LOBBY);
+
+    /**
+     * Constructs a directory with only the lobby open
+     */
+    RoomDirectory() {
+        rooms.put(LOBBY, lobby);
+    }
+
+    /**
+     * Whether a name can be used for a room: a single word of at most MAX_NAME characters
+     * @param name-the name asked for
+     */
+    static boolean isValidName(String name) {
+        if (name.isEmpty() || name.length() > MAX_NAME) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (!Character.isLetterOrDigit(name.charAt(i)) && name.charAt(i) != '-' && name.charAt(i) != '_') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Puts a client in a room, opening the room if needed. The caller takes the client out of its old room first.
+     * @param name-name of the room
+     * @param client-the client
+     * @return the room
+     */
+    Room enter(String name, Connection client) {
+        while (true) {
+            Room room = rooms.get(name);
+            if (room == null) {
+                Room opened = new Room(name);
+                room = rooms.putIfAbsent(name, opened);
+                if (room == null) {
+                    room = opened;
+                }
+            }
+            if (room.add(client)) {
+                client.room = room;
+                return room;
+            }
+            //It closed as we got to it, make sure it is gone and open a fresh one
+            rooms.remove(name, room);
+        }
+    }
+
+    /**
+     * Takes a client out of the room it is in, closing the room if it was the last one there
+     * @param client-the client
+     * @return the room it left, or null if it was in none
+     */
+    Room leave(Connection client) {
+        Room room = client.room;
+        if (room == null) {
+            return null;
+        }
+        client.room = null;
+        if (room.remove(client, room != lobby)) {
+            rooms.remove(room.name, room);
+        }
+        return room;
+    }
+
+    /**
+     * Puts a client in the room of one it takes the place of, the room is not told anyone came or went
+     * @param old-the client leaving, it is left in no room
+     * @param client-the client taking its place
+     * @return the room, or null if the old client was in none
+     */
+    Room replace(Connection old, Connection client) {
+        Room room = old.room;
+        if (room == null) {
+            return null;
+        }
+        //A room with the old client in it can not close, so the new one always gets in
+        room.replace(old, client);
+        client.room = room;
+        old.room = null;
+        return room;
+    }
+
+    /**
+     * Gets an open room by name
+     * @return the room, or null if nobody is in it
+     */
+    Room get(String name) {
+        return rooms.get(name);
+    }
+
+    /**
+     * Gets the room every client starts in
+     */
+    Room lobby() {
+        return lobby;
+    }
+
+    /**
+     * Gets every open room; safe to walk while rooms open and close
+     */
+    Collection<Room> all() {
+        return rooms.values();
+    }
+}
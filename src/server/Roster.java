@@ -0,0 +1,164 @@
+package server;
+
+import common.ChatterboxProtocol;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The users of the chat for /list, kept as an immutable snapshot sorted by userName. The snapshot is only rebuilt
+ * after a user joins or leaves, here or on another node of the cluster, and each page it renders is kept as a frame,
+ * so asking for the same page again until the next join or leave encodes nothing and walks no client.
+ * Author: Nick Vaccarello
+ * email: nwv4110@rit.edu
+ */
+class Roster implements ChatterboxProtocol {
+    /**
+     * Most users listed in one reply
+     */
+    static final int PAGE_SIZE = 100;
+
+    // most pages kept rendered for one snapshot, prefixes a user makes up are not worth holding on to forever
+    private static final int MAX_RENDERED = 64;
+
+    /**
+     * The users at one version of the roster
+     */
+    static class Snapshot {
+        // the version of the user lists it was built from
+        final long version;
+        // userNames, sorted
+        final String[] names;
+        // what is listed for each userName, in the same order
+        final String[] entries;
+        // pages already rendered, by prefix and page number
+        private final ConcurrentHashMap<String, Frame> rendered = new ConcurrentHashMap<String, Frame>();
+
+        Snapshot(long version, String[] names, String[] entries) {
+            this.version = version;
+            this.names = names;
+            this.entries = entries;
+        }
+
+        /**
+         * Gets the reply listing one page of the users whose userName starts with a prefix
+         * @param prefix-the start of the userNames listed, empty lists everyone
+         * @param page-the page, counted from 1; past the last page gets the last page
+         */
+        Frame page(String prefix, int page) {
+            String key = prefix + " " + page;
+            Frame frame = rendered.get(key);
+            if (frame == null) {
+                frame = new Frame(USERS, render(prefix, page), false);
+                if (rendered.size() < MAX_RENDERED) {
+                    rendered.putIfAbsent(key, frame);
+                }
+            }
+            return frame;
+        }
+
+        /**
+         * Renders a page, the userNames starting with the prefix are found by binary search
+         */
+        private String render(String prefix, int page) {
+            int from = 0;
+            int to = names.length;
+            if (!prefix.isEmpty()) {
+                //Where the prefix is, or would be, in the sorted userNames
+                int found = Arrays.binarySearch(names, prefix);
+                from = found >= 0 ? found : -found - 1;
+                to = from;
+                while (to < names.length && names[to].startsWith(prefix)) {
+                    to++;
+                }
+            }
+            int count = to - from;
+            int pages = Math.max(1, (count + PAGE_SIZE - 1) / PAGE_SIZE);
+            page = Math.min(Math.max(page, 1), pages);
+            int first = (page - 1) * PAGE_SIZE;
+            int last = Math.min(first + PAGE_SIZE, count);
+            StringBuilder text = new StringBuilder("List of the users connected");
+            if (!prefix.isEmpty()) {
+                text.append(" whose name starts with ").append(prefix);
+            }
+            text.append(", ").append(count).append(" in all");
+            if (pages > 1) {
+                text.append(", page ").append(page).append(" of ").append(pages);
+            }
+            for (int i = first; i < last; i++) {
+                text.append('\n').append(i + 1).append(") ").append(entries[from + i]);
+            }
+            if (page < pages) {
+                text.append("\n/list ").append(prefix.isEmpty() ? "" : prefix + " ").append(page + 1)
+                        .append(" for the next page");
+            }
+            return text.toString();
+        }
+    }
+
+    // the clients of this node
+    private final UserDirectory clients;
+    // the latest snapshot, replaced whenever a join or leave has made it stale
+    private volatile Snapshot snapshot = new Snapshot(-1, new String[0], new String[0]);
+
+    /**
+     * Constructs the roster of a server
+     * @param clients-the clients of this node
+     */
+    Roster(UserDirectory clients) {
+        this.clients = clients;
+    }
+
+    /**
+     * Gets the current snapshot, rebuilding it if anyone has joined or left since it was built
+     * @param cluster-the cluster whose users are listed too, or null
+     */
+    Snapshot current(Cluster cluster) {
+        //Both versions only grow, so their sum only stays the same when neither list has changed
+        long version = clients.version() + (cluster == null ? 0 : cluster.rosterVersion());
+        Snapshot current = snapshot;
+        if (current.version == version) {
+            return current;
+        }
+        synchronized (this) {
+            current = snapshot;
+            if (current.version != version) {
+                current = build(version, cluster);
+                snapshot = current;
+            }
+            return current;
+        }
+    }
+
+    /**
+     * Builds a snapshot; a join or leave while it is built changes the version, so the next request builds again
+     */
+    private Snapshot build(long version, Cluster cluster) {
+        List<String[]> users = new ArrayList<String[]>(clients.size());
+        for (Connection client : clients.all()) {
+            users.add(new String[] {client.userName, client.userName + " since " + client.date.trim()});
+        }
+        if (cluster != null) {
+            for (Map.Entry<String, String> remote : cluster.remoteUsers().entrySet()) {
+                users.add(new String[] {remote.getKey(), remote.getKey() + " on " + remote.getValue()});
+            }
+        }
+        String[][] sorted = users.toArray(new String[users.size()][]);
+        Arrays.sort(sorted, new Comparator<String[]>() {
+            public int compare(String[] a, String[] b) {
+                return a[0].compareTo(b[0]);
+            }
+        });
+        String[] names = new String[sorted.length];
+        String[] entries = new String[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            names[i] = sorted[i][0];
+            entries[i] = sorted[i][1];
+        }
+        return new Snapshot(version, names, entries);
+    }
+}
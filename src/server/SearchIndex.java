@@ -0,0 +1,320 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An inverted index over the last chat messages, answering /search. Threads broadcasting a chat only offer it to a
+ * queue and carry on; a single indexer thread splits it into words and appends its number to the posting list of
+ * each word. The messages are kept in a ring the size of the window, and when one falls out of the window its
+ * number is taken off the front of its words' lists, which is always where it is. Posting lists are int arrays of
+ * message numbers, oldest first, so a search walks the shortest list of its words from the newest end and looks
+ * each number up in the others by binary search. Message numbers wrap around as ints, which is safe because they
+ * are only ever compared within the window.
+ * Author: Nick Vaccarello
+ * email: nwv4110@rit.edu
+ */
+class SearchIndex {
+    // most chats waiting for the indexer before new ones are dropped
+    private static final int QUEUE = 65536;
+    // most chats indexed for each time the indexer takes the lock
+    private static final int BATCH = 256;
+    // words longer than this are cut, so pasted noise can not make huge terms
+    private static final int MAX_WORD = 32;
+    // most candidates looked at to answer one search, so a common word in a quiet room can not walk the whole index
+    static final int MAX_SCAN = 100000;
+    // largest window, leaving message numbers far from wrapping into each other
+    private static final int MAX_WINDOW = 1 << 28;
+
+    /**
+     * The message numbers a word appears in, oldest first
+     */
+    private static class Postings {
+        int[] numbers = new int[4];
+        // the live numbers are numbers[start..end)
+        int start;
+        int end;
+
+        void add(int number) {
+            if (end == numbers.length) {
+                //Slide the live part down if most of the array is evicted, otherwise grow it
+                if (start >= numbers.length / 2) {
+                    System.arraycopy(numbers, start, numbers, 0, end - start);
+                }
+                else {
+                    numbers = Arrays.copyOf(numbers, numbers.length * 2);
+                    System.arraycopy(numbers, start, numbers, 0, end - start);
+                }
+                end -= start;
+                start = 0;
+            }
+            numbers[end++] = number;
+        }
+
+        int size() {
+            return end - start;
+        }
+
+        /**
+         * Whether a message number is in the list
+         * @param base-a number at or after every number in the list, so differences from it never wrap
+         */
+        boolean contains(int number, int base) {
+            int target = base - number;
+            int low = start;
+            int high = end - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                //Older numbers are further from base
+                int distance = base - numbers[mid];
+                if (distance > target) {
+                    low = mid + 1;
+                }
+                else if (distance < target) {
+                    high = mid - 1;
+                }
+                else {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A chat waiting for the indexer
+     */
+    private static class Chat {
+        final String room;
+        final String from;
+        final String messageLf;
+
+        Chat(String room, String from, String messageLf) {
+            this.room = room;
+            this.from = from;
+            this.messageLf = messageLf;
+        }
+    }
+
+    // most messages indexed, the oldest fall out beyond it
+    private final int window;
+    private final BlockingQueue<Chat> queue = new ArrayBlockingQueue<Chat>(QUEUE);
+    private final LongAdder dropped = new LongAdder();
+    // the messages in the window, message n in slot n % capacity, grown until it holds the whole window
+    private String[] texts = new String[16];
+    private String[] rooms = new String[16];
+    // where the indexed part, the sender and the message, starts in each text
+    private int[] starts = new int[16];
+    private final Map<String, Postings> postings = new HashMap<String, Postings>();
+    // number of the next message, and of messages in the window
+    private long next;
+    private int count;
+
+    /**
+     * Constructs the index and starts its indexer
+     * @param window-most messages indexed
+     */
+    SearchIndex(int window) {
+        this.window = Math.min(Math.max(1, window), MAX_WINDOW);
+        Thread indexer = new Thread(new Runnable() {
+            public void run() {
+                List<Chat> batch = new ArrayList<Chat>(BATCH);
+                while (true) {
+                    try {
+                        batch.add(queue.take());
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    queue.drainTo(batch, BATCH - 1);
+                    index(batch);
+                    batch.clear();
+                }
+            }
+        }, "chatterbox-search");
+        indexer.setDaemon(true);
+        indexer.start();
+    }
+
+    /**
+     * Hands a chat to the indexer without waiting, it is dropped if the indexer is too far behind
+     * @param room-name of the room it went to
+     * @param from-userName of the sender
+     * @param messageLf-the message as it was delivered
+     */
+    void add(String room, String from, String messageLf) {
+        if (!queue.offer(new Chat(room, from, messageLf))) {
+            dropped.increment();
+        }
+    }
+
+    /**
+     * Indexes a batch of chats, the oldest in the window making way for them
+     */
+    private synchronized void index(List<Chat> batch) {
+        for (Chat chat : batch) {
+            if (count == window) {
+                evict();
+            }
+            else if (count == texts.length) {
+                grow();
+            }
+            long number = next++;
+            int slot = (int) (number % texts.length);
+            int start = chat.messageLf.indexOf(chat.from + ": ");
+            texts[slot] = chat.messageLf;
+            rooms[slot] = chat.room;
+            starts[slot] = Math.max(0, start);
+            count++;
+            for (String word : words(chat.messageLf, starts[slot])) {
+                Postings list = postings.get(word);
+                if (list == null) {
+                    list = new Postings();
+                    postings.put(word, list);
+                }
+                list.add((int) number);
+            }
+        }
+    }
+
+    /**
+     * Takes the oldest message out of the window and off the front of its words' lists
+     */
+    private void evict() {
+        long number = next - count;
+        int slot = (int) (number % texts.length);
+        for (String word : words(texts[slot], starts[slot])) {
+            Postings list = postings.get(word);
+            if (list != null && list.numbers[list.start] == (int) number) {
+                list.start++;
+                if (list.size() == 0) {
+                    postings.remove(word);
+                }
+            }
+        }
+        texts[slot] = null;
+        rooms[slot] = null;
+        count--;
+    }
+
+    /**
+     * Doubles the ring, up to the window, moving every message to its slot in the new one
+     */
+    private void grow() {
+        int capacity = (int) Math.min((long) texts.length * 2, window);
+        String[] newTexts = new String[capacity];
+        String[] newRooms = new String[capacity];
+        int[] newStarts = new int[capacity];
+        for (long number = next - count; number < next; number++) {
+            int from = (int) (number % texts.length);
+            int to = (int) (number % capacity);
+            newTexts[to] = texts[from];
+            newRooms[to] = rooms[from];
+            newStarts[to] = starts[from];
+        }
+        texts = newTexts;
+        rooms = newRooms;
+        starts = newStarts;
+    }
+
+    /**
+     * Gets the distinct words of a message from where its sender is named: runs of letters and digits, lower case
+     * @param text-the message
+     * @param start-where to start
+     */
+    static Set<String> words(String text, int start) {
+        Set<String> words = new LinkedHashSet<String>();
+        int length = text.length();
+        int i = start;
+        while (i < length) {
+            while (i < length && !Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+            int begin = i;
+            while (i < length && Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+            if (i > begin) {
+                words.add(text.substring(begin, Math.min(i, begin + MAX_WORD)).toLowerCase());
+            }
+        }
+        return words;
+    }
+
+    /**
+     * Finds the newest messages in a room that have every word of a search
+     * @param room-name of the room searched
+     * @param terms-the words searched for
+     * @param limit-most messages returned
+     * @return the messages, oldest first, empty if there are no words to search for
+     */
+    synchronized List<String> search(String room, String terms, int limit) {
+        List<String> found = new ArrayList<String>();
+        Set<String> words = words(terms, 0);
+        if (words.isEmpty() || count == 0) {
+            return found;
+        }
+        List<Postings> lists = new ArrayList<Postings>();
+        for (String word : words) {
+            Postings list = postings.get(word);
+            if (list == null) {
+                return found;
+            }
+            lists.add(list);
+        }
+        //Walk the shortest list, the others are only looked into
+        Collections.sort(lists, new Comparator<Postings>() {
+            public int compare(Postings a, Postings b) {
+                return a.size() - b.size();
+            }
+        });
+        Postings shortest = lists.get(0);
+        int newest = (int) (next - 1);
+        int scanned = 0;
+        for (int i = shortest.end - 1; i >= shortest.start && found.size() < limit && scanned < MAX_SCAN; i--) {
+            int number = shortest.numbers[i];
+            scanned++;
+            boolean all = true;
+            for (int l = 1; l < lists.size() && all; l++) {
+                all = lists.get(l).contains(number, newest);
+            }
+            //The number is within the window, so the distance back from the newest gives its full number
+            int slot = (int) ((next - 1 - (newest - number)) % texts.length);
+            if (all && room.equals(rooms[slot])) {
+                found.add(texts[slot]);
+            }
+        }
+        Collections.reverse(found);
+        return found;
+    }
+
+    /**
+     * Gets the number of messages in the window
+     */
+    synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Gets the number of distinct words indexed
+     */
+    synchronized int terms() {
+        return postings.size();
+    }
+
+    /**
+     * Gets the number of chats dropped because the indexer was too far behind
+     */
+    long dropped() {
+        return dropped.sum();
+    }
+}
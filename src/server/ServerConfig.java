@@ -0,0 +1,412 @@
+package server;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Startup options for the server, given on the command line as --name=value pairs
+ * Author: Nick Vaccarello
+ * email: nwv4110@rit.edu
+ */
+public class ServerConfig {
+    // thread-per-client engine, the original ChatterBox server
+    public static final String ENGINE_THREAD = "thread";
+    // blocking engine that runs every client on a virtual thread
+    public static final String ENGINE_VIRTUAL = "virtual";
+    // selector based engine with a fixed pool of event loops
+    public static final String ENGINE_NIO = "nio";
+
+    // all of the options that were given
+    private Map<String, String> options;
+
+    /**
+     * Constructs a config with no options set, every getter returns its default
+     */
+    public ServerConfig() {
+        options = new HashMap<String, String>();
+    }
+
+    /**
+     * Builds a config from the command line arguments
+     * @param args-arguments of the form --name=value
+     * @return the config
+     */
+    public static ServerConfig fromArgs(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            //Only accept --name=value, anything else is a typo we want to hear about
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Unrecognized option: " + arg);
+            }
+            String[] pair = arg.substring(2).split("=", 2);
+            config.set(pair[0], pair[1]);
+        }
+        return config;
+    }
+
+    /**
+     * Sets an option
+     * @param name-name of the option
+     * @param value-value of the option
+     * @return this config
+     */
+    public ServerConfig set(String name, String value) {
+        options.put(name, value);
+        return this;
+    }
+
+    /**
+     * Gets a string option
+     * @param name-name of the option
+     * @param def-value used when the option is not set
+     */
+    public String get(String name, String def) {
+        String value = options.get(name);
+        return value == null ? def : value;
+    }
+
+    /**
+     * Gets an integer option
+     * @param name-name of the option
+     * @param def-value used when the option is not set
+     */
+    public int getInt(String name, int def) {
+        String value = options.get(name);
+        return value == null ? def : Integer.parseInt(value);
+    }
+
+    /**
+     * Gets a long option
+     * @param name-name of the option
+     * @param def-value used when the option is not set
+     */
+    public long getLong(String name, long def) {
+        String value = options.get(name);
+        return value == null ? def : Long.parseLong(value);
+    }
+
+    /**
+     * Gets the engine used to serve connections
+     */
+    public String getEngine() {
+        return get("engine", ENGINE_THREAD);
+    }
+
+    /**
+     * Gets the port the server listens on
+     */
+    public int getPort() {
+        return getInt("port", common.ChatterboxProtocol.PORT);
+    }
+
+    /**
+     * Gets the number of event loops used by the nio engine
+     */
+    public int getEventLoops() {
+        return getInt("loops", Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Gets the most messages that may wait to be written to one client
+     */
+    public int getQueueMessages() {
+        return getInt("queue-messages", 1024);
+    }
+
+    /**
+     * Gets the most encoded bytes that may wait to be written to one client
+     */
+    public int getQueueBytes() {
+        return getInt("queue-bytes", 1 << 20);
+    }
+
+    /**
+     * Gets what happens to a client whose queue is full: drop-oldest, drop-newest or disconnect
+     */
+    public String getSlowConsumerPolicy() {
+        return get("slow-consumer", "drop-oldest");
+    }
+
+    /**
+     * Gets the least important log level printed: trace, debug, info, warn or error
+     */
+    public String getLogLevel() {
+        return get("log-level", "trace");
+    }
+
+    /**
+     * Gets the most log lines that may wait to be printed before new ones are dropped
+     */
+    public int getLogBuffer() {
+        return getInt("log-buffer", 1 << 16);
+    }
+
+    /**
+     * Gets how many per client trace lines are written for every one printed, 1 prints them all
+     */
+    public int getLogSample() {
+        return getInt("log-sample", 1);
+    }
+
+    /**
+     * Gets the directory the message log is kept in, empty to keep no history
+     */
+    public String getHistoryDir() {
+        return get("history-dir", "history");
+    }
+
+    /**
+     * Gets the size of each message log segment file
+     */
+    public int getHistorySegmentBytes() {
+        return getInt("history-segment-bytes", 16 << 20);
+    }
+
+    /**
+     * Gets the most bytes of message log kept, the oldest segments are deleted beyond it
+     */
+    public long getHistoryRetainBytes() {
+        return getLong("history-retain-bytes", 256L << 20);
+    }
+
+    /**
+     * Gets how often, in milliseconds, the message log is forced to disk
+     */
+    public int getHistorySyncMillis() {
+        return getInt("history-sync-ms", 1000);
+    }
+
+    /**
+     * Gets how many of the last chat messages /search looks through, 0 to turn searching off
+     */
+    public int getSearchMessages() {
+        return getInt("search-messages", 1000000);
+    }
+
+    /**
+     * Gets the directory whispers to users who are not connected are kept in, empty to refuse those whispers
+     */
+    public String getMailboxDir() {
+        return get("mailbox-dir", "mailbox");
+    }
+
+    /**
+     * Gets the most whispers held for one user
+     */
+    public int getMailboxMessages() {
+        return getInt("mailbox-messages", 100);
+    }
+
+    /**
+     * Gets the most bytes of whispers held for everyone together
+     */
+    public long getMailboxBytes() {
+        return getLong("mailbox-bytes", 64L << 20);
+    }
+
+    /**
+     * Gets how many hours a whisper is held before it is thrown away, 0 to hold it until the user connects
+     */
+    public int getMailboxAgeHours() {
+        return getInt("mailbox-age-hours", 168);
+    }
+
+    /**
+     * Gets the port other cluster nodes link to, 0 when this server is not part of a cluster
+     */
+    public int getClusterPort() {
+        return getInt("cluster-port", 0);
+    }
+
+    /**
+     * Gets the name of this node, which must be unique in the cluster
+     */
+    public String getNodeName() {
+        return get("node", "node-" + getPort());
+    }
+
+    /**
+     * Gets the cluster ports of the other nodes, given as a comma separated list of host:port
+     */
+    public List<String> getPeers() {
+        List<String> peers = new ArrayList<String>();
+        for (String peer : get("peers", "").split(",")) {
+            if (!peer.trim().isEmpty()) {
+                peers.add(peer.trim());
+            }
+        }
+        return peers;
+    }
+
+    /**
+     * Gets the most relayed events kept for a cluster peer that is behind or reconnecting
+     */
+    public int getClusterBuffer() {
+        return getInt("cluster-buffer", 1 << 16);
+    }
+
+    /**
+     * Gets the PKCS12 key store holding the server's certificate and key, empty to serve plain connections
+     */
+    public String getTlsKeyStore() {
+        return get("tls-keystore", "");
+    }
+
+    /**
+     * Gets the password of the key store and of the key in it
+     */
+    public String getTlsPassword() {
+        return get("tls-password", "changeit");
+    }
+
+    /**
+     * Gets the most TLS sessions kept for clients to resume, 0 for no limit
+     */
+    public int getTlsSessionCache() {
+        return getInt("tls-session-cache", 20480);
+    }
+
+    /**
+     * Gets how many seconds a client may resume its TLS session for
+     */
+    public int getTlsSessionTimeout() {
+        return getInt("tls-session-timeout", 86400);
+    }
+
+    /**
+     * Gets whether the server deflates long payloads for clients that can inflate them
+     */
+    public boolean getDeflate() {
+        return Boolean.parseBoolean(get("deflate", "true"));
+    }
+
+    /**
+     * Gets the most messages written to a client that may wait for it to acknowledge them before writing stops
+     */
+    public int getAckWindow() {
+        return getInt("ack-window", 16384);
+    }
+
+    /**
+     * Gets how long a new connection has to log in before it is closed, in milliseconds
+     */
+    public int getHandshakeMillis() {
+        return getInt("handshake-ms", 10000);
+    }
+
+    /**
+     * Gets the most connections that may be logging in at once, the oldest is closed to make room for another
+     */
+    public int getMaxHandshakes() {
+        return getInt("max-handshakes", 256);
+    }
+
+    /**
+     * Gets the most messages a second each user may send, 0 for no limit
+     */
+    public int getRateMessages() {
+        return getInt("rate-messages", 20);
+    }
+
+    /**
+     * Gets the most bytes of text a second each user may send, 0 for no limit
+     */
+    public int getRateBytes() {
+        return getInt("rate-bytes", 1 << 16);
+    }
+
+    /**
+     * Gets the most messages a second the users connected from one address may send between them, 0 for no limit
+     */
+    public int getAddressRateMessages() {
+        return getInt("ip-rate-messages", 0);
+    }
+
+    /**
+     * Gets the most bytes of text a second the users connected from one address may send between them, 0 for no
+     * limit
+     */
+    public int getAddressRateBytes() {
+        return getInt("ip-rate-bytes", 0);
+    }
+
+    /**
+     * Gets how many milliseconds worth of messages and bytes may be sent in one burst above the rate limits
+     */
+    public int getRateBurstMillis() {
+        return getInt("rate-burst-ms", 2000);
+    }
+
+    /**
+     * Gets what is done with messages over the rate limits: delay, drop or disconnect
+     */
+    public String getOverLimitPolicy() {
+        return get("over-limit", "drop");
+    }
+
+    /**
+     * Gets how many milliseconds joins and leaves are collected before they are announced together
+     */
+    public int getPresenceMillis() {
+        return getInt("presence-ms", 250);
+    }
+
+    /**
+     * Gets the most users a room may have for joins and leaves to be announced in it, 0 to announce none
+     */
+    public int getPresenceMaxRoom() {
+        return getInt("presence-max-room", 1000);
+    }
+
+    /**
+     * Gets how many milliseconds a client whose connection dropped keeps its session, 0 to remove it at once
+     */
+    public int getResumeMillis() {
+        return getInt("resume-ms", 30000);
+    }
+
+    /**
+     * Gets the most messages held for a client while its session waits for it to come back
+     */
+    public int getResumeBuffer() {
+        return getInt("resume-buffer", 1024);
+    }
+
+    /**
+     * Gets the userNames allowed to use admin commands such as /stats, given as a comma separated list. A client
+     * picks its own userName, so admins must also connect from one of getAdminAddresses
+     */
+    public Set<String> getAdmins() {
+        Set<String> admins = new HashSet<String>();
+        for (String name : get("admins", "").split(",")) {
+            if (!name.trim().isEmpty()) {
+                admins.add(name.trim());
+            }
+        }
+        return admins;
+    }
+
+    /**
+     * Gets the addresses admins may use admin commands from, given as a comma separated list; empty, the default,
+     * allows only this machine's loopback addresses
+     */
+    public Set<InetAddress> getAdminAddresses() {
+        Set<InetAddress> addresses = new HashSet<InetAddress>();
+        for (String address : get("admin-addresses", "").split(",")) {
+            if (!address.trim().isEmpty()) {
+                try {
+                    addresses.add(InetAddress.getByName(address.trim()));
+                } catch (UnknownHostException e) {
+                    throw new IllegalArgumentException("Unknown admin address: " + address.trim());
+                }
+            }
+        }
+        return addresses;
+    }
+}
@@ -0,0 +1,222 @@
+package server;
+
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The server's console log. Threads serving clients only drop a line into a ring buffer and carry on, a single
+ * writer thread formats the lines and prints them in batches. When the ring is full the line is dropped and
+ * counted instead of making the caller wait, so logging never holds up message delivery.
+ * Author: Nick Vaccarello
+ * email: nwv4110@rit.edu
+ */
+class ServerLog {
+
+    /**
+     * How much a line matters, a log only keeps lines at or above its level
+     */
+    enum Level {
+        // a protocol line for each client a broadcast reaches
+        TRACE,
+        // a protocol line for each command received
+        DEBUG,
+        // the server starting, clients connecting and leaving
+        INFO,
+        // a client failing or being cut off
+        WARN,
+        // the server itself failing
+        ERROR;
+
+        /**
+         * Parses a level as written on the command line, such as info
+         */
+        static Level parse(String name) {
+            return valueOf(name.trim().toUpperCase());
+        }
+    }
+
+    /**
+     * A line waiting to be printed
+     */
+    private static class Entry {
+        final long millis;
+        final Level level;
+        final String msg;
+
+        Entry(long millis, Level level, String msg) {
+            this.millis = millis;
+            this.level = level;
+            this.msg = msg;
+        }
+    }
+
+    /**
+     * A minute and its formatted time
+     */
+    private static class Minute {
+        final long start;
+        final String text;
+
+        Minute(long start, String text) {
+            this.start = start;
+            this.text = text;
+        }
+    }
+
+    // how long the writer sleeps when there is nothing to print
+    private static final long IDLE_NANOS = 5000000L;
+    // most lines printed with one call to the stream
+    private static final int PRINT_BATCH = 256;
+
+    // the time of the minute formatted last, SimpleDateFormat is only used to refresh it
+    private static final SimpleDateFormat SDF = new SimpleDateFormat("h:mm a");
+    private static volatile Minute minute = new Minute(-1, "");
+
+    // lines waiting, slot i holds sequence numbers i, i + capacity, ...
+    private final AtomicReferenceArray<Entry> slots;
+    private final int mask;
+    // next sequence number to claim, written by every logging thread
+    private final AtomicLong tail = new AtomicLong();
+    // next sequence number to print, only written by the writer
+    private volatile long head;
+    private final Level level;
+    // one of this many per client trace lines is kept
+    private final int traceSample;
+    private final PrintStream out;
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writer;
+    private volatile boolean closed;
+
+    /**
+     * Constructs a log and starts its writer
+     * @param level-the least important level kept
+     * @param capacity-most lines that may wait, rounded up to a power of two
+     * @param traceSample-keep one of this many per client trace lines, 1 keeps them all
+     * @param out-where the lines are printed
+     */
+    ServerLog(Level level, int capacity, int traceSample, PrintStream out) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        slots = new AtomicReferenceArray<Entry>(size);
+        mask = size - 1;
+        this.level = level;
+        this.traceSample = Math.max(1, traceSample);
+        this.out = out;
+        writer = new Thread(new Runnable() {
+            public void run() {
+                writeLoop();
+            }
+        }, "chatterbox-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Whether lines of a level are kept, callers check before building an expensive line
+     */
+    boolean enabled(Level level) {
+        return level.compareTo(this.level) >= 0;
+    }
+
+    /**
+     * Whether the next per client trace line should be logged, applies both the level and the sampling
+     */
+    boolean sampleTrace() {
+        return enabled(Level.TRACE) && (traceSample == 1 || ThreadLocalRandom.current().nextInt(traceSample) == 0);
+    }
+
+    /**
+     * Queues a line without ever blocking
+     * @param level-how much the line matters
+     * @param msg-the line
+     */
+    void log(Level level, String msg) {
+        if (!enabled(level)) {
+            return;
+        }
+        long seq;
+        do {
+            seq = tail.get();
+            //Full, the writer is behind and the line is not worth waiting for
+            if (seq - head >= slots.length()) {
+                dropped.increment();
+                return;
+            }
+        } while (!tail.compareAndSet(seq, seq + 1));
+        slots.lazySet((int) seq & mask, new Entry(System.currentTimeMillis(), level, msg));
+    }
+
+    /**
+     * Drains the ring until the log is closed and everything claimed has been printed
+     */
+    private void writeLoop() {
+        StringBuilder batch = new StringBuilder();
+        while (true) {
+            int lines = 0;
+            long seq = head;
+            Entry entry;
+            //A claimed slot may not be filled yet, it is picked up on the next pass
+            while (lines < PRINT_BATCH && (entry = slots.get((int) seq & mask)) != null) {
+                slots.lazySet((int) seq & mask, null);
+                head = ++seq;
+                batch.append(time(entry.millis)).append(' ').append(entry.level).append(' ').append(entry.msg)
+                        .append(System.lineSeparator());
+                lines++;
+            }
+            long lost = dropped.sumThenReset();
+            if (lost > 0) {
+                batch.append(time(System.currentTimeMillis())).append(' ').append(Level.WARN)
+                        .append(" Log is behind, dropped ").append(lost).append(" lines")
+                        .append(System.lineSeparator());
+            }
+            if (batch.length() > 0) {
+                out.print(batch);
+                out.flush();
+                batch.setLength(0);
+            }
+            else if (closed && head == tail.get()) {
+                return;
+            }
+            else {
+                LockSupport.parkNanos(IDLE_NANOS);
+            }
+        }
+    }
+
+    /**
+     * Prints what is still waiting and stops the writer
+     */
+    void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Formats a time for the console and messages. The text only changes once a minute, so it is formatted once
+     * per minute and shared, any thread may call this.
+     * @param millis-the time
+     */
+    static String time(long millis) {
+        Minute cached = minute;
+        long start = millis - millis % 60000;
+        if (cached.start == start) {
+            return cached.text;
+        }
+        String text;
+        synchronized (SDF) {
+            text = SDF.format(new Date(start));
+        }
+        minute = new Minute(start, text);
+        return text;
+    }
+}
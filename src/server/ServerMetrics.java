@@ -0,0 +1,280 @@
+package server;
+
+import common.ChatterboxProtocol;
+import common.LatencyHistogram;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters, gauges and latency histograms for the server. Every protocol message a client can send gets its own
+ * counter and histogram up front, so recording is a map lookup and a few atomic adds with nothing allocated; the
+ * numbers are read over JMX and with the admin /stats command.
+ * Author: Nick Vaccarello
+ * email: nwv4110@rit.edu
+ */
+class ServerMetrics implements ServerMetricsMXBean, ChatterboxProtocol {
+    /**
+     * Name the metrics are registered under with JMX
+     */
+    static final String OBJECT_NAME = "chatterbox:type=ServerMetrics";
+
+    // the protocol messages a client can send, in the order they are reported
+    private static final String[] COMMANDS = {
+            CONNECT, SEND_CHAT, SEND_WHISPER, LIST_USERS, JOIN_ROOM, LEAVE_ROOM, LIST_ROOMS, GET_HISTORY, GET_STATS,
+            SEARCH, ACK, RESUME, DISCONNECT, ERROR
+    };
+    // most clients reported by getDeepestQueues
+    private static final int DEEPEST = 10;
+    // orders clients by how many messages wait for them, then by how many were dropped
+    private static final Comparator<Connection> BY_DEPTH = new Comparator<Connection>() {
+        public int compare(Connection a, Connection b) {
+            int order = Integer.compare(a.queueDepth(), b.queueDepth());
+            return order != 0 ? order : Long.compare(a.queue.dropped(), b.queue.dropped());
+        }
+    };
+
+    // only read after the constructor, so lookups need no locking
+    private final Map<String, LongAdder> counts = new HashMap<String, LongAdder>();
+    private final Map<String, LatencyHistogram> latencies = new HashMap<String, LatencyHistogram>();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    // commands held back or dropped by the rate limits
+    private final LongAdder rateLimited = new LongAdder();
+    private final UserDirectory clients;
+    private final RoomDirectory rooms;
+    private final Handshakes handshakes;
+    private final Sessions sessions;
+
+    /**
+     * Constructs the metrics of a server
+     * @param clients-the connected clients, for the user gauge
+     * @param rooms-the open rooms, for the room gauge
+     * @param handshakes-the connections logging in, for the handshake gauge and counters
+     * @param sessions-the sessions kept for clients that dropped, for the session gauge and counters
+     */
+    ServerMetrics(UserDirectory clients, RoomDirectory rooms, Handshakes handshakes, Sessions sessions) {
+        this.clients = clients;
+        this.rooms = rooms;
+        this.handshakes = handshakes;
+        this.sessions = sessions;
+        for (String command : COMMANDS) {
+            counts.put(command, new LongAdder());
+            latencies.put(command, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * Records a protocol message that has been handled
+     * @param type-the protocol message
+     * @param receivedNanos-System.nanoTime() when it was read from the client
+     */
+    void command(String type, long receivedNanos) {
+        LongAdder count = counts.get(type);
+        //Anything a client makes up is counted as an error
+        if (count == null) {
+            type = ERROR;
+            count = counts.get(type);
+        }
+        count.increment();
+        latencies.get(type).record(System.nanoTime() - receivedNanos);
+    }
+
+    /**
+     * Records bytes read from a client
+     */
+    void bytesIn(long count) {
+        bytesIn.add(count);
+    }
+
+    /**
+     * Records bytes written to a client
+     */
+    void bytesOut(long count) {
+        bytesOut.add(count);
+    }
+
+    /**
+     * Records a command over the rate limits
+     */
+    void rateLimited() {
+        rateLimited.increment();
+    }
+
+    /**
+     * Wraps a client's input so every byte read is counted
+     * @param in-the socket's input
+     */
+    InputStream counting(InputStream in) {
+        return new FilterInputStream(in) {
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    bytesIn.increment();
+                }
+                return b;
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException {
+                int count = super.read(b, off, len);
+                if (count > 0) {
+                    bytesIn.add(count);
+                }
+                return count;
+            }
+        };
+    }
+
+    public Map<String, Long> getCommandCounts() {
+        Map<String, Long> snapshot = new LinkedHashMap<String, Long>();
+        for (String command : COMMANDS) {
+            snapshot.put(command, counts.get(command).sum());
+        }
+        return snapshot;
+    }
+
+    public Map<String, Long> getLatencyMicros() {
+        Map<String, Long> snapshot = new LinkedHashMap<String, Long>();
+        for (String command : COMMANDS) {
+            LatencyHistogram histogram = latencies.get(command);
+            snapshot.put(command + ".p50", histogram.percentile(50) / 1000);
+            snapshot.put(command + ".p99", histogram.percentile(99) / 1000);
+            snapshot.put(command + ".p999", histogram.percentile(99.9) / 1000);
+            snapshot.put(command + ".max", histogram.max() / 1000);
+        }
+        return snapshot;
+    }
+
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    public int getConnectedUsers() {
+        return clients.size();
+    }
+
+    public int getOpenRooms() {
+        return rooms.all().size();
+    }
+
+    public int getUnackedMessages() {
+        int unacked = 0;
+        for (Connection client : clients.all()) {
+            AckWindow window = client.acks;
+            if (window != null) {
+                unacked += window.size();
+            }
+        }
+        return unacked;
+    }
+
+    public Map<String, Long> getDeepestQueues() {
+        Map<String, Long> snapshot = new LinkedHashMap<String, Long>();
+        for (Connection client : deepest()) {
+            snapshot.put(client.userName + ".waiting", (long) client.queueDepth());
+            snapshot.put(client.userName + ".dropped", client.queue.dropped());
+        }
+        return snapshot;
+    }
+
+    /**
+     * Gets the clients with the most messages waiting for them, deepest first, leaving out those with empty queues
+     * that never dropped anything
+     */
+    private List<Connection> deepest() {
+        //Keep only the deepest few while walking everyone, the shallowest of them on top to be pushed out
+        PriorityQueue<Connection> heap = new PriorityQueue<Connection>(DEEPEST + 1, BY_DEPTH);
+        for (Connection client : clients.all()) {
+            if (client.queueDepth() == 0 && client.queue.dropped() == 0) {
+                continue;
+            }
+            heap.add(client);
+            if (heap.size() > DEEPEST) {
+                heap.poll();
+            }
+        }
+        List<Connection> deepest = new ArrayList<Connection>(heap);
+        Collections.sort(deepest, Collections.reverseOrder(BY_DEPTH));
+        return deepest;
+    }
+
+    public int getPendingHandshakes() {
+        return handshakes.size();
+    }
+
+    public long getHandshakesTimedOut() {
+        return handshakes.timedOut();
+    }
+
+    public long getHandshakesEvicted() {
+        return handshakes.evicted();
+    }
+
+    public int getParkedSessions() {
+        return sessions.size();
+    }
+
+    public long getSessionsResumed() {
+        return sessions.resumed();
+    }
+
+    public long getSessionsExpired() {
+        return sessions.expired();
+    }
+
+    public long getRateLimited() {
+        return rateLimited.sum();
+    }
+
+    public int getThreadCount() {
+        return ManagementFactory.getThreadMXBean().getThreadCount();
+    }
+
+    /**
+     * Gets the metrics as lines of text for the /stats command, leaving out messages never received
+     */
+    List<String> report() {
+        List<String> lines = new ArrayList<String>();
+        lines.add("users=" + getConnectedUsers() + " rooms=" + getOpenRooms() + " threads=" + getThreadCount()
+                + " bytesIn=" + getBytesIn() + " bytesOut=" + getBytesOut() + " unacked=" + getUnackedMessages());
+        lines.add("handshakes=" + getPendingHandshakes() + " timedOut=" + getHandshakesTimedOut() + " evicted="
+                + getHandshakesEvicted() + " rateLimited=" + getRateLimited());
+        lines.add("parked=" + getParkedSessions() + " resumed=" + getSessionsResumed() + " expired="
+                + getSessionsExpired());
+        List<Connection> deepest = deepest();
+        if (!deepest.isEmpty()) {
+            StringBuilder queues = new StringBuilder("queues (waiting/dropped):");
+            for (Connection client : deepest) {
+                queues.append(' ').append(client.userName).append('=').append(client.queueDepth()).append('/')
+                        .append(client.queue.dropped());
+            }
+            lines.add(queues.toString());
+        }
+        for (String command : COMMANDS) {
+            long count = counts.get(command).sum();
+            if (count == 0) {
+                continue;
+            }
+            LatencyHistogram histogram = latencies.get(command);
+            lines.add(command + " count=" + count + " p50=" + histogram.percentile(50) / 1000 + "us p99="
+                    + histogram.percentile(99) / 1000 + "us p99.9=" + histogram.percentile(99.9) / 1000 + "us max="
+                    + histogram.max() / 1000 + "us");
+        }
+        return lines;
+    }
+}
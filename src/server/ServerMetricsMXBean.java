@@ -0,0 +1,92 @@
+package server;
+
+import java.util.Map;
+
+/**
+ * What the server's metrics look like over JMX, under the name chatterbox:type=ServerMetrics
+ * Author: Nick Vaccarello
+ * email: nwv4110@rit.edu
+ */
+public interface ServerMetricsMXBean {
+    /**
+     * Gets how many times each protocol message has been received from clients
+     */
+    Map<String, Long> getCommandCounts();
+
+    /**
+     * Gets the 50th, 99th and 99.9th percentile and the largest time, in microseconds, from receiving each protocol
+     * message to handing the last recipient its copy, keyed like send_chat.p99
+     */
+    Map<String, Long> getLatencyMicros();
+
+    /**
+     * Gets the bytes read from clients
+     */
+    long getBytesIn();
+
+    /**
+     * Gets the bytes written to clients
+     */
+    long getBytesOut();
+
+    /**
+     * Gets the number of users in the chat
+     */
+    int getConnectedUsers();
+
+    /**
+     * Gets the number of open chat rooms
+     */
+    int getOpenRooms();
+
+    /**
+     * Gets the number of messages written to clients that they have not acknowledged yet
+     */
+    int getUnackedMessages();
+
+    /**
+     * Gets the clients with the most messages waiting to be written to them, at most ten, keyed like alice.waiting
+     * and alice.dropped, the second being how many their slow consumer policy has thrown away
+     */
+    Map<String, Long> getDeepestQueues();
+
+    /**
+     * Gets the number of connections accepted that have not logged in yet
+     */
+    int getPendingHandshakes();
+
+    /**
+     * Gets the number of connections closed for not logging in before their deadline
+     */
+    long getHandshakesTimedOut();
+
+    /**
+     * Gets the number of connections closed while logging in to make room for newer ones
+     */
+    long getHandshakesEvicted();
+
+    /**
+     * Gets the number of clients whose connection dropped and whose session waits for them to come back
+     */
+    int getParkedSessions();
+
+    /**
+     * Gets the number of sessions picked up again by a client that came back
+     */
+    long getSessionsResumed();
+
+    /**
+     * Gets the number of sessions whose client did not come back before they expired
+     */
+    long getSessionsExpired();
+
+    /**
+     * Gets the number of commands the rate limits held back or dropped
+     */
+    long getRateLimited();
+
+    /**
+     * Gets the number of live platform threads, virtual threads are not counted
+     */
+    int getThreadCount();
+}
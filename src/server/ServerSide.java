@@ -2,11 +2,26 @@ package server;
 
 
 import common.ChatMessage;
+import common.Tls;
+import common.TlsChannel;
+import common.WireCodec;
 
 import java.io.*;
-import java.text.SimpleDateFormat;
+import java.lang.management.ManagementFactory;
 import java.util.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Inflater;
 
 
 /**
@@ -17,16 +32,54 @@ import java.net.*;
 public class ServerSide implements common.ChatterboxProtocol {
     // a unique ID for each connection
     private static int uniqueId;
-    // an ArrayList to keep the list of the Client
-    private ArrayList<ClientThread> clients;
-    // to display time for each message
-    private SimpleDateFormat sdf;
+    // most queued frames a writer hands to the socket in one write
+    private static final int WRITE_BATCH = 64;
+    // the connected Clients by unique id and by userName
+    private UserDirectory clients;
+    // the open chat rooms, every client is in exactly one
+    private RoomDirectory rooms;
+    // the users listed by /list, rebuilt only when someone joins or leaves
+    private Roster roster;
+    // every chat message and whisper, null when no history is kept
+    private MessageLog history;
+    // whispers to users who are not connected, null when they are refused
+    private Mailbox mailbox;
+    // most messages sent back for one history request
+    private static final int MAX_HISTORY = 500;
+    // the last chat messages by word, null when searching is off
+    private SearchIndex search;
+    // most messages sent back for one search
+    private static final int MAX_SEARCH = 50;
+    // counters and latencies, also registered with JMX
+    final ServerMetrics metrics;
+    // connections accepted that have not logged in yet, each closed if it takes too long
+    final Handshakes handshakes;
+    // how fast each user and each address may send
+    private RateLimiter limiter;
+    // joins and leaves waiting to be announced together
+    private Presence presence;
+    // sessions kept for clients whose connection dropped, until they come back or time runs out
+    private Sessions sessions;
+    // userNames allowed to use admin commands
+    private Set<String> admins;
+    // addresses admins must connect from, empty for loopback only
+    private Set<InetAddress> adminAddresses;
+    // the console, written asynchronously so logging never holds up a broadcast
+    private ServerLog log;
+    // makes the TLS engine of every connection and keeps the sessions clients resume, null for plain connections
+    private SSLContext tls;
+    // the link to the other nodes of the cluster, null when this server runs alone
+    private Cluster cluster;
     // the port number to listen for connection
     private int port;
     // to keep the server running unless specified
     private boolean continueToRun;
     // notification for specific outputs
-    private String notif = " *** ";
+    String notif = " *** ";
+    // startup options
+    private ServerConfig config;
+    // what to do with a client whose outbound queue is full
+    private OutboundQueue.Policy slowConsumerPolicy;
 
     /**
      * Constructor for server, constructs the server with the port, time formatter, and an empty list of clients
@@ -34,276 +87,1206 @@ public class ServerSide implements common.ChatterboxProtocol {
      */
 
     public ServerSide(int port) {
-        this.port = port;
-        sdf = new SimpleDateFormat("h:mm a");
-        clients = new ArrayList<ClientThread>();
+        this(new ServerConfig().set("port", Integer.toString(port)));
     }
 
     /**
-     * The start method starts the server and begins to look for connections between a client
+     * Constructor for server, constructs the server from its startup options
+     * @param config-the startup options
+     */
+    public ServerSide(ServerConfig config) {
+        this.config = config;
+        this.port = config.getPort();
+        slowConsumerPolicy = OutboundQueue.Policy.parse(config.getSlowConsumerPolicy());
+        log = new ServerLog(ServerLog.Level.parse(config.getLogLevel()), config.getLogBuffer(), config.getLogSample(),
+                System.out);
+        clients = new UserDirectory();
+        rooms = new RoomDirectory();
+        roster = new Roster(clients);
+        handshakes = new Handshakes(this, config.getHandshakeMillis(), config.getMaxHandshakes());
+        limiter = new RateLimiter(config);
+        presence = new Presence(this, config.getPresenceMillis(), config.getPresenceMaxRoom());
+        sessions = new Sessions(this, config.getResumeMillis(), config.getResumeBuffer());
+        metrics = new ServerMetrics(clients, rooms, handshakes, sessions);
+        admins = config.getAdmins();
+        adminAddresses = config.getAdminAddresses();
+    }
+
+    /**
+     * Whether a client may use admin commands: its userName must be an admin's, and since any client can log in
+     * with any free name, it must also be connected from an admin address
+     * @param client-the client asking
+     */
+    private boolean admin(Connection client) {
+        InetAddress address = client.address;
+        if (!admins.contains(client.userName) || address == null) {
+            return false;
+        }
+        return adminAddresses.isEmpty() ? address.isLoopbackAddress() : adminAddresses.contains(address);
+    }
+
+    /**
+     * Creates the outbound queue for a new client, bounded as configured at startup
+     */
+    OutboundQueue newQueue() {
+        return new OutboundQueue(config.getQueueMessages(), config.getQueueBytes(), slowConsumerPolicy);
+    }
+
+    /**
+     * Puts TLS on a newly accepted channel if the server is configured for it
+     * @param channel-the accepted channel
+     * @return the channel to read and write through, or null for a plain connection
+     */
+    TlsChannel newTls(SocketChannel channel) throws IOException {
+        if (tls == null) {
+            return null;
+        }
+        SSLEngine engine = tls.createSSLEngine();
+        engine.setUseClientMode(false);
+        return new TlsChannel(channel, engine);
+    }
+
+    /**
+     * Gets the next unique connection id
+     */
+    static synchronized int nextId() {
+        return ++uniqueId;
+    }
+
+    /**
+     * The start method starts the server with the engine chosen at startup
      */
     public void start() {
         continueToRun = true;
+        openHistory();
+        openMailbox();
+        if (config.getSearchMessages() > 0) {
+            search = new SearchIndex(config.getSearchMessages());
+        }
+        registerMetrics();
+        handshakes.start();
+        presence.start();
+        sessions.start();
+        if (!config.getTlsKeyStore().isEmpty()) {
+            try {
+                tls = Tls.server(config.getTlsKeyStore(), config.getTlsPassword(), config.getTlsSessionCache(),
+                        config.getTlsSessionTimeout());
+            } catch (IOException | java.security.GeneralSecurityException e) {
+                display(ServerLog.Level.ERROR, ">>"+FATAL_ERROR+SEPARATOR+" Exception loading the TLS key store: " + e);
+                return;
+            }
+        }
+        if (config.getClusterPort() > 0) {
+            cluster = new Cluster(this, config.getNodeName(), config.getClusterPort(), config.getPeers(),
+                    config.getClusterBuffer());
+            try {
+                cluster.start();
+            } catch (IOException e) {
+                display(ServerLog.Level.ERROR, ">>"+FATAL_ERROR+SEPARATOR+" Exception on the cluster port: " + e);
+                return;
+            }
+        }
+        //Force the history and the mailbox to disk and print what the log still holds when the server is stopped
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                if (history != null) {
+                    history.close();
+                }
+                if (mailbox != null) {
+                    mailbox.close();
+                }
+                log.close();
+            }
+        }));
+        display("Starting the " + config.getEngine() + " engine.");
+        if (config.getEngine().equals(ServerConfig.ENGINE_NIO)) {
+            try {
+                new NioServer(this, port, config.getEventLoops()).run();
+            } catch (IOException e) {
+                display(ServerLog.Level.ERROR, ">>"+FATAL_ERROR+SEPARATOR+" Exception on new ServerSocketChannel: " + e);
+            }
+        }
+        else if (config.getEngine().equals(ServerConfig.ENGINE_VIRTUAL)) {
+            ExecutorService executor = newVirtualThreadExecutor();
+            if (executor == null) {
+                display(ServerLog.Level.WARN, "Virtual threads need Java 21 or newer, using platform threads instead.");
+                executor = Executors.newCachedThreadPool();
+            }
+            startThreads(executor);
+        }
+        else {
+            startThreads(Executors.newCachedThreadPool());
+        }
+    }
+
+    /**
+     * Opens the message log if one is configured, the server runs without history if it can not be opened
+     */
+    private void openHistory() {
+        if (config.getHistoryDir().isEmpty()) {
+            return;
+        }
         try {
-            // the socket used by the server with the port
-            ServerSocket serverSocket = new ServerSocket(port);
+            history = new MessageLog(new File(config.getHistoryDir()), config.getHistorySegmentBytes(),
+                    config.getHistoryRetainBytes(), config.getHistorySyncMillis());
+            display("Message history in " + config.getHistoryDir() + ", " + history.segmentCount() + " segments.");
+        } catch (IOException e) {
+            display(ServerLog.Level.ERROR, "No message history, the log can not be opened: " + e);
+        }
+    }
+
+    /**
+     * Opens the mailbox if one is configured, whispers to users who are not connected are refused without it
+     */
+    private void openMailbox() {
+        if (config.getMailboxDir().isEmpty()) {
+            return;
+        }
+        try {
+            mailbox = new Mailbox(new File(config.getMailboxDir()), config.getMailboxMessages(),
+                    config.getMailboxBytes(), TimeUnit.HOURS.toMillis(config.getMailboxAgeHours()),
+                    config.getHistorySyncMillis());
+            display("Mailbox in " + config.getMailboxDir() + ", " + mailbox.size() + " whispers held for "
+                    + mailbox.recipients() + " users.");
+        } catch (IOException e) {
+            display(ServerLog.Level.ERROR, "No mailbox, it can not be opened: " + e);
+        }
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server, the server runs without JMX if that fails
+     */
+    private void registerMetrics() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName(ServerMetrics.OBJECT_NAME));
+        } catch (JMException e) {
+            display(ServerLog.Level.WARN, "Metrics not available over JMX: " + e);
+        }
+    }
+
+    /**
+     * Appends a message to the history, and hands chats to the search index, a failure is logged and the message is
+     * still delivered
+     * @param kind-MessageLog.CHAT or MessageLog.WHISPER
+     * @param to-the room or the user the message went to
+     * @param from-userName of the sender
+     * @param text-the message as it was delivered
+     */
+    private void record(byte kind, String to, String from, String text) {
+        if (kind == MessageLog.CHAT && search != null) {
+            search.add(to, from, text);
+        }
+        if (history == null) {
+            return;
+        }
+        try {
+            history.append(kind, to, from, text);
+        } catch (IOException e) {
+            display(ServerLog.Level.WARN, "Message not added to history: " + e);
+        }
+    }
+
+    /**
+     * Creates an executor that starts a virtual thread for every task
+     * @return the executor, or null if this Java version has no virtual threads
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            // looked up by name so the server still builds and runs on Java versions without virtual threads
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Serves every client on its own thread, blocking on the ServerSocket for new connections
+     * @param executor-runs each client's blocking read loop and its writer, two threads per client
+     */
+    private void startThreads(ExecutorService executor) {
+        try {
+            // the socket used by the server with the port, a blocking channel so writers can hand it shared buffers
+            ServerSocketChannel serverSocket = ServerSocketChannel.open();
+            serverSocket.bind(new InetSocketAddress(port));
 
             // Loop to continuously look for connections
             while (continueToRun) {
                 display("Waiting connection on port: " + port + ".");
                 // accept connection if requested from client
-                Socket socket = serverSocket.accept();
-                display("ChatterboxClient connection received from "+socket.getInetAddress());
+                SocketChannel socket = serverSocket.accept();
+                display("ChatterboxClient connection received from "+socket.socket().getInetAddress());
                 // break if server stopped
                 if (!continueToRun)
                     break;
-                // Create thread for connected client
-                ClientThread client = new ClientThread(socket);
-                //add this client to arraylist
-                clients.add(client);
-                client.start();
+                // Create thread for connected client, it logs in and adds itself to the list on that thread so
+                // a client that is slow to send its userName never holds up the next accept
+                ClientThread client = new ClientThread(socket, executor);
+                handshakes.begin(client);
+                executor.execute(client);
             }
             // When the server has stop running, attempt to close the data streams
             try {
                 serverSocket.close();
-                for (int i = 0; i < clients.size(); ++i) {
-                    ClientThread tc = clients.get(i);
-                    try {
-                        // close all data streams and socket
-                        tc.sInput.close();
-                        tc.sOutput.close();
-                        tc.socket.close();
-                    } catch (IOException ioE) {
-                    }
+                executor.shutdown();
+                for (Connection ct : clients.all()) {
+                    // close all data streams and socket
+                    ct.close();
                 }
             } catch (Exception e) {
-                display(">>"+FATAL_ERROR+SEPARATOR+" Exception closing the server and clients: " + e);
+                display(ServerLog.Level.ERROR, ">>"+FATAL_ERROR+SEPARATOR+" Exception closing the server and clients: " + e);
             }
         } catch (IOException e) {
-            String msg = sdf.format(new Date()) +">>"+FATAL_ERROR+SEPARATOR+" Exception on new ServerSocket: " + e + "\n";
-            display(msg);
+            display(ServerLog.Level.ERROR, ">>"+FATAL_ERROR+SEPARATOR+" Exception on new ServerSocket: " + e);
         }
     }
 
+    /**
+     * Formats the current time for messages
+     */
+    private String time() {
+        return ServerLog.time(System.currentTimeMillis());
+    }
+
     /**
      * Display function for the server's console
      * @param msg-the message being displayed
      */
-    private void display(String msg) {
-        String time = sdf.format(new Date()) + " " + msg;
-        System.out.println(time);
+    void display(String msg) {
+        log.log(ServerLog.Level.INFO, msg);
     }
 
     /**
-     * This method broadcasts the appropriate display to the client(s) depending on the command
-     * @param message-message being broadcast
-     * @param isPrivate-boolean for determining if the message is sent privately
-     * @return
+     * Display function for the server's console
+     * @param level-how much the message matters
+     * @param msg-the message being displayed
+     */
+    void display(ServerLog.Level level, String msg) {
+        log.log(level, msg);
+    }
+
+    /**
+     * This method sends a private message to the mentioned user only, whichever room they are in, or holds it in
+     * the mailbox if they are not connected, and answers the sender
+     * @param client-the sender
+     * @param message-the recipient's userName followed by the message
      */
-    private synchronized boolean broadcast(String message, boolean isPrivate,String userName) {
+    private void whisper(Connection client, String message) {
+        String userName = client.userName;
         // add timestamp to the message
-        String time = sdf.format(new Date());
+        String time = time();
         //splits the message into user, then message
         String[] w = message.split(" ", 2);
-        // if private message, send message to mentioned userName only
-        if (isPrivate) {
-            String tocheck = w[0];
-            message =userName +" (private message): " + w[1];
-            String messageLf = time + " " + message + "\n";
-            boolean found = false;
-            //Loop in reverse to find the userName
-            for (int y = clients.size(); --y >= 0; ) {
-                ClientThread ct1 = clients.get(y);
-                String check = ct1.getuserName();
-                if (check.equals(tocheck)) {
-                    //try to write to Client if it fails remove it from list since that client is no longer connected
-                    if (!ct1.writeMsg(messageLf)) {
-                        clients.remove(y);
-                        display("Disconnected Client " + ct1.userName + " removed from list.");
-                    }
-                    display("<<"+ct1.userName+": "+WHISPER_RECEIVED+SEPARATOR+tocheck+SEPARATOR+w[1]);
-                    found = true;
-                    break;
-                }
+        String tocheck = w[0];
+        message =userName +" (private message): " + w[1];
+        String messageLf = time + " " + message + "\n";
+        //Look the userName up, a user on another node gets it through the cluster
+        Connection ct1 = clients.get(tocheck);
+        if (ct1 == null) {
+            if (cluster != null && cluster.whisper(tocheck, userName, messageLf)) {
+                display(ServerLog.Level.DEBUG, "<<"+tocheck+"@"+cluster.nodeOf(tocheck)+": "+WHISPER_RECEIVED+SEPARATOR+tocheck+SEPARATOR+w[1]);
+                record(MessageLog.WHISPER, tocheck, userName, messageLf);
+                whispered(client, tocheck, w[1]);
+            }
+            else {
+                mail(client, tocheck, w[1], messageLf);
             }
-            //return whether the user was found or not
-            return found;
+            return;
         }
-        //If all clients are to receive the message
-        else {
-            String messageLf = time + " " + message + "\n";
-            String[] user = message.split(" ");
-            boolean success;
-            for (int i = clients.size(); --i >= 0; ) {
-                ClientThread ct = clients.get(i);
-                //Display a user joining
-                if(message.contains("joined")){
-                    display(">>"+ct.userName+": "+USER_JOINED+SEPARATOR+user[2]);
-                    ct.writeMsg(messageLf);
-                }
-                //Display a user leaving
-                else if(message.contains("left")){
-                    display(">>"+ct.userName+": "+USER_LEFT+SEPARATOR+user[2]);
-                    ct.writeMsg(messageLf);
-                }
-                //Display the message
-                else if(success=ct.writeMsg(messageLf)){
-                    user[0] = user[0].replace(":", "");
-                    display(">>"+ct.userName+": "+CHAT_RECEIVED+SEPARATOR+user[0]+SEPARATOR+w[1]);
-                }
-                //try to write to Client if it fails remove it from list since that client is no longer connected
-                else if(!success){
-                    clients.remove(i);
-                    display("Disconnected Client " + ct.userName + " removed from list.");
-                }
+        //try to write to Client if it fails remove it from list since that client is no longer connected
+        if (!ct1.writeMsg(WHISPER_RECEIVED, messageLf)) {
+            drop(ct1);
+        }
+        display(ServerLog.Level.DEBUG, "<<"+ct1.userName+": "+WHISPER_RECEIVED+SEPARATOR+tocheck+SEPARATOR+w[1]);
+        record(MessageLog.WHISPER, tocheck, userName, messageLf);
+        whispered(client, tocheck, w[1]);
+    }
+
+    /**
+     * Tells a client its whisper was delivered
+     * @param client-the sender
+     * @param user-userName of the recipient
+     * @param text-what was whispered
+     */
+    private void whispered(Connection client, String user, String text) {
+        //Display server protocol for a private message that has been sent
+        display(ServerLog.Level.DEBUG, "<<"+client.userName+": "+WHISPER_SENT+SEPARATOR+user+SEPARATOR+text);
+        client.writeMsg(WHISPER_SENT, "You whispered to "+ user+": "+text);
+    }
+
+    /**
+     * Holds a whisper for a user who is not connected anywhere, until they next log in
+     * @param client-the sender
+     * @param user-userName of the recipient
+     * @param text-what was whispered
+     * @param messageLf-the whisper as it is delivered
+     */
+    private void mail(Connection client, String user, String text, String messageLf) {
+        if (mailbox == null) {
+            client.writeMsg(ERROR, notif + "Sorry. No such user exists." + notif);
+            return;
+        }
+        try {
+            if (!mailbox.put(user, messageLf)) {
+                client.writeMsg(ERROR, notif + user + " is not connected and their mailbox is full." + notif);
+                return;
             }
+        } catch (IOException e) {
+            display(ServerLog.Level.WARN, "Whisper not added to the mailbox: " + e);
+            client.writeMsg(ERROR, notif + user + " is not connected and the whisper could not be kept." + notif);
+            return;
+        }
+        display(ServerLog.Level.DEBUG, "<<"+user+"@mailbox: "+WHISPER_RECEIVED+SEPARATOR+user+SEPARATOR+text);
+        record(MessageLog.WHISPER, user, client.userName, messageLf);
+        client.writeMsg(WHISPER_SENT, user + " is not connected, you whispered to them for when they are: " + text);
+        //Logged in while the whisper was held, it would otherwise wait for the next time
+        Connection ct = clients.get(user);
+        if (ct != null) {
+            deliverMail(ct);
         }
-        //Return true was the broadcast is complete
-        return true;
     }
 
     /**
-     * Method for removing a user for the server
-     * @param id-The position the client is at in the arrayList
+     * Hands a client every whisper held for it in one message
+     * @param client-the client, logged in
      */
-    synchronized void remove(int id) {
+    private void deliverMail(Connection client) {
+        List<String> letters;
+        try {
+            letters = mailbox.take(client.userName);
+        } catch (IOException e) {
+            display(ServerLog.Level.WARN, "Mailbox of " + client.userName + " not read: " + e);
+            return;
+        }
+        if (letters.isEmpty()) {
+            return;
+        }
+        StringBuilder message = new StringBuilder(notif).append(letters.size())
+                .append(letters.size() == 1 ? " whisper" : " whispers").append(" arrived while you were away:")
+                .append(notif).append('\n');
+        for (String letter : letters) {
+            message.append(letter);
+        }
+        client.writeMsg(WHISPER_RECEIVED, message.toString());
+        display(ServerLog.Level.DEBUG, ">>"+client.userName+": "+WHISPER_RECEIVED+SEPARATOR+letters.size()+" from the mailbox");
+    }
 
-        String disconnectedClient = "";
-        for (int i = 0; i < clients.size(); ++i) {
-            ClientThread ct = clients.get(i);
-            //Remove if found
-            if (ct.id == id) {
-                disconnectedClient = ct.getuserName();
-                clients.remove(i);
-                break;
+    /**
+     * This method broadcasts a message to every client in a room, on this node and the rest of the cluster
+     * @param room-the room the message goes to
+     * @param from-userName of the client it is from
+     * @param type-CHAT_RECEIVED, USER_JOINED or USER_LEFT
+     * @param message-message being broadcast
+     * @param detail-what the trace line shows after the type
+     * @return the message as it was delivered
+     */
+    private String broadcast(Room room, String from, String type, String message, String detail) {
+        // add timestamp and, outside the lobby, the room to the message
+        String messageLf = time() + " " + (room == rooms.lobby() ? "" : "[" + room.name + "] ") + message + "\n";
+        deliver(room, type, messageLf, detail);
+        if (cluster != null) {
+            cluster.chat(room.name, from, type, messageLf);
+        }
+        return messageLf;
+    }
+
+    /**
+     * Broadcasts the joins and leaves collected in a room
+     * @param room-the room
+     * @param type-USER_JOINED, or USER_LEFT when nobody joined
+     * @param message-the announcement
+     * @param detail-what the trace line shows after the type
+     */
+    void announce(Room room, String type, String message, String detail) {
+        broadcast(room, "", type, message, detail);
+    }
+
+    /**
+     * Writes a message to every client of this node in a room. It takes no lock, so traffic in one room never
+     * waits on another and a client blocked on a slow socket only delays its own writes.
+     * @param room-the room the message goes to
+     * @param type-CHAT_RECEIVED, USER_JOINED or USER_LEFT
+     * @param messageLf-message as it is delivered
+     * @param detail-what the trace line shows after the type
+     */
+    private void deliver(Room room, String type, String messageLf, String detail) {
+        //Encoded at most once per wire format, every client writes the same bytes
+        Frame frame = new Frame(type, messageLf, true);
+        for (Connection ct : room.members()) {
+            //try to write to Client if it fails remove it from list since that client is no longer connected
+            if (!ct.send(frame)) {
+                drop(ct);
+            }
+            //Trace the delivery, the line is only built if the log wants it
+            else if (log.sampleTrace()) {
+                display(ServerLog.Level.TRACE, ">>"+ct.userName+": "+type+SEPARATOR+detail);
+            }
+        }
+    }
+
+    /**
+     * Delivers a broadcast from another node of the cluster to the clients of this node in the room
+     * @param name-name of the room
+     * @param from-userName of the client it is from
+     * @param type-CHAT_RECEIVED, USER_JOINED or USER_LEFT
+     * @param messageLf-message as it is delivered
+     */
+    void relayed(String name, String from, String type, String messageLf) {
+        Room room = rooms.get(name);
+        //Joins and leaves come already collected, but this node's room may be too big for them
+        if (room != null && (type.equals(CHAT_RECEIVED) || presence.announces(room))) {
+            deliver(room, type, messageLf, from);
+        }
+        //Every node keeps the history of the whole cluster, so any of them can answer /history
+        if (type.equals(CHAT_RECEIVED)) {
+            record(MessageLog.CHAT, name, from, messageLf);
+        }
+    }
+
+    /**
+     * Delivers a whisper from another node of the cluster
+     * @param to-userName of the recipient
+     * @param from-userName of the sender
+     * @param messageLf-message as it is delivered
+     */
+    void relayedWhisper(String to, String from, String messageLf) {
+        Connection ct = clients.get(to);
+        if (ct == null) {
+            return;
+        }
+        if (!ct.writeMsg(WHISPER_RECEIVED, messageLf)) {
+            drop(ct);
+        }
+        display(ServerLog.Level.DEBUG, "<<"+to+": "+WHISPER_RECEIVED+SEPARATOR+from+"@cluster");
+        record(MessageLog.WHISPER, to, from, messageLf);
+    }
+
+    /**
+     * Takes a client that could not be written to out of the chat without announcing it, its engine notices the
+     * closed connection and finishes removing it
+     * @param ct-the client
+     */
+    private void drop(Connection ct) {
+        //Always leave the room, the client may have moved since it was taken out of the list
+        rooms.leave(ct);
+        if (clients.remove(ct.id) != null) {
+            limiter.detach(ct);
+            sessions.forget(ct);
+            display(ServerLog.Level.WARN, "Disconnected Client " + ct.userName + " removed from list.");
+            if (cluster != null) {
+                cluster.left(ct.userName);
             }
         }
+    }
+
+    /**
+     * Method for removing a user for the server
+     * @param id-The unique id of the client
+     */
+    void remove(int id) {
+        //A client that dropped without saying goodbye keeps its session for a while, it may be back in a moment
+        Connection ct = clients.get(id);
+        if (ct != null && ct.token != null && !ct.quit) {
+            park(ct);
+            return;
+        }
+        ct = clients.remove(id);
+        //Already removed, the leave has been announced
+        if (ct == null) {
+            return;
+        }
+        String disconnectedClient = ct.getuserName();
+        limiter.detach(ct);
+        sessions.forget(ct);
+        Room room = rooms.leave(ct);
+        if (cluster != null) {
+            cluster.left(disconnectedClient);
+        }
         //Display sever protocol
-        display(">>"+disconnectedClient+": "+DISCONNECTED);
-        //Display the user leaving the chat room
-        broadcast(notif + disconnectedClient + " has left the chat room." + notif, false, "");
+        display(ServerLog.Level.DEBUG, ">>"+disconnectedClient+": "+DISCONNECTED);
+        //Say how much the client never confirmed receiving
+        AckWindow window = ct.acks;
+        if (window != null && window.size() + window.unconfirmed() > 0) {
+            display(disconnectedClient + " left with " + window.size() + " messages unacknowledged and "
+                    + window.unconfirmed() + " given up unconfirmed.");
+        }
+        //Announce the user leaving the chat room with the others leaving about now
+        if (room != null) {
+            presence.left(room, disconnectedClient);
+        }
+    }
+
+    /**
+     * Parks a client whose connection dropped: it stays in its room holding its userName, nobody is told, and what
+     * is sent to it is held until it resumes its session or the session expires
+     * @param ct-the client
+     * @return false if it had already been removed
+     */
+    private boolean park(Connection ct) {
+        if (!clients.park(ct)) {
+            return false;
+        }
+        sessions.park(ct);
+        display(ServerLog.Level.DEBUG, ct.userName + " lost its connection, its session is kept for "
+                + config.getResumeMillis() + " ms.");
+        return true;
+    }
+
+    /**
+     * Removes a parked client whose session ran out of time, announcing it left as if it had just gone
+     * @param ct-the client
+     */
+    void expire(Connection ct) {
+        String userName = ct.userName;
+        clients.release(ct);
+        limiter.detach(ct);
+        Room room = rooms.leave(ct);
+        if (cluster != null) {
+            cluster.left(userName);
+        }
+        display(ServerLog.Level.DEBUG, ">>"+userName+": "+DISCONNECTED+SEPARATOR+"session expired");
+        if (room != null) {
+            presence.left(room, userName);
+        }
+    }
+
+    /**
+     * Resumes the session of a client whose connection dropped on the connection it came back on. The new
+     * connection takes the client's place in its room and in the directory without anyone being told, then is
+     * sent the token again, what was written to the old connection and never received, and what was held while
+     * the client was away, in that order, and CONNECTED at framing versions that have it.
+     * @param client-the connection the client came back on
+     * @param message-the session token and the number of messages the client received before
+     * @return false if there is no such session, the engine then tells the client and closes it
+     */
+    boolean resume(Connection client, String message) {
+        long start = System.nanoTime();
+        String[] words = message.trim().split(" ");
+        long received;
+        try {
+            received = words.length == 2 ? Long.parseLong(words[1]) : -1;
+        } catch (NumberFormatException e) {
+            received = -1;
+        }
+        Connection old = received < 0 || !client.resumable ? null : sessions.claim(words[0]);
+        if (old == null) {
+            display(ServerLog.Level.DEBUG, ">>unknown user: "+FATAL_ERROR+SEPARATOR+"no session to resume");
+            return false;
+        }
+        //Still connected as far as this server knows, its socket has not failed yet
+        if (old.parked == null) {
+            if (!park(old)) {
+                return false;
+            }
+            old.quit = true;
+            old.close();
+        }
+        display(ServerLog.Level.DEBUG, "<<"+old.userName+": "+RESUME+SEPARATOR+received);
+        client.userName = old.userName;
+        client.date = old.date;
+        client.token = old.token;
+        //Commands the server handled carry on too, the first acknowledgement tells the client which were lost
+        client.commands = old.commands;
+        limiter.resume(old, client);
+        client.acks = new AckWindow(config.getAckWindow(), received);
+        client.writeMsg(SESSION, client.token);
+        acknowledge(client);
+        int replayed = 0;
+        for (Frame frame : old.acks.since(received)) {
+            client.send(frame);
+            replayed++;
+        }
+        replayed += old.parked.handOver(client);
+        sessions.resumed(client);
+        clients.resume(old, client);
+        if (rooms.replace(old, client) == null) {
+            rooms.enter(RoomDirectory.LOBBY, client);
+        }
+        long lost = old.parked.lost();
+        if (lost > 0) {
+            client.writeMsg(ERROR, notif + lost + " messages sent while you were away were lost." + notif);
+        }
+        //Whatever comes after this answers the client's commands from now on
+        if (client.replies) {
+            client.writeMsg(CONNECTED, client.userName);
+        }
+        display(ServerLog.Level.DEBUG, ">>"+client.userName+": "+SESSION+SEPARATOR+replayed+" replayed");
+        metrics.command(RESUME, start);
+        return true;
+    }
+
+    /**
+     * The message sent to a client that asked to resume a session that is gone
+     */
+    String sessionLost() {
+        return notif + "Your session has expired, please connect again." + notif;
+    }
+
+    /**
+     * Adds a client to the chat room once it has sent its userName
+     * @param client-the connection that has logged in
+     * @param userName-userName of the Client
+     * @return false if the userName is already in use, the engine then tells the client and closes it
+     */
+    boolean join(Connection client, String userName) {
+        long start = System.nanoTime();
+        //Display protocol to connect user
+        display(ServerLog.Level.DEBUG, "<<unknown user: "+CONNECT+SEPARATOR+userName);
+        //Claim the name first so two clients logging in with it at once can not both get it; a name taken on
+        //another node is refused too, though two nodes may both hand out a name in the moment before they hear
+        if ((cluster != null && cluster.nodeOf(userName) != null) || !clients.claim(userName, client)) {
+            display(ServerLog.Level.WARN, ">>unknown user: "+FATAL_ERROR+SEPARATOR+"userName "+userName+" is already in use");
+            return false;
+        }
+        client.userName = userName;
+        limiter.attach(client);
+        //add this client to the connected clients, starting in the lobby, and announce it with the others
+        //joining about now
+        presence.joined(rooms.enter(RoomDirectory.LOBBY, client), userName);
+        clients.add(client);
+        if (cluster != null) {
+            cluster.joined(userName, RoomDirectory.LOBBY);
+        }
+        //The token to come back with if the connection drops
+        if (client.resumable) {
+            client.writeMsg(SESSION, sessions.issue(client));
+        }
+        if (client.replies) {
+            client.writeMsg(CONNECTED, userName);
+        }
+        //Display protocol of user being connected
+        display(ServerLog.Level.DEBUG, ">>"+userName+": "+CONNECTED);
+        //Whispers sent while the user was away, the name is claimed so any sent from now on come straight here
+        if (mailbox != null) {
+            deliverMail(client);
+        }
+        metrics.command(CONNECT, start);
+        return true;
+    }
+
+    /**
+     * Moves a client to another room, telling the room it leaves and the room it joins
+     * @param client-the client
+     * @param name-name of the room, which is opened if nobody is in it
+     */
+    private void move(Connection client, String name) {
+        Room old = client.room;
+        if (old != null && old.name.equals(name)) {
+            client.writeMsg(ERROR, notif + "You are already in " + name + "." + notif);
+            return;
+        }
+        String userName = client.userName;
+        if (rooms.leave(client) != null) {
+            presence.left(old, userName);
+        }
+        //The client hears straight away how many are in the room, the rest hear of it with the next announcement
+        Room room = rooms.enter(name, client);
+        presence.joined(room, userName);
+        int others = room.size() - 1;
+        if (cluster != null) {
+            cluster.joined(userName, name);
+            Integer remote = cluster.remoteRooms().get(name);
+            others += remote == null ? 0 : remote;
+        }
+        client.writeMsg(USER_JOINED, notif + "You are now in " + name + " with " + others + " other users." + notif);
+    }
+
+    /**
+     * Sends a client the last messages of its room and its whispers
+     * @param client-the client
+     * @param count-how many messages, 20 if empty
+     */
+    private void sendHistory(Connection client, String count) {
+        if (history == null) {
+            client.writeMsg(ERROR, notif + "This server keeps no history." + notif);
+            return;
+        }
+        int n;
+        try {
+            n = count.trim().isEmpty() ? 20 : Integer.parseInt(count.trim());
+        } catch (NumberFormatException e) {
+            client.writeMsg(ERROR, notif + "Usage: /history <number of messages>" + notif);
+            return;
+        }
+        Room room = client.room;
+        List<String> messages = history.history(room == null ? "" : room.name, client.userName,
+                Math.max(0, Math.min(n, MAX_HISTORY)));
+        client.writeMsg(HISTORY, "Last " + messages.size() + " messages at " + time() + "\n");
+        for (String message : messages) {
+            client.writeMsg(HISTORY, message);
+        }
+    }
+
+    /**
+     * Sends a client the newest messages of its room that have every word it searched for
+     * @param client-the client
+     * @param terms-the words
+     */
+    private void sendSearch(Connection client, String terms) {
+        if (search == null) {
+            client.writeMsg(ERROR, notif + "This server does not search messages." + notif);
+            return;
+        }
+        if (SearchIndex.words(terms, 0).isEmpty()) {
+            client.writeMsg(ERROR, notif + "Usage: /search <words>" + notif);
+            return;
+        }
+        long start = System.nanoTime();
+        Room room = client.room;
+        List<String> messages = search.search(room == null ? "" : room.name, terms, MAX_SEARCH);
+        client.writeMsg(HISTORY, "Found " + messages.size() + " messages with " + terms.trim() + " at " + time()
+                + "\n");
+        for (String message : messages) {
+            client.writeMsg(HISTORY, message);
+        }
+        display(ServerLog.Level.DEBUG, ">>"+client.userName+": "+HISTORY+SEPARATOR+messages.size()+" found in "
+                + TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start)+" us");
+    }
+
+    /**
+     * Picks the binary framing version for a client's hello and sets up what that version brings: deflating long
+     * payloads, unless the server is told not to, acknowledgements and resumable sessions
+     * @param client-the client that sent the hello
+     * @param hello-the hello
+     * @return the version to answer with
+     * @throws StreamCorruptedException if the bytes are not a hello
+     */
+    int negotiate(Connection client, byte[] hello) throws StreamCorruptedException {
+        int version = Math.min(WireCodec.helloVersion(hello), WireCodec.VERSION);
+        client.binary = true;
+        if (version >= WireCodec.DEFLATE_VERSION) {
+            //Left for the garbage collector to end, a close from another thread may come mid-read
+            client.inflater = new Inflater();
+            client.deflate = config.getDeflate();
+        }
+        if (version >= WireCodec.ACK_VERSION) {
+            client.acks = new AckWindow(config.getAckWindow());
+        }
+        client.resumable = version >= WireCodec.RESUME_VERSION && sessions.enabled();
+        client.replies = version >= WireCodec.REPLY_VERSION;
+        return version;
+    }
+
+    /**
+     * The message sent to a client whose userName is already in use
+     * @param userName-the name asked for
+     */
+    String nameInUse(String userName) {
+        return notif + "The userName " + userName + " is already in use, please connect with another." + notif;
+    }
+
+    /**
+     * Charges a command to the client's rate limits before it is handled. A client told its commands are being
+     * dropped is told once, until one gets through again.
+     * @param client-the client that sent the command
+     * @param cm-the command and its message
+     * @param receivedNanos-System.nanoTime() when the command was read
+     * @return 0 to handle it now, with the delay policy how many nanoseconds to hold it first, otherwise
+     *         RateLimiter.DROPPED, and the command is not handled, or RateLimiter.DISCONNECTED
+     */
+    long admit(Connection client, ChatMessage cm, long receivedNanos) {
+        String type = cm.getType();
+        //Acknowledgements and leaving are never held back
+        if (type.equals(ACK) || type.equals(DISCONNECT)) {
+            return 0;
+        }
+        String message = cm.getMessage();
+        long wait = limiter.charge(client, message == null ? 0 : message.length(), receivedNanos);
+        if (wait == 0) {
+            client.throttled = false;
+            return 0;
+        }
+        metrics.rateLimited();
+        if (wait == RateLimiter.DROPPED) {
+            //Still counted as received, so acknowledgements stay in step with what the client sent
+            answering(client);
+            client.commands++;
+            if (!client.throttled) {
+                client.throttled = true;
+                display(ServerLog.Level.WARN, client.userName + " is over the rate limit, dropping messages.");
+                client.writeMsg(ERROR, notif + "You are sending too fast, messages are being dropped until you"
+                        + " slow down." + notif);
+            }
+        }
+        else if (wait == RateLimiter.DISCONNECTED) {
+            client.quit = true;
+            display(ServerLog.Level.WARN, client.userName + " is over the rate limit, disconnecting.");
+            client.writeMsg(ERROR, notif + "You are sending too fast and have been disconnected." + notif);
+        }
+        return wait;
+    }
+
+    /**
+     * Handles a single command sent by a client and records it in the metrics
+     * @param client-the client that sent the command
+     * @param cm-the command and its message
+     * @param receivedNanos-System.nanoTime() when the command was read
+     * @return false if the client asked to disconnect
+     */
+    boolean handle(Connection client, ChatMessage cm, long receivedNanos) {
+        String type = cm.getType();
+        if (!type.equals(ACK)) {
+            //A chat is only answered by its broadcast, which is not matched to it
+            if (!type.equals(SEND_CHAT) && !type.equals(DISCONNECT)) {
+                answering(client);
+            }
+            client.commands++;
+        }
+        boolean keep = handle(client, cm);
+        metrics.command(cm.getType(), receivedNanos);
+        return keep;
+    }
+
+    /**
+     * Whether a command has a type and a message, an object stream client can send either as null
+     * @param cm-the command
+     */
+    static boolean wellFormed(ChatMessage cm) {
+        return cm != null && cm.getType() != null && cm.getMessage() != null;
+    }
+
+    /**
+     * Tells a client how many of its commands have been handled, if that has changed since it was last told. The
+     * engines call it once they have handled everything a read brought in, so one acknowledgement covers them all.
+     * @param client-the client
+     */
+    void acknowledge(Connection client) {
+        if (client.acks != null && client.commands > client.commandsAcked) {
+            client.commandsAcked = client.commands;
+            client.writeMsg(ACK, Long.toString(client.commands));
+        }
+    }
+
+    /**
+     * Acknowledges the commands before the one about to be answered, for a client that matches answers to commands:
+     * whatever it is sent between two acknowledgements then answers the first command the later one covers
+     * @param client-the client
+     */
+    private void answering(Connection client) {
+        if (client.replies) {
+            acknowledge(client);
+        }
+    }
+
+    /**
+     * Handles a single command sent by a client
+     * @param client-the client that sent the command
+     * @param cm-the command and its message
+     * @return false if the client asked to disconnect
+     */
+    private boolean handle(Connection client, ChatMessage cm) {
+        String[] command;
+        String userName = client.userName;
+        //Obtain the message from the ChatMessage object received
+        String message = cm.getMessage();
+        switch (cm.getType()) {
+            case SEND_CHAT:
+                //Display server protocol for sending a message to all clients
+                display(ServerLog.Level.DEBUG, "<<"+userName+": "+SEND_CHAT+SEPARATOR+message);
+                Room room = client.room;
+                if (room != null) {
+                    String delivered = broadcast(room, userName, CHAT_RECEIVED, userName + ": " + message,
+                            userName+SEPARATOR+message);
+                    record(MessageLog.CHAT, room.name, userName, delivered);
+                }
+                break;
+            case DISCONNECT:
+                //Display server protocol for disconnecting a client
+                display(ServerLog.Level.DEBUG, "<<"+userName + ": "+DISCONNECT);
+                client.quit = true;
+                return false;
+            case LIST_USERS:
+                //Display server protocol for listing connected clients
+                display(ServerLog.Level.DEBUG, "<<"+userName+": "+LIST_USERS+SEPARATOR+message);
+                //An optional prefix of the userNames and page number, in either order
+                String prefix = "";
+                int page = 1;
+                for (String word : message.trim().split(" +")) {
+                    if (word.isEmpty()) {
+                        continue;
+                    }
+                    if (word.length() < 10 && word.matches("[0-9]+")) {
+                        page = Integer.parseInt(word);
+                    }
+                    else {
+                        prefix = word;
+                    }
+                }
+                Roster.Snapshot snapshot = roster.current(cluster);
+                client.send(snapshot.page(prefix, page));
+                //Display server protocol of how many users there are
+                display(ServerLog.Level.DEBUG, ">>"+userName+": "+USERS+SEPARATOR+snapshot.names.length);
+                break;
+            case SEND_WHISPER:
+                String user;
+                command = message.split(" ",2);
+                if (command.length < 2 || command[1].isEmpty()) {
+                    client.writeMsg(ERROR, notif + "Usage: /w <recipient> <message>" + notif);
+                    break;
+                }
+                user = command[0];
+                //Display server protocol for sending a private message
+                display(ServerLog.Level.DEBUG, "<<"+userName+": "+SEND_WHISPER+SEPARATOR+user+SEPARATOR+command[1]);
+                whisper(client, user+" "+command[1]);
+                break;
+            case JOIN_ROOM:
+                //Display server protocol for moving to another room
+                display(ServerLog.Level.DEBUG, "<<"+userName+": "+JOIN_ROOM+SEPARATOR+message);
+                String name = message.trim();
+                if (!RoomDirectory.isValidName(name)) {
+                    client.writeMsg(ERROR, notif + "Room names are one word of up to " + RoomDirectory.MAX_NAME
+                            + " letters, digits, - or _." + notif);
+                }
+                else {
+                    move(client, name);
+                }
+                break;
+            case LEAVE_ROOM:
+                //Display server protocol for going back to the lobby
+                display(ServerLog.Level.DEBUG, "<<"+userName+": "+LEAVE_ROOM);
+                move(client, RoomDirectory.LOBBY);
+                break;
+            case LIST_ROOMS:
+                //Display server protocol for listing open rooms
+                display(ServerLog.Level.DEBUG, "<<"+userName+": "+LIST_ROOMS);
+                String names = ROOMS;
+                client.writeMsg(ROOMS, "List of the rooms open at " + time() + "\n");
+                //Rooms count the users of every node, and rooms only open on other nodes are listed after
+                Map<String, Integer> remoteRooms = cluster == null ? new HashMap<String, Integer>()
+                        : cluster.remoteRooms();
+                for (Room open : rooms.all()) {
+                    Integer remote = remoteRooms.remove(open.name);
+                    client.writeMsg(ROOMS, open.name + " (" + (open.size() + (remote == null ? 0 : remote))
+                            + " users)" + (open == client.room ? " <- you are here" : "") + "\n");
+                    names += SEPARATOR+open.name;
+                }
+                for (Map.Entry<String, Integer> remote : remoteRooms.entrySet()) {
+                    client.writeMsg(ROOMS, remote.getKey() + " (" + remote.getValue() + " users)\n");
+                    names += SEPARATOR+remote.getKey();
+                }
+                //Display server protocol of all open rooms
+                display(ServerLog.Level.DEBUG, ">>"+userName+": "+names);
+                break;
+            case GET_HISTORY:
+                //Display server protocol for sending back history
+                display(ServerLog.Level.DEBUG, "<<"+userName+": "+GET_HISTORY+SEPARATOR+message);
+                sendHistory(client, message);
+                break;
+            case SEARCH:
+                //Display server protocol for searching the room
+                display(ServerLog.Level.DEBUG, "<<"+userName+": "+SEARCH+SEPARATOR+message);
+                sendSearch(client, message);
+                break;
+            case GET_STATS:
+                //Display server protocol for sending back the metrics
+                display(ServerLog.Level.DEBUG, "<<"+userName+": "+GET_STATS);
+                if (!admin(client)) {
+                    client.writeMsg(ERROR, notif + "Only admins can see the server stats." + notif);
+                    break;
+                }
+                client.writeMsg(STATS, "Server stats at " + time() + "\n");
+                for (String line : metrics.report()) {
+                    client.writeMsg(STATS, line + "\n");
+                }
+                break;
+            case ACK:
+                //Frames the client has received, up to and including this one
+                AckWindow window = client.acks;
+                try {
+                    if (window != null) {
+                        window.ack(Long.parseLong(message.trim()));
+                        //Writing may have stopped at a full window
+                        client.schedule();
+                    }
+                } catch (NumberFormatException e) {
+                    display(ServerLog.Level.WARN, "<<"+userName+": "+ACK+SEPARATOR+"malformed "+message);
+                }
+                break;
+            case ERROR:
+                //Display server protocol for an unrecognized command
+                display(ServerLog.Level.DEBUG, ">>"+ERROR+": Error"+SEPARATOR+userName);
+                client.writeMsg(ERROR, "Command not recognized: Type \'/help\' for list of commands");
+                break;
+        }
+        return true;
     }
 
     /**
      * Main method for running the server
-     * @param args
+     * @param args-startup options such as --engine=nio|virtual, --port=6789, --loops=4 and --cluster-port=7789
      */
     public static void main(String[] args) {
         // create a server object and start it
-        ServerSide server = new ServerSide(PORT);
+        ServerSide server = new ServerSide(ServerConfig.fromArgs(args));
         server.start();
     }
 
     /**
-     * Class that creates an instance of a thread for each client
+     * Class that serves a single client on its own thread
      */
-    class ClientThread extends Thread {
+    class ClientThread extends Connection implements Runnable {
+        SocketChannel channel;
         Socket socket;
         ObjectInputStream sInput;
-        ObjectOutputStream sOutput;
-        //unique id easier for disconnecting a user
-        int id;
-        //userName of the Client
-        String userName;
+        //raw stream for a client that negotiated the binary framing, null for an object stream client
+        InputStream bInput;
+        //what is read and written goes through TLS, null for a plain connection
+        TlsChannel tls;
         //message object to receive message and its type
         ChatMessage cm;
-        //timestamp
-        String date;
+        //frames handed to the channel in one gathering write, only used by the writer
+        private ByteBuffer[] batch = new ByteBuffer[WRITE_BATCH];
+        //runs the writer once the client has logged in
+        private ExecutorService executor;
 
         /**
          * Constructor that constructs a ClientThread
-         * @param socket-The socket to get messages from client
+         * @param channel-The blocking channel to get messages from client
+         * @param executor-runs the writer once the client has logged in
+         */
+        public ClientThread(SocketChannel channel, ExecutorService executor) {
+            super(nextId(), newQueue());
+            this.channel = channel;
+            this.socket = channel.socket();
+            this.executor = executor;
+            address = socket.getInetAddress();
+        }
+
+        /**
+         * Reads the client's hello and userName and adds it to the chat room
+         * @return false if the client is to be closed without being served
          */
-        public ClientThread(Socket socket) {
-            id = ++uniqueId;
-            this.socket = socket;
+        private boolean login() {
+            String name;
+            //the token and count of a client resuming its session instead, null for one logging in
+            String resuming = null;
             try {
-                sOutput = new ObjectOutputStream(socket.getOutputStream());
-                sInput = new ObjectInputStream(socket.getInputStream());
-                //Obtain userName
-                userName = (String) sInput.readObject();
-                //Display protocol to connect user
-                display("<<unknown user: "+CONNECT+SEPARATOR+userName);;
-                broadcast(notif + userName + " has joined the chat room." + notif,false,"");
-                //Display protocol of user being connected
-                display(">>"+userName+": "+CONNECTED);
-            } catch (IOException e) {
-                display(">>"+FATAL_ERROR+SEPARATOR+e);
-                return;
-            } catch (ClassNotFoundException e) {
+                //The TLS handshake comes before anything else
+                tls = newTls(channel);
+                if (tls != null) {
+                    tls.handshake();
+                }
+                //Both kinds of client wait for the object stream header first
+                writeFully(ByteBuffer.wrap(WireCodec.STREAM_HEADER));
+                //Peek at the first byte to tell a binary hello from an object stream header
+                BufferedInputStream in = new BufferedInputStream(metrics.counting(tls != null
+                        ? Channels.newInputStream(tls) : socket.getInputStream()));
+                in.mark(1);
+                int first = in.read();
+                in.reset();
+                if (first == WireCodec.MAGIC[0]) {
+                    bInput = in;
+                    negotiate();
+                    //Obtain userName from the connect frame, or the session from a resume frame
+                    ChatMessage login = WireCodec.read(bInput, inflater);
+                    if (!wellFormed(login)) {
+                        throw new StreamCorruptedException("Expected " + CONNECT + " but got " + login);
+                    }
+                    if (login.getType().equals(RESUME)) {
+                        resuming = login.getMessage();
+                    }
+                    else if (!login.getType().equals(CONNECT)) {
+                        throw new StreamCorruptedException("Expected " + CONNECT + " but got " + login.getType());
+                    }
+                    name = login.getMessage();
+                }
+                else {
+                    sInput = new ObjectInputStream(in);
+                    //Obtain userName
+                    name = (String) sInput.readObject();
+                    if (name == null) {
+                        throw new StreamCorruptedException("Expected a userName but got null");
+                    }
+                }
+                //Closed for taking too long while it was logging in
+                if (!handshakes.finish(this)) {
+                    return false;
+                }
+                if (resuming != null) {
+                    if (!resume(this, resuming)) {
+                        writeFully(new Frame(FATAL_ERROR, sessionLost(), false).buffer(wire()));
+                        return false;
+                    }
+                    return true;
+                }
+                if (!join(this, name)) {
+                    //The writer has not started yet, so tell the client directly
+                    writeFully(new Frame(FATAL_ERROR, nameInUse(name), false).buffer(wire()));
+                    return false;
+                }
+                return true;
+            } catch (IOException | ClassNotFoundException | ClassCastException e) {
+                //Connections that never log in are only worth a debug line, floods of them are counted in /stats
+                display(ServerLog.Level.DEBUG, ">>"+FATAL_ERROR+SEPARATOR+e);
+            } catch (RuntimeException e) {
+                display(ServerLog.Level.WARN, ">>"+FATAL_ERROR+SEPARATOR+e);
             }
-            date = new Date().toString() + "\n";
+            return false;
         }
 
-        public String getuserName() {
-            return userName;
+        /**
+         * Answers a client's binary hello with the newest framing version both sides speak
+         */
+        private void negotiate() throws IOException {
+            byte[] hello = new byte[WireCodec.HELLO_LENGTH];
+            new DataInputStream(bInput).readFully(hello);
+            int version = ServerSide.this.negotiate(this, hello);
+            writeFully(ByteBuffer.wrap(WireCodec.hello(version)));
+            display(ServerLog.Level.DEBUG, "<<unknown user: binary framing version " + version);
         }
 
         /**
          * Run method for continuously reading input from user
          */
         public void run() {
-            String[] command;
+            //A client that never logs in is closed without being served
+            if (!login()) {
+                close();
+                return;
+            }
+            executor.execute(writer());
             boolean continueToRun = true;
             while (continueToRun) {
                 // read a String (which is an object)
                 try {
                     //Cast user input to a ChatMessage since its sent as one
-                    cm = (ChatMessage) sInput.readObject();
+                    cm = bInput != null ? WireCodec.read(bInput, inflater) : (ChatMessage) sInput.readObject();
                 } catch (IOException e) {
-                    display(">>"+userName+": " +FATAL_ERROR+SEPARATOR+e);
+                    display(ServerLog.Level.WARN, ">>"+userName+": " +FATAL_ERROR+SEPARATOR+e);
                     break;
-                } catch (ClassNotFoundException e2) {
+                } catch (ClassNotFoundException | ClassCastException e2) {
                     break;
                 }
-                //Obtain the message from the ChatMessage object received
-                String message = cm.getMessage();
-                String temp = cm.getType();
-                switch (cm.getType()) {
-                    case SEND_CHAT:
-                        //Display server protocol for sending a message to all clients
-                        display("<<"+userName+": "+SEND_CHAT+SEPARATOR+message);
-                        broadcast(userName + ": " + message,false,"");
-                        break;
-                    case DISCONNECT:
-                        //Display server protocol for disconnecting a client
-                        display("<<"+userName + ": "+DISCONNECT);
-                        continueToRun = false;
-                        break;
-                    case LIST_USERS:
-                        //Display server protocol for listing connected clients
-                        display("<<"+userName+": "+LIST_USERS);
-                        String users = USERS;
-                        writeMsg("List of the users connected at " + sdf.format(new Date()) + "\n");
-                        for (int i = 0; i < clients.size(); ++i) {
-                            ClientThread ct = clients.get(i);
-                            writeMsg((i + 1) + ") " + ct.userName + " since " + ct.date);
-                            users += SEPARATOR+ct.userName;
-                        }
-                        //Display server protocol of all active clients
-                        display(">>"+userName+": "+users);
-                        break;
-                    case SEND_WHISPER:
-                        String user;
-                        command = message.split(" ",2);
-                        user = command[0];
-                        //Display server protocol for sending a private message
-                        display("<<"+userName+": "+SEND_WHISPER+SEPARATOR+user+SEPARATOR+command[1]);
-                        if(!broadcast(user+" "+command[1],true, userName)){
-                            String msg = notif + "Sorry. No such user exists." + notif;
-                            writeMsg(msg);
-                        }
-                        else{
-                            //Display server protocol for a private message that has been sent
-                            display("<<"+userName+": "+WHISPER_SENT+SEPARATOR+user+SEPARATOR+command[1]);
-                            writeMsg("You whispered to "+ user+": "+command[1]);
-                        }
+                if (!wellFormed(cm)) {
+                    display(ServerLog.Level.WARN, ">>"+userName+": " +FATAL_ERROR+SEPARATOR+"Expected a command but got "+cm);
+                    break;
+                }
+                long wait = admit(this, cm, System.nanoTime());
+                if (wait == RateLimiter.DISCONNECTED) {
+                    break;
+                }
+                if (wait > 0) {
+                    //Holding back this reader holds back the client, the socket fills up behind it
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    } catch (InterruptedException e) {
                         break;
-                    case ERROR:
-                        //Display server protocol for an unrecognized command
-                        display(">>"+ERROR+": Error"+SEPARATOR+userName);
-                        writeMsg("Command not recognized: Type \'/help\' for list of commands");
+                    }
+                }
+                if (wait >= 0) {
+                    try {
+                        continueToRun = handle(this, cm, System.nanoTime());
+                    } catch (RuntimeException e) {
+                        //Failing on one command ends this client only, and it is still removed below
+                        display(ServerLog.Level.WARN, ">>"+userName+": " +FATAL_ERROR+SEPARATOR+e);
                         break;
+                    }
+                }
+                //One acknowledgement once every command that has arrived is handled
+                try {
+                    if (continueToRun && bInput != null && bInput.available() == 0) {
+                        acknowledge(this);
+                    }
+                } catch (IOException e) {
                 }
             }
             //If out of the loop then disconnected and remove from client list
@@ -312,45 +1295,91 @@ public class ServerSide implements common.ChatterboxProtocol {
         }
 
         /**
-         * Method that closes all the data streams
+         * Gets the writer that drains this client's outbound queue on its own thread
+         */
+        Runnable writer() {
+            return new Runnable() {
+                public void run() {
+                    writeLoop();
+                }
+            };
+        }
+
+        /**
+         * Writes queued frames until the queue is closed, everything that has queued up goes out in one gathering
+         * write of the shared frame buffers
          */
-        private void close() {
+        private void writeLoop() {
             try {
-                if (sOutput != null) sOutput.close();
-            } catch (Exception e) {
+                Frame frame;
+                AckWindow window = acks;
+                while (true) {
+                    //A client that has not acknowledged a full window gets nothing more until it does
+                    if (window != null) {
+                        window.awaitRoom();
+                    }
+                    if ((frame = queue.take()) == null) {
+                        break;
+                    }
+                    int count = 0;
+                    do {
+                        batch[count++] = writing(frame);
+                    } while (count < batch.length && (window == null || !window.full())
+                            && (frame = queue.poll()) != null);
+                    while (batch[count - 1].hasRemaining()) {
+                        metrics.bytesOut(tls != null ? tls.write(batch, 0, count) : channel.write(batch, 0, count));
+                    }
+                    Arrays.fill(batch, 0, count, null);
+                }
             }
-            try {
-                if (sInput != null) sInput.close();
-            } catch (Exception e) {
+            catch (IOException e) {
+                display(ServerLog.Level.WARN, notif + "Error sending message to " + userName + notif);
+                display(ServerLog.Level.WARN, e.toString());
+                //Removed, and so parked if it can resume, before the queue closes, so nothing sent to it in
+                //between is refused; the reader then finds it already gone
+                remove(id);
+                close();
+            }
+            catch (InterruptedException e) {
+                close();
             }
+        }
 
-            try {
-                if (socket != null) socket.close();
-            } catch (Exception e) {
+        /**
+         * Writes all of a buffer to the channel
+         * @param buffer-the bytes to write
+         */
+        private void writeFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                metrics.bytesOut(tls != null ? tls.write(buffer) : channel.write(buffer));
             }
         }
 
         /**
-         * Method for writing a string to the clients output stream
-         * @param msg-The message being written
-         * @return
+         * The writer thread waits on the queue itself
          */
-        private boolean writeMsg(String msg) {
-            //Check to see if the client is connected
-            if (!socket.isConnected()) {
-                close();
-                return false;
+        void schedule() {
+        }
+
+        /**
+         * Method that closes all the data streams
+         */
+        void close() {
+            handshakes.finish(this);
+            queue.close();
+            if (acks != null) {
+                acks.close();
             }
-            //Write the message
             try {
-                sOutput.writeObject(msg);
+                if (sInput != null) sInput.close();
+            } catch (Exception e) {
             }
-            catch (IOException e) {
-                display(notif + "Error sending message to " + userName + notif);
-                display(e.toString());
+
+            try {
+                if (tls != null) tls.close();
+                else if (channel != null) channel.close();
+            } catch (Exception e) {
             }
-            return true;
         }
     }
 }
-
@@ -0,0 +1,285 @@
+package server;
+
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sessions that outlive their connection. Every client that logs in on a framing version that can resume is given
+ * a token, and when its connection drops without it saying goodbye it is parked instead of removed: it keeps its
+ * userName and its place in its room, and what is sent to it meanwhile is held. A client that comes back with the
+ * token before the deadline carries on where it left off, nobody is told it went or came back; one that does not
+ * is removed as if it had just left.
+ * Author: Nick Vaccarello
+ * email: nwv4110@rit.edu
+ */
+class Sessions implements Runnable {
+    // least time between sweeps, so many sessions expiring together are removed in batches
+    private static final long SWEEP_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    // random bytes in a token
+    private static final int TOKEN_BYTES = 16;
+
+    /**
+     * What is sent to a parked client while it is away
+     */
+    static class Session {
+        // most frames held, later ones are counted and thrown away
+        private final int max;
+        private final ArrayDeque<Frame> frames = new ArrayDeque<Frame>();
+        // frames that did not fit
+        private long lost;
+        // the connection the client came back on, anything sent to the old one goes there
+        private Connection successor;
+        // set once the session has expired, whatever still arrives is thrown away
+        private boolean ended;
+
+        Session(int max) {
+            this.max = max;
+        }
+
+        /**
+         * Holds a frame for the client, or passes it on if the client is already back
+         * @param frame-the frame
+         * @return false only if the connection the client came back on could not take it
+         */
+        boolean add(Frame frame) {
+            Connection next;
+            synchronized (this) {
+                next = successor;
+                if (next == null) {
+                    if (ended) {
+                        return true;
+                    }
+                    if (frames.size() < max) {
+                        frames.add(frame);
+                    }
+                    else {
+                        lost++;
+                    }
+                    return true;
+                }
+            }
+            return next.send(frame);
+        }
+
+        /**
+         * Queues what was held on the connection the client came back on, everything sent from now on goes
+         * straight there
+         * @param client-the connection
+         * @return the number of frames queued
+         */
+        synchronized int handOver(Connection client) {
+            int count = frames.size();
+            Frame frame;
+            while ((frame = frames.poll()) != null) {
+                client.send(frame);
+            }
+            successor = client;
+            return count;
+        }
+
+        /**
+         * Throws away what was held, the client did not come back
+         */
+        synchronized void end() {
+            ended = true;
+            frames.clear();
+        }
+
+        /**
+         * Gets the number of frames that did not fit
+         */
+        synchronized long lost() {
+            return lost;
+        }
+    }
+
+    private final ServerSide server;
+    private final long timeoutNanos;
+    private final int maxFrames;
+    private final SecureRandom random = new SecureRandom();
+    // every client holding a token by its token, connected or parked
+    private final ConcurrentHashMap<String, Connection> tokens = new ConcurrentHashMap<String, Connection>();
+    // parked clients and their deadlines in System.nanoTime(), oldest first; guarded by this
+    private final LinkedHashMap<Connection, Long> parked = new LinkedHashMap<Connection, Long>();
+    // sessions picked up again and sessions that ran out of time
+    private long resumed;
+    private long expired;
+
+    /**
+     * Constructs an empty set of sessions
+     * @param server-the server, which removes a client whose session expires
+     * @param timeoutMillis-how long a parked session waits for its client, 0 turns sessions off
+     * @param maxFrames-most frames held for a parked client
+     */
+    Sessions(ServerSide server, int timeoutMillis, int maxFrames) {
+        this.server = server;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.maxFrames = Math.max(0, maxFrames);
+    }
+
+    /**
+     * Starts the thread that removes clients whose sessions expire
+     */
+    void start() {
+        Thread thread = new Thread(this, "chatterbox-sessions");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Whether clients are given tokens at all
+     */
+    boolean enabled() {
+        return timeoutNanos > 0;
+    }
+
+    /**
+     * Gives a client that has logged in a token to resume its session with
+     * @param client-the client
+     * @return the token
+     */
+    String issue(Connection client) {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        random.nextBytes(bytes);
+        StringBuilder token = new StringBuilder(TOKEN_BYTES * 2);
+        for (byte b : bytes) {
+            token.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        client.token = token.toString();
+        tokens.put(client.token, client);
+        return client.token;
+    }
+
+    /**
+     * Parks a client whose connection dropped, holding what is queued for it and everything sent to it from now
+     * @param client-the client, already out of the directory's ids
+     */
+    void park(Connection client) {
+        Session session = new Session(maxFrames);
+        client.parked = session;
+        //What was queued and never written, a send that lost the race with the close lands in the session too
+        Frame frame;
+        while ((frame = client.queue.poll()) != null) {
+            session.add(frame);
+        }
+        synchronized (this) {
+            if (parked.isEmpty()) {
+                notifyAll();
+            }
+            parked.put(client, System.nanoTime() + timeoutNanos);
+        }
+    }
+
+    /**
+     * Takes the client holding a token, for its connection to be resumed; only one caller ever gets it
+     * @param token-the token
+     * @return the client, connected or parked, or null if the token is unknown or its session expired
+     */
+    Connection claim(String token) {
+        Connection client = tokens.remove(token);
+        if (client != null) {
+            synchronized (this) {
+                parked.remove(client);
+            }
+        }
+        return client;
+    }
+
+    /**
+     * Hands a token on to the connection that resumed its session
+     * @param client-the connection, holding the token
+     */
+    void resumed(Connection client) {
+        tokens.put(client.token, client);
+        synchronized (this) {
+            resumed++;
+        }
+    }
+
+    /**
+     * Lets go of the token of a client that left for good
+     * @param client-the client
+     */
+    void forget(Connection client) {
+        if (client.token != null) {
+            tokens.remove(client.token, client);
+        }
+    }
+
+    /**
+     * Gets the number of parked sessions
+     */
+    synchronized int size() {
+        return parked.size();
+    }
+
+    /**
+     * Gets the number of sessions picked up again by their client
+     */
+    synchronized long resumed() {
+        return resumed;
+    }
+
+    /**
+     * Gets the number of sessions whose client did not come back in time
+     */
+    synchronized long expired() {
+        return expired;
+    }
+
+    /**
+     * Removes parked clients as their deadlines pass
+     */
+    public void run() {
+        List<Connection> due = new ArrayList<Connection>();
+        while (true) {
+            synchronized (this) {
+                long now = System.nanoTime();
+                long wait = 0;
+                //Deadlines are all the same length, so they come in the order clients were parked
+                Iterator<Map.Entry<Connection, Long>> it = parked.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<Connection, Long> entry = it.next();
+                    if (entry.getValue() - now > 0) {
+                        wait = Math.max(entry.getValue() - now, SWEEP_NANOS);
+                        break;
+                    }
+                    it.remove();
+                    due.add(entry.getKey());
+                }
+                if (due.isEmpty()) {
+                    try {
+                        //Nothing parked waits for the next client to drop
+                        if (wait == 0) {
+                            wait();
+                        }
+                        else {
+                            TimeUnit.NANOSECONDS.timedWait(this, wait);
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    continue;
+                }
+            }
+            for (Connection client : due) {
+                //The client may be resuming right now, whoever takes the token first wins
+                if (tokens.remove(client.token, client)) {
+                    synchronized (this) {
+                        expired++;
+                    }
+                    client.parked.end();
+                    server.expire(client);
+                }
+            }
+            due.clear();
+        }
+    }
+}
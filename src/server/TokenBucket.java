@@ -0,0 +1,83 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket kept as the generic cell rate algorithm: instead of a token count refilled by a timer, it holds the
+ * one time at which the bucket would be full again, and a cost is allowed if spending it would not push that time
+ * more than a full bucket past now. Checking is a read, some arithmetic and one compare-and-set, so any number of
+ * threads can share a bucket without locking and nothing is allocated.
+ * Author: Nick Vaccarello
+ * email: nwv4110@rit.edu
+ */
+class TokenBucket {
+    // nanoseconds it takes to earn one token back
+    private final long interval;
+    // nanoseconds worth of tokens the bucket holds when full
+    private final long burst;
+    // when the bucket is full again, in System.nanoTime()
+    private final AtomicLong full;
+
+    /**
+     * Constructs a full bucket
+     * @param perSecond-tokens earned back each second
+     * @param burstMillis-how many milliseconds of tokens the bucket holds when full
+     */
+    TokenBucket(long perSecond, long burstMillis) {
+        interval = Math.max(1, TimeUnit.SECONDS.toNanos(1) / perSecond);
+        burst = Math.max(interval, TimeUnit.MILLISECONDS.toNanos(burstMillis));
+        full = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Takes tokens if the bucket has them. A cost above a full bucket is only taken from a full bucket, and the
+     * debt it leaves has to be earned back before anything else is taken
+     * @param cost-tokens wanted
+     * @param now-System.nanoTime()
+     * @return 0 if they were taken, otherwise nanoseconds until there are enough and nothing is taken
+     */
+    long take(long cost, long now) {
+        long spend = cost * interval;
+        while (true) {
+            long current = full.get();
+            long next = Math.max(current, now) + spend;
+            long over = next - now - burst;
+            if (over > 0 && spend > burst) {
+                //Too big to ever fit, so wait for the bucket to be full rather than for room
+                over = current - now;
+            }
+            if (over > 0) {
+                return over;
+            }
+            if (full.compareAndSet(current, next)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Takes tokens whether or not the bucket has them, the caller waits out what it borrowed
+     * @param cost-tokens wanted
+     * @param now-System.nanoTime()
+     * @return nanoseconds to wait until the tokens taken would have been there, 0 if they already were
+     */
+    long borrow(long cost, long now) {
+        long spend = cost * interval;
+        while (true) {
+            long current = full.get();
+            long next = Math.max(current, now) + spend;
+            if (full.compareAndSet(current, next)) {
+                return Math.max(0, next - now - burst);
+            }
+        }
+    }
+
+    /**
+     * Gives back tokens taken for something that was then refused by another bucket
+     * @param cost-tokens taken, as given to take
+     */
+    void refund(long cost) {
+        full.addAndGet(-cost * interval);
+    }
+}
@@ -0,0 +1,126 @@
+package server;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The connected clients, indexed by connection id and by userName so whispers and disconnects find their client
+ * in constant time however many users are online. A userName can only be held by one client at a time, a parked
+ * client waiting to resume its session still holds its own.
+ * Author: Nick Vaccarello
+ * email: nwv4110@rit.edu
+ */
+class UserDirectory {
+    // clients in the chat room by their unique id
+    private final ConcurrentHashMap<Integer, Connection> byId = new ConcurrentHashMap<Integer, Connection>();
+    // clients by userName, including clients that have claimed a name but not finished joining
+    private final ConcurrentHashMap<String, Connection> byName = new ConcurrentHashMap<String, Connection>();
+    // counts every add and remove, so a roster built from the clients can tell it is stale
+    private final AtomicLong version = new AtomicLong();
+
+    /**
+     * Claims a userName for a client that is logging in
+     * @param userName-the name asked for
+     * @param client-the client asking
+     * @return false if another client already holds the name
+     */
+    boolean claim(String userName, Connection client) {
+        return byName.putIfAbsent(userName, client) == null;
+    }
+
+    /**
+     * Adds a client that has claimed its userName to the chat room
+     * @param client-the client
+     */
+    void add(Connection client) {
+        byId.put(client.id, client);
+        version.incrementAndGet();
+    }
+
+    /**
+     * Removes a client and releases its userName
+     * @param id-The unique id of the client
+     * @return the client, or null if it was already removed
+     */
+    Connection remove(int id) {
+        Connection client = byId.remove(id);
+        if (client != null && client.userName != null) {
+            byName.remove(client.userName, client);
+        }
+        if (client != null) {
+            version.incrementAndGet();
+        }
+        return client;
+    }
+
+    /**
+     * Takes a client whose connection dropped out of the chat room but keeps its userName for it, so nobody else
+     * can log in with it while its session waits
+     * @param client-the client
+     * @return false if it was already removed
+     */
+    boolean park(Connection client) {
+        if (!byId.remove(client.id, client)) {
+            return false;
+        }
+        version.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Puts the connection a parked client came back on in its place
+     * @param parked-the parked client
+     * @param client-the connection it came back on, with the same userName
+     */
+    void resume(Connection parked, Connection client) {
+        byName.replace(client.userName, parked, client);
+        byId.put(client.id, client);
+        version.incrementAndGet();
+    }
+
+    /**
+     * Releases the userName of a parked client that did not come back
+     * @param parked-the parked client
+     */
+    void release(Connection parked) {
+        byName.remove(parked.userName, parked);
+    }
+
+    /**
+     * Gets a client by userName
+     * @return the client, or null if nobody has that name
+     */
+    Connection get(String userName) {
+        return byName.get(userName);
+    }
+
+    /**
+     * Gets a client by its unique id
+     * @return the client, or null if it is not in the chat room
+     */
+    Connection get(int id) {
+        return byId.get(id);
+    }
+
+    /**
+     * Gets every client in the chat room; safe to walk while clients join and leave
+     */
+    Collection<Connection> all() {
+        return byId.values();
+    }
+
+    /**
+     * Gets a number that changes whenever a client is added or removed
+     */
+    long version() {
+        return version.get();
+    }
+
+    /**
+     * Gets the number of clients in the chat room
+     */
+    int size() {
+        return byId.size();
+    }
+}